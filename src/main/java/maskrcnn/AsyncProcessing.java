@@ -0,0 +1,231 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade over {@link Preprocessing} and {@link PostProcessing}.
+ * Every call runs on an executor and returns a {@link CompletableFuture} that
+ * completes with the output map of the processing, or exceptionally with a
+ * {@link ProcessingException} carrying the reason reported by the processing.
+ * 
+ * Futures can be cancelled, which interrupts the worker thread, and can be
+ * given a deadline after which they complete with a {@link TimeoutException}
+ * and the work is cancelled, so slow images do not hold the caller. The
+ * processing checks the interruption between channels and detections, and
+ * stops early to release the thread and its memory.
+ * 
+ * The processing objects are not thread-safe: use one instance of
+ * {@link Preprocessing} or {@link PostProcessing} per request running at the
+ * same time, created with the copy constructors to read the config files only
+ * once. Each instance keeps its own config and error. The runtime parameters of
+ * each image (window, original and processing shapes) are not written to the
+ * shared config file: they have to travel with the request, from
+ * {@link Preprocessing#getRuntimeParameters()} once the pre-processing completed
+ * to {@link #postprocess(PostProcessing, HashMap, HashMap, long, TimeUnit)}, so
+ * images of different sizes never unmold with each other's window.
+ */
+public class AsyncProcessing implements AutoCloseable {
+	
+	private final ExecutorService EXECUTOR;
+	/**
+	 * Whether the executor was created here, and so has to be shut down here
+	 */
+	private final boolean OWN_EXECUTOR;
+	/**
+	 * Single thread that enforces the deadlines
+	 */
+	private final ScheduledExecutorService TIMER;
+	
+	/**
+	 * Create the facade with its own executor: one virtual thread per task on
+	 * Java 21 or newer, otherwise a pool with a bounded number of threads
+	 * @param maxThreads: maximum number of threads of the pool if virtual threads are not available
+	 */
+	public AsyncProcessing(int maxThreads) {
+		this(createExecutor(maxThreads), true);
+	}
+	
+	/**
+	 * Create the facade over an existing executor, which is not shut down by {@link #close()}
+	 * @param executor: executor where the processing runs
+	 */
+	public AsyncProcessing(ExecutorService executor) {
+		this(executor, false);
+	}
+	
+	private AsyncProcessing(ExecutorService executor, boolean ownExecutor) {
+		EXECUTOR = executor;
+		OWN_EXECUTOR = ownExecutor;
+		TIMER = Executors.newSingleThreadScheduledExecutor(daemonThreads("maskrcnn-deadline"));
+	}
+	
+	/**
+	 * Run the pre-processing asynchronously. The runtime parameters of the image are
+	 * not written to the config file, get them with {@link Preprocessing#getRuntimeParameters()}
+	 * once the future completed and give them to the post-processing of the same request
+	 * @param processing: pre-processing with the config files already set, only used by this request
+	 * @param inputs: inputs of the pre-processing, see {@link Preprocessing#deepimagejPreprocessing(HashMap)}
+	 * @param timeout: maximum time to wait for the result, 0 or less for no deadline
+	 * @param unit: unit of the timeout
+	 * @return future with the tensors created by the pre-processing
+	 */
+	public CompletableFuture<HashMap<String, Object>> preprocess(final Preprocessing processing, 
+			final HashMap<String, Object> inputs, long timeout, TimeUnit unit) {
+		processing.setConfigRewrite(false);
+		return submit(() -> {
+			final HashMap<String, Object> out = processing.deepimagejPreprocessing(inputs);
+			if (out == null)
+				throw new ProcessingException(processing.error());
+			return out;
+		}, timeout, unit);
+	}
+	
+	/**
+	 * Run the post-processing asynchronously
+	 * @param processing: post-processing with the config files already set, only used by this request
+	 * @param runtimeParameters: runtime parameters of the pre-processing of the same image,
+	 * 	given by {@link Preprocessing#getRuntimeParameters()}
+	 * @param outputs: outputs of the model, see {@link PostProcessing#deepimagejPostprocessing(HashMap)}
+	 * @param timeout: maximum time to wait for the result, 0 or less for no deadline
+	 * @param unit: unit of the timeout
+	 * @return future with the results of the post-processing
+	 */
+	public CompletableFuture<HashMap<String, Object>> postprocess(final PostProcessing processing, 
+			final HashMap<String, String> runtimeParameters, final HashMap<String, Object> outputs, long timeout, TimeUnit unit) {
+		processing.setRuntimeParameters(runtimeParameters);
+		return submit(() -> {
+			final HashMap<String, Object> out = processing.deepimagejPostprocessing(outputs);
+			if (out == null)
+				throw new ProcessingException(processing.error());
+			return out;
+		}, timeout, unit);
+	}
+	
+	/**
+	 * Run a task on the executor. Cancelling the returned future, or reaching
+	 * the deadline, cancels the task and interrupts its thread
+	 * @param task: work to do
+	 * @param timeout: maximum time to wait for the result, 0 or less for no deadline
+	 * @param unit: unit of the timeout
+	 * @return future with the result of the task
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task, long timeout, TimeUnit unit) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final FutureTask<T> work = new FutureTask<T>(() -> {
+			try {
+				result.complete(task.call());
+			} catch (ProcessingException ex) {
+				result.completeExceptionally(ex);
+			} catch (Throwable ex) {
+				result.completeExceptionally(new ProcessingException(String.valueOf(ex.getMessage()), ex));
+			}
+			return null;
+		});
+		if (timeout > 0) {
+			final ScheduledFuture<?> deadline = TIMER.schedule(() -> {
+				result.completeExceptionally(new TimeoutException("The processing did not finish in " 
+						+ timeout + " " + unit.toString().toLowerCase() + "."));
+			}, timeout, unit);
+			result.whenComplete((r, ex) -> deadline.cancel(false));
+		}
+		// A cancellation or the deadline stops the work. Failures of the task itself
+		// complete the future from the worker thread, which must not interrupt itself
+		result.whenComplete((r, ex) -> {
+			if (ex instanceof CancellationException || ex instanceof TimeoutException)
+				work.cancel(true);
+		});
+		EXECUTOR.execute(work);
+		return result;
+	}
+	
+	/**
+	 * Stop the deadline timer and, if it was created by this facade, the executor
+	 */
+	@Override
+	public void close() {
+		TIMER.shutdownNow();
+		if (OWN_EXECUTOR)
+			EXECUTOR.shutdown();
+	}
+	
+	/**
+	 * Create a virtual thread per task executor if the JVM supports them (Java 21+),
+	 * looked up by reflection to keep the code compatible with Java 8, or a
+	 * bounded pool of daemon threads otherwise
+	 * @param maxThreads: maximum number of threads of the pool
+	 * @return the executor
+	 */
+	private static ExecutorService createExecutor(int maxThreads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 30, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(), daemonThreads("maskrcnn-processing"));
+			pool.allowCoreThreadTimeOut(true);
+			return pool;
+		}
+	}
+	
+	/**
+	 * @param prefix: prefix of the name of the threads
+	 * @return factory of named daemon threads
+	 */
+	private static ThreadFactory daemonThreads(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return (r) -> {
+			final Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
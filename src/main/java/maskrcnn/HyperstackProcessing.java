@@ -0,0 +1,292 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+package maskrcnn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import maskrcnn.utils.AdmissionScheduler;
+import maskrcnn.utils.DetectedInstance;
+import maskrcnn.utils.MemoryEstimate;
+import maskrcnn.utils.ResultCache;
+
+/**
+ * Process every (z, t) plane of a hyperstack as an independent input of the
+ * model. The planes run in parallel through {@link Preprocessing}, the model
+ * and {@link PostProcessing}, and the instances found in each plane are
+ * reassembled into a label hyperstack with the slices and frames of the input,
+ * where the pixels of the instance i of a plane have the value i + 1.
+ * 
+ * Every plane has the same shape, so the anchors and image metas are built once,
+ * before the fan-out, and shared by all the planes. The runtime parameters are
+ * handed from the pre- to the post-processing of each plane directly instead of
+ * through the config file. The channels of the hyperstack are the channels of
+ * each plane. If 'RESULT_CACHE_DIR' is set in the config file, the outputs of the
+ * model are cached by the content of each plane, so planes already processed
+ * only go through the post-processing.
+ * 
+ * The planes are admitted in order through an {@link AdmissionScheduler} with
+ * the {@link MemoryEstimate} of one plane, and each plane is only extracted
+ * from the hyperstack once admitted. So long time-lapses keep in memory only
+ * the planes that fit in the budget, whatever the number of threads.
+ * 
+ * The model is run by a callback that receives the outputs of the pre-processing
+ * of a plane and returns the outputs of the model for it, so it can be called
+ * from several threads at the same time.
+ */
+public class HyperstackProcessing {
+	
+	/**
+	 * Fraction of the heap used by the planes processed at the same time when no
+	 * scheduler is given. The rest is left for the model and the label hyperstack
+	 */
+	private static final double DEFAULT_HEAP_FRACTION = 0.5;
+	
+	private final AsyncProcessing ASYNC;
+	/**
+	 * Decides how many planes are processed at the same time
+	 */
+	private final AdmissionScheduler SCHEDULER;
+	private final Function<HashMap<String, Object>, HashMap<String, Object>> MODEL;
+	/**
+	 * Cache of the outputs of the model, null if 'RESULT_CACHE_DIR' is not set
+	 */
+	private final ResultCache CACHE;
+	/**
+	 * Parameters of the config file, used to compute the keys of the cache
+	 */
+	private final HashMap<String, String> CONFIG;
+	/**
+	 * Processing objects with the config already read, copied by each plane
+	 */
+	private final Preprocessing PRE;
+	private final PostProcessing POST;
+	
+	/**
+	 * Create the processing with a budget of half of the heap for the planes processed at the same time
+	 * @param configFiles: config files of the model, see {@link Preprocessing#setConfigFiles(ArrayList)}
+	 * @param model: runs the model on the inputs created by the pre-processing of a
+	 * 	plane and returns its outputs, null if it fails
+	 * @param async: executor where the planes are processed
+	 * @throws ProcessingException if the config files cannot be read
+	 */
+	public HyperstackProcessing(ArrayList<String> configFiles, 
+			Function<HashMap<String, Object>, HashMap<String, Object>> model, AsyncProcessing async) throws ProcessingException {
+		this(configFiles, model, async, AdmissionScheduler.ofHeapFraction(DEFAULT_HEAP_FRACTION));
+	}
+	
+	/**
+	 * @param configFiles: config files of the model, see {@link Preprocessing#setConfigFiles(ArrayList)}
+	 * @param model: runs the model on the inputs created by the pre-processing of a
+	 * 	plane and returns its outputs, null if it fails
+	 * @param async: executor where the planes are processed
+	 * @param scheduler: admits the planes as memory is available, it can be shared
+	 * 	with other processing running at the same time
+	 * @throws ProcessingException if the config files cannot be read
+	 */
+	public HyperstackProcessing(ArrayList<String> configFiles, Function<HashMap<String, Object>, HashMap<String, Object>> model, 
+			AsyncProcessing async, AdmissionScheduler scheduler) throws ProcessingException {
+		// The config is parsed once here, every plane reuses it
+		final Preprocessing pre = new Preprocessing();
+		pre.setConfigFiles(configFiles);
+		if (!pre.error().equals(""))
+			throw new ProcessingException(pre.error());
+		final PostProcessing post = new PostProcessing();
+		post.setConfigFiles(configFiles);
+		if (!post.error().equals(""))
+			throw new ProcessingException(post.error());
+		MODEL = model;
+		ASYNC = async;
+		SCHEDULER = scheduler;
+		PRE = pre;
+		POST = post;
+		CONFIG = pre.getConfig();
+		try {
+			CACHE = ResultCache.fromConfig(CONFIG);
+		} catch (IllegalArgumentException ex) {
+			throw new ProcessingException(ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Process every plane of a hyperstack
+	 * @param image: hyperstack of any number of channels, slices and frames
+	 * @return label hyperstack with one channel and the slices and frames of the input
+	 * @throws ProcessingException if any plane fails or the thread is interrupted
+	 */
+	public ImagePlus process(ImagePlus image) throws ProcessingException {
+		final int nSlices = image.getNSlices();
+		final int nFrames = image.getNFrames();
+		final int nChannels = image.getBitDepth() == 24 ? 3 : image.getNChannels();
+		// Build the anchors and metas shared by every plane
+		final Preprocessing preparation = new Preprocessing(PRE);
+		final int[] shape = {image.getHeight(), image.getWidth(), nChannels};
+		if (!preparation.prepare(shape, false))
+			throw new ProcessingException(preparation.error());
+		final MemoryEstimate estimate = preparation.estimateMemory(shape, image.getBitDepth());
+		if (estimate == null)
+			throw new ProcessingException(preparation.error());
+		final ArrayList<CompletableFuture<ImageProcessor>> planes = new ArrayList<CompletableFuture<ImageProcessor>>();
+		final ImageStack labels = new ImageStack(image.getWidth(), image.getHeight());
+		try {
+			admission:
+			for (int t = 0; t < nFrames; t ++) {
+				for (int z = 0; z < nSlices; z ++) {
+					// The output of the planes is always sparse, only that memory is reserved
+					final AdmissionScheduler.Ticket ticket = SCHEDULER.admit(estimate, true);
+					// Stop admitting planes once one of them failed
+					for (CompletableFuture<ImageProcessor> plane : planes) {
+						if (plane.isCompletedExceptionally()) {
+							ticket.close();
+							break admission;
+						}
+					}
+					final int zz = z;
+					final int tt = t;
+					final CompletableFuture<ImageProcessor> plane = ASYNC.submit(() -> processPlane(extractPlane(image, zz, tt)), 0, null);
+					plane.whenComplete((r, ex) -> ticket.close());
+					planes.add(plane);
+				}
+			}
+			for (CompletableFuture<ImageProcessor> plane : planes)
+				labels.addSlice(plane.get());
+		} catch (InterruptedException ex) {
+			for (CompletableFuture<ImageProcessor> plane : planes)
+				plane.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new ProcessingException("The processing of the hyperstack was interrupted.", ex);
+		} catch (ExecutionException ex) {
+			for (CompletableFuture<ImageProcessor> plane : planes)
+				plane.cancel(true);
+			if (ex.getCause() instanceof ProcessingException)
+				throw (ProcessingException) ex.getCause();
+			throw new ProcessingException(String.valueOf(ex.getCause().getMessage()), ex.getCause());
+		}
+		final ImagePlus result = new ImagePlus(image.getShortTitle() + " labels", labels);
+		result.setDimensions(1, nSlices, nFrames);
+		result.setOpenAsHyperStack(nSlices > 1 && nFrames > 1);
+		result.setCalibration(image.getCalibration());
+		return result;
+	}
+	
+	/**
+	 * Run one plane through the pre-processing, the model and the post-processing.
+	 * If the outputs of the model for the plane are cached, only the post-processing runs
+	 * @param plane: image with the channels of one (z, t) position
+	 * @return labels of the instances found in the plane
+	 * @throws ProcessingException if any of the steps fails
+	 */
+	private ImageProcessor processPlane(ImagePlus plane) throws ProcessingException {
+		// Planes still queued when the hyperstack is cancelled are not started
+		if (Thread.currentThread().isInterrupted())
+			throw new ProcessingException("The processing of the hyperstack was interrupted.");
+		final String key = CACHE == null ? null : ResultCache.key(plane, CONFIG);
+		HashMap<String, String> runtimeParameters = new HashMap<String, String>();
+		HashMap<String, Object> outputs = CACHE == null ? null : CACHE.load(key, runtimeParameters);
+		if (outputs == null) {
+			final Preprocessing pre = new Preprocessing(PRE);
+			// Every plane has the same runtime parameters, they are handed over directly
+			pre.setConfigRewrite(false);
+			final HashMap<String, Object> inputs = new HashMap<String, Object>();
+			inputs.put(pre.getInputImageName(), plane);
+			final HashMap<String, Object> tensors = pre.deepimagejPreprocessing(inputs);
+			if (tensors == null)
+				throw new ProcessingException(pre.error());
+			outputs = MODEL.apply(tensors);
+			if (outputs == null)
+				throw new ProcessingException("The model did not return any output.");
+			runtimeParameters = pre.getRuntimeParameters();
+			if (CACHE != null) {
+				try {
+					CACHE.store(key, outputs, runtimeParameters);
+				} catch (IOException ex) {
+					// The cache is only an optimisation, keep processing without it
+					IJ.log("The outputs of the model could not be cached: " + ex.getMessage());
+				}
+			}
+		}
+		final ShortProcessor labels = new ShortProcessor(plane.getWidth(), plane.getHeight());
+		// Planes without objects are not an error, they just have no labels
+		if (POST.countDetections(outputs) == 0)
+			return labels;
+		final PostProcessing post = new PostProcessing(POST);
+		post.setRuntimeParameters(runtimeParameters);
+		post.setOriginalImage(plane);
+		post.setOutputMode("instances");
+		final HashMap<String, Object> results = post.deepimagejPostprocessing(outputs);
+		if (results == null)
+			throw new ProcessingException(post.error());
+		paintLabels((DetectedInstance[]) results.get("instances"), labels);
+		return labels;
+	}
+	
+	/**
+	 * Paint the instances into a label image. Instances come sorted by score, so
+	 * where two of them overlap the pixel keeps the label of the first one
+	 * @param instances: instances found in the plane
+	 * @param labels: image where the instance i is painted with the value i + 1
+	 */
+	private static void paintLabels(DetectedInstance[] instances, ShortProcessor labels) {
+		final short[] pixels = (short[]) labels.getPixels();
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+		for (DetectedInstance instance : instances) {
+			final byte[] mask = instance.getMask();
+			final int[] box = instance.getBox();
+			final int w = instance.getBoxWidth();
+			final short label = (short) (instance.getIndex() + 1);
+			for (int y = Math.max(0, box[0]); y < Math.min(height, box[2]); y ++) {
+				for (int x = Math.max(0, box[1]); x < Math.min(width, box[3]); x ++) {
+					if (mask[(y - box[0]) * w + x - box[1]] != 0 && pixels[y * width + x] == 0)
+						pixels[y * width + x] = label;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the channels of one (z, t) position as an independent image. The pixels
+	 * are shared with the hyperstack, the pre-processing does not modify them
+	 * @param image: hyperstack
+	 * @param z: index of the slice
+	 * @param t: index of the frame
+	 * @return image with the channels of the plane
+	 */
+	private static ImagePlus extractPlane(ImagePlus image, int z, int t) {
+		final ImageStack stack = image.getStack();
+		final ImageStack planeStack = new ImageStack(image.getWidth(), image.getHeight());
+		for (int c = 0; c < image.getNChannels(); c ++) {
+			planeStack.addSlice(stack.getProcessor(image.getStackIndex(c + 1, z + 1, t + 1)));
+		}
+		final ImagePlus plane = new ImagePlus(image.getShortTitle() + " z" + (z + 1) + " t" + (t + 1), planeStack);
+		plane.setDimensions(image.getNChannels(), 1, 1);
+		plane.setCalibration(image.getCalibration());
+		return plane;
+	}
+}
@@ -39,32 +39,103 @@ package maskrcnn;
 import ij.process.ImageProcessor;
 import java.util.Set;
 import ij.IJ;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
 import ij.measure.ResultsTable;
+import ij.plugin.frame.RoiManager;
 import ij.ImagePlus;
 
-import java.io.BufferedReader;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import deepimagej.processing.PostProcessingInterface;
+import maskrcnn.utils.CellMaskStorage;
+import maskrcnn.utils.DetectedInstance;
+import maskrcnn.utils.FileInstanceSink;
+import maskrcnn.utils.InstanceCrops;
+import maskrcnn.utils.InstanceListener;
+import maskrcnn.utils.InstanceMeasurements;
+import maskrcnn.utils.InstanceSink;
+import maskrcnn.utils.MaskContour;
+import maskrcnn.utils.MetricsSink;
+import maskrcnn.utils.MoldGeometry;
+import maskrcnn.utils.ProcessingMetrics;
+import maskrcnn.utils.RasterCache;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
 
 
 public class PostProcessing implements PostProcessingInterface {
 	/**
-	 * Dictionary containing all the parameters parsed from the file
+	 * Dictionary containing all the parameters parsed from the file. It belongs to
+	 * each instance, so requests with different config files do not mix their parameters
 	 */
-	private static HashMap<String, String> CONFIG = new HashMap<String, String>();
+	private HashMap<String, String> CONFIG = new HashMap<String, String>();
 	/**
 	 * Path to the other pre-processing file provided in deepImageJ. If it contains 
 	 * either a .ijm or .txt file it will be parsed to find parameters
 	 */
-	private static String CONFIG_FILE_PATH;
+	private String CONFIG_FILE_PATH;
 	/**
-	 * Attribute to communicate errors to DeepImageJ plugins
+	 * Attribute to communicate errors to DeepImageJ plugins. It belongs to each
+	 * instance, so concurrent requests do not overwrite each other's errors
 	 */
-	private static String ERROR = "";
+	private String ERROR = "";
+	/**
+	 * Optional destination of the metrics collected at each invocation
+	 */
+	private static MetricsSink METRICS_SINK;
+	/**
+	 * Time spent parsing the config file, reported in the next invocation
+	 */
+	private long CONFIG_PARSE_NANOS = -1;
+	/**
+	 * Metrics of the last invocation of the post-processing
+	 */
+	private ProcessingMetrics METRICS = ProcessingMetrics.DISABLED;
+	/**
+	 * Runtime parameters given directly instead of through the config file
+	 */
+	private HashMap<String, String> RUNTIME_PARAMETERS = null;
+	/**
+	 * Whether the current invocation is a synthetic warm-up pass started by {@link #prepare(int[], boolean)}
+	 */
+	private boolean WARMING_UP = false;
+	/**
+	 * Image given to the model, used to measure the intensity of each instance
+	 */
+	private ImagePlus ORIGINAL_IMAGE = null;
+	/**
+	 * Destination of the instances given programmatically, it is not closed by the post-processing
+	 */
+	private InstanceSink INSTANCE_SINK = null;
+	/**
+	 * Listeners that receive each instance as soon as it is ready
+	 */
+	private final List<InstanceListener> INSTANCE_LISTENERS = new CopyOnWriteArrayList<InstanceListener>();
+	/**
+	 * Output mode given programmatically, it overrides the parameter 'OUTPUT_MODE' of the config file
+	 */
+	private String OUTPUT_MODE = null;
+
+	public PostProcessing() {
+	}
+	
+	/**
+	 * Create a post-processing with the config already read by another instance,
+	 * without parsing the config file again
+	 * @param configured: post-processing whose config files were already set
+	 */
+	public PostProcessing(PostProcessing configured) {
+		CONFIG = configured.CONFIG;
+		CONFIG_FILE_PATH = configured.CONFIG_FILE_PATH;
+		ERROR = configured.ERROR;
+	}
 
 	/**
 	 * Return error that stopped pre-processing to DeepImageJ
@@ -74,6 +145,27 @@ public class PostProcessing implements PostProcessingInterface {
 		return ERROR;
 	}
 	
+	/**
+	 * Set where the per-stage metrics are published after each invocation.
+	 * Setting a sink enables the collection of metrics even if the config file
+	 * does not contain 'COLLECT_METRICS = true', and switches on the measurement
+	 * of the allocated bytes for the whole JVM
+	 * @param sink: destination of the metrics, null to remove it
+	 */
+	public static void setMetricsSink(MetricsSink sink) {
+		METRICS_SINK = sink;
+		if (sink != null)
+			ProcessingMetrics.enableAllocationMeasurement();
+	}
+	
+	/**
+	 * @return timing and allocation metrics of the last invocation. They are only
+	 * filled if 'COLLECT_METRICS = true' in the config file or a sink was set
+	 */
+	public ProcessingMetrics getMetrics() {
+		return METRICS;
+	}
+	
 	/**
 	 * This method does the equivalent to unmold_detections at:
 	 * https://github.com/matterport/Mask_RCNN/blob/3deaec5d902d16e1daf56b62d5971d428dc920bc/mrcnn/model.py#L2417
@@ -86,11 +178,20 @@ public class PostProcessing implements PostProcessingInterface {
 	 * @return this method has to return a HashMap with the post-processing results.
 	 */
     public HashMap<String, Object> deepimagejPostprocessing(final HashMap<String, Object> map) {
+        METRICS = ProcessingMetrics.create("postprocessing", metricsEnabled());
+        if (CONFIG_PARSE_NANOS >= 0 && METRICS.isEnabled()) {
+        	METRICS.record("config parsing", CONFIG_PARSE_NANOS, -1);
+        	CONFIG_PARSE_NANOS = -1;
+        }
         final Set<String> keys = map.keySet();
         ImagePlus mask = null;
         ResultsTable detections = null;
+        ImagePlus original = ORIGINAL_IMAGE;
         for (final String k : keys) {
-            if (k.equals(CONFIG.get("MRCNN_MASK"))) {
+            if (k.equals(CONFIG.get("INPUT_IMAGE")) && map.get(k) instanceof ImagePlus) {
+            	original = (ImagePlus) map.get(k);
+            }
+            else if (k.equals(CONFIG.get("MRCNN_MASK"))) {
                 mask = (ImagePlus) map.get(k);
             }
             else {
@@ -101,24 +202,31 @@ public class PostProcessing implements PostProcessingInterface {
             }
         }
         // Get the number of objects detected by the net
+        METRICS.start("detection parsing");
         final int nDetections = getNDetections(detections);
         // If nothing was detected just return null
         if (nDetections == 0) {
         	ERROR = "No object was detected in the input image.";
+        	METRICS.stop();
+        	publishMetrics();
         	return null;
         }
         // Get the detected bounding boxes from the output table in normalised coodinates
         final double[][] boxes = new double[nDetections][4];
         // Get the class IDs of the detected objects
         final int[] classIds = new int[nDetections];
+        final double[] scores = detections.getLastColumn() >= 5 ? new double[nDetections] : null;
         for (int i = 0; i < nDetections; ++i) {
             boxes[i][0] = Double.parseDouble(detections.getStringValue(0, i));
             boxes[i][1] = Double.parseDouble(detections.getStringValue(1, i));
             boxes[i][2] = Double.parseDouble(detections.getStringValue(2, i));
             boxes[i][3] = Double.parseDouble(detections.getStringValue(3, i));
             classIds[i] = Integer.parseInt(detections.getStringValue(4, i));
+            if (scores != null)
+            	scores[i] = detections.getValueAsDouble(5, i);
         }
         // Select the masks corresponding to the objects detected
+        METRICS.start("mask selection");
         final ImagePlus selectedMasks = IJ.createHyperStack("Processed " + mask.getTitle(), mask.getWidth(), mask.getHeight(), 1, nDetections, 1, 32);
         int z = 0;
         int[] array;
@@ -132,15 +240,14 @@ public class PostProcessing implements PostProcessingInterface {
         }
 
         // String get the needed parameters from the config file
-        String originalShapeString = CONFIG.get("ORIGINAL_IMAGE_SIZE");
-        String processingShapeString = CONFIG.get("PROCESSING_IMAGE_SIZE");
-        String windowString = CONFIG.get("WINDOW_SIZE");
+        METRICS.start("box conversion");
+        String originalShapeString = getRuntimeParameter("ORIGINAL_IMAGE_SIZE");
+        String processingShapeString = getRuntimeParameter("PROCESSING_IMAGE_SIZE");
+        String windowString = getRuntimeParameter("WINDOW_SIZE");
         // Get an float arrays from the strings
         float[] originalShape = str2array(originalShapeString);
         float[] processingShape = str2array(processingShapeString);
         float[] window = str2array(windowString);
-        
-        final ImagePlus finalMasks = IJ.createHyperStack("finalMask", (int) Math.floor(originalShape[1]), (int) Math.floor(originalShape[0]), 1, nDetections, 1, 32);
         // Denormalise the bounding boxes to pixel coordinates in the processing shape
         window = normBoxes(window, processingShape);
         float[] shift = {window[0], window[1], window[0], window[1]};
@@ -156,39 +263,506 @@ public class PostProcessing implements PostProcessingInterface {
         	}
         }
         
-        // Set the interpolation method
-        selectedMasks.getProcessor().setInterpolationMethod(2);
         // Get the final boxes that indicate where is the mask located in the image
         final int[][] scaledBoxes = denormBoxes(boxes, originalShape);
-        // Paste the mask into their corresponding places
-        for (int j = 0; j < classIds.length; ++j) {
-            selectedMasks.setPositionWithoutUpdate(1, j + 1, 1);
-            finalMasks.setPositionWithoutUpdate(1, j + 1, 1);
-            ImageProcessor selectedMaskIp = selectedMasks.getProcessor();
-            final ImageProcessor finalMaskIp = finalMasks.getProcessor();
-            final int newHeight = scaledBoxes[j][2] - scaledBoxes[j][0];
-            final int newWidth = scaledBoxes[j][3] - scaledBoxes[j][1];
-            selectedMaskIp = selectedMaskIp.resize(newWidth, newHeight);
-            int xSelected = -1;
-            for (int xFinal = scaledBoxes[j][1]; xFinal < scaledBoxes[j][3]; ++xFinal) {
-                ++xSelected;
-                int ySelected = -1;
-                for (int yFinal = scaledBoxes[j][0]; yFinal < scaledBoxes[j][2]; ++yFinal) {
-                    ++ySelected;
-                    final double val = selectedMaskIp.getPixelValue(xSelected, ySelected);
-                    if (val >= 0.5) {
-                        finalMaskIp.putPixelValue(xFinal, yFinal, 1.0);
-                    }
-                }
-            }
+        final String outputMode = OUTPUT_MODE != null ? OUTPUT_MODE : CONFIG.get("OUTPUT_MODE");
+        if (outputMode != null && !outputMode.equalsIgnoreCase("masks") && !outputMode.equalsIgnoreCase("rois")
+        		&& !outputMode.equalsIgnoreCase("instances")) {
+        	ERROR = "The config file information for the parameter 'OUTPUT_MODE' is incorrect.\n"
+        			+ "The value provided is '" + outputMode + "'. However the only values allowed are: 'masks', 'rois' and 'instances'.";
+        	METRICS.stop();
+        	return null;
+        }
+        if (isInterrupted()) {
+        	METRICS.stop();
+        	return null;
         }
+        // Fixed size crops of the instances for a downstream model
+        Img<FloatType> crops = null;
+        if (!WARMING_UP && isInstanceCropSet()) {
+        	METRICS.start("instance crops");
+        	try {
+        		crops = createInstanceCrops(original, scaledBoxes);
+        	} catch (IllegalArgumentException ex) {
+        		ERROR = ex.getMessage();
+        		METRICS.stop();
+        		return null;
+        	}
+        }
+        final int finalWidth = (int) Math.floor(originalShape[1]);
+        final int finalHeight = (int) Math.floor(originalShape[0]);
+        final String imageName = original == null ? mask.getTitle() : original.getTitle();
+        // Instances are published to the listeners in order of decreasing score
+        final int[] order = scoreOrder(scores, nDetections);
+        final boolean listen = !WARMING_UP && !INSTANCE_LISTENERS.isEmpty();
+        if ("rois".equalsIgnoreCase(outputMode)) {
+        	if (listen) {
+        		final DetectedInstance[] instances = new DetectedInstance[nDetections];
+        		for (int j = 0; j < nDetections; j ++) {
+        			instances[j] = new DetectedInstance(j, classIds[j], scores == null ? Double.NaN : scores[j], 
+        					scaledBoxes[j], selectedMasks.getStack().getProcessor(j + 1), finalWidth, finalHeight);
+        		}
+        		publishInstances(imageName, instances, order);
+        	}
+        	if (isInterrupted()) {
+        		METRICS.stop();
+        		return null;
+        	}
+        	// Only the outlines are needed, the full size masks are never created
+        	METRICS.start("contour extraction");
+        	final PolygonRoi[] rois = createRois(selectedMasks, scaledBoxes, classIds);
+        	METRICS.stop();
+        	mask.close();
+        	if (WARMING_UP)
+        		return new HashMap<String, Object>();
+        	if (!GraphicsEnvironment.isHeadless()) {
+        		final RoiManager rm = RoiManager.getRoiManager();
+        		for (PolygonRoi roi : rois)
+        			rm.addRoi(roi);
+        	}
+        	final HashMap<String, Object> outMap = new HashMap<String, Object>();
+        	outMap.put("ROIs", rois);
+        	outMap.put(detections.getTitle(), detections);
+        	if (crops != null)
+        		outMap.put("instance_crops", crops);
+        	publishMetrics();
+        	return outMap;
+        }
+        if ("instances".equalsIgnoreCase(outputMode)) {
+        	// Handles to the instances, each mask is rasterised when it is first requested
+        	final RasterCache cache = new RasterCache(getInstanceCacheSize());
+        	final DetectedInstance[] instances = new DetectedInstance[nDetections];
+        	for (int j = 0; j < nDetections; j ++) {
+        		instances[j] = new DetectedInstance(j, classIds[j], scores == null ? Double.NaN : scores[j], 
+        				scaledBoxes[j], selectedMasks.getStack().getProcessor(j + 1), finalWidth, finalHeight, cache);
+        	}
+        	METRICS.stop();
+        	mask.close();
+        	if (WARMING_UP) {
+        		instances[0].getMask();
+        		return new HashMap<String, Object>();
+        	}
+        	if (listen)
+        		publishInstances(imageName, instances, order);
+        	final HashMap<String, Object> outMap = new HashMap<String, Object>();
+        	outMap.put("instances", instances);
+        	outMap.put(detections.getTitle(), detections);
+        	if (crops != null)
+        		outMap.put("instance_crops", crops);
+        	publishMetrics();
+        	return outMap;
+        }
+        // When the instances are streamed to a sink the full size masks are not kept
+        final boolean configSink = INSTANCE_SINK == null && !WARMING_UP && isInstanceOutputSet();
+        InstanceSink sink = WARMING_UP ? null : INSTANCE_SINK;
+        if (configSink) {
+        	try {
+        		sink = FileInstanceSink.open(new File(CONFIG.get("INSTANCE_OUTPUT")), CONFIG.get("INSTANCE_OUTPUT_FORMAT"), true);
+        	} catch (IOException | IllegalArgumentException ex) {
+        		ERROR = "Cannot open the file where the instances are written ('INSTANCE_OUTPUT'):\n" + ex.getMessage();
+        		METRICS.stop();
+        		return null;
+        	}
+        }
+        // Masks too big for the heap are painted into disk cached cells instead
+        CellMaskStorage<?> cells = null;
+        if (sink == null) {
+        	try {
+        		cells = CellMaskStorage.create(CONFIG, finalWidth, finalHeight, nDetections);
+        	} catch (IllegalArgumentException ex) {
+        		ERROR = ex.getMessage();
+        		METRICS.stop();
+        		return null;
+        	}
+        }
+        final ImagePlus finalMasks = sink != null || cells != null ? null 
+        		: IJ.createHyperStack("finalMask", finalWidth, finalHeight, 1, nDetections, 1, 32);
+        // Paste the mask into their corresponding places, measuring each instance on the way
+        METRICS.start("mask pasting");
+        final boolean measure = "true".equalsIgnoreCase(CONFIG.get("MEASURE_INSTANCES"));
+        final InstanceMeasurements measurements = measure ? new InstanceMeasurements(nDetections) : null;
+        final ImageProcessor originalIp = measure && original != null ? original.getProcessor() : null;
+        final boolean pasting = finalMasks != null || cells != null || measure;
+        // The last mask is kept so the listeners, or the paste after the sink,
+        // get it without rasterising it again
+        final RasterCache lastMask = listen || (sink != null && pasting) ? new RasterCache(1) : null;
+        try {
+        	if (sink != null)
+        		sink.beginImage(imageName, finalWidth, finalHeight);
+        	if (listen)
+        		for (InstanceListener l : INSTANCE_LISTENERS)
+        			l.instancesStarted(imageName, finalWidth, finalHeight, nDetections);
+	        for (int k = 0; k < order.length; ++k) {
+	        	if (isInterrupted()) {
+	        		METRICS.stop();
+	        		return null;
+	        	}
+	        	final int j = order[k];
+	        	final DetectedInstance instance = new DetectedInstance(j, classIds[j], scores == null ? Double.NaN : scores[j], 
+	        			scaledBoxes[j], selectedMasks.getStack().getProcessor(j + 1), finalWidth, finalHeight, lastMask);
+	        	if (sink != null)
+	        		sink.accept(instance);
+	        	if (pasting)
+	        		paste(instance, finalMasks, cells, measurements, originalIp);
+	        	if (listen)
+	        		for (InstanceListener l : INSTANCE_LISTENERS)
+	        			l.instanceReady(instance, k);
+	        }
+	        if (listen)
+	        	for (InstanceListener l : INSTANCE_LISTENERS)
+	        		l.instancesFinished();
+	        if (sink != null)
+	        	sink.endImage();
+        } catch (IOException ex) {
+        	ERROR = "Cannot write the instances into the instance output:\n" + ex.getMessage();
+        	METRICS.stop();
+        	return null;
+        } finally {
+        	if (configSink)
+        		closeQuietly(sink);
+        }
+        METRICS.stop();
         mask.close();
-        finalMasks.show();
+        if (WARMING_UP) {
+        	if (finalMasks != null)
+        		finalMasks.close();
+        	return new HashMap<String, Object>();
+        }
         final HashMap<String, Object> outMap = new HashMap<String, Object>();
-        outMap.put(finalMasks.getTitle(), finalMasks);
+        if (finalMasks != null) {
+        	finalMasks.show();
+        	outMap.put(finalMasks.getTitle(), finalMasks);
+        } else if (cells != null) {
+        	outMap.put(cells.isLabels() ? "labels" : "finalMask", cells.getImg());
+        }
         outMap.put(detections.getTitle(), detections);
+        if (crops != null)
+        	outMap.put("instance_crops", crops);
+        if (measure) {
+        	final ResultsTable measurementsTable = measurements.toResultsTable(classIds, scores, 
+        			original == null ? null : original.getCalibration(), originalIp != null);
+        	measurementsTable.show("Measurements");
+        	outMap.put("Measurements", measurementsTable);
+        }
+        publishMetrics();
         return outMap;
     }
+    
+    /**
+     * Paste the mask of an instance into the full size outputs, measuring the
+     * instance on the way
+     * @param instance: detected instance
+     * @param finalMasks: stack with one full size mask per instance, null if it is not created
+     * @param cells: disk cached masks, null if they are not used
+     * @param measurements: measurements of the instances, null if they are not measured
+     * @param originalIp: original image for the mean intensity, null if not available
+     */
+    private static void paste(DetectedInstance instance, ImagePlus finalMasks, CellMaskStorage<?> cells,
+    		InstanceMeasurements measurements, ImageProcessor originalIp) {
+    	final int j = instance.getIndex();
+    	final int[] box = instance.getBox();
+    	final int finalWidth = instance.getImageWidth();
+    	final int finalHeight = instance.getImageHeight();
+    	final byte[] raster = instance.getMask();
+    	final ImageProcessor finalMaskIp = finalMasks == null ? null : finalMasks.getStack().getProcessor(j + 1);
+    	final int boxWidth = instance.getBoxWidth();
+    	for (int y = 0; y < instance.getBoxHeight(); y ++) {
+    		final int yFinal = box[0] + y;
+    		for (int x = 0; x < boxWidth; x ++) {
+    			if (raster[y * boxWidth + x] == 0)
+    				continue;
+    			final int xFinal = box[1] + x;
+    			if (finalMaskIp != null)
+    				finalMaskIp.putPixelValue(xFinal, yFinal, 1.0);
+    			if (cells != null)
+    				cells.paint(j, xFinal, yFinal);
+    			if (measurements != null && xFinal >= 0 && yFinal >= 0 && xFinal < finalWidth && yFinal < finalHeight)
+    				measurements.add(j, xFinal, yFinal, originalIp == null ? 0 : originalIp.getPixelValue(xFinal, yFinal));
+    		}
+    	}
+    }
+    
+    /**
+     * Publish instances that are already complete to every listener
+     * @param imageName: name of the image
+     * @param instances: detected instances, in the order of the detections
+     * @param order: indices of the instances in order of decreasing score
+     */
+    private void publishInstances(String imageName, DetectedInstance[] instances, int[] order) {
+    	final DetectedInstance first = instances[0];
+    	for (InstanceListener l : INSTANCE_LISTENERS) {
+    		l.instancesStarted(imageName, first.getImageWidth(), first.getImageHeight(), instances.length);
+    		for (int k = 0; k < order.length; k ++)
+    			l.instanceReady(instances[order[k]], k);
+    		l.instancesFinished();
+    	}
+    }
+    
+    /**
+     * Detections are usually sorted by the model, but the order is not guaranteed
+     * @param scores: score of each detection, null if the table has no scores
+     * @param n: number of detections
+     * @return indices of the detections in order of decreasing score. Ties and
+     * 	detections without score keep the order of the model
+     */
+    private static int[] scoreOrder(final double[] scores, int n) {
+    	final Integer[] boxed = new Integer[n];
+    	for (int i = 0; i < n; i ++)
+    		boxed[i] = i;
+    	if (scores != null)
+    		Arrays.sort(boxed, (a, b) -> Double.compare(Double.isNaN(scores[b]) ? Double.NEGATIVE_INFINITY : scores[b], 
+    				Double.isNaN(scores[a]) ? Double.NEGATIVE_INFINITY : scores[a]));
+    	final int[] order = new int[n];
+    	for (int i = 0; i < n; i ++)
+    		order[i] = boxed[i];
+    	return order;
+    }
+    
+    /**
+     * Create the outline of each detected object from its low resolution mask.
+     * The contour is extracted at 0.5 with marching squares on the mask output by
+     * the model and its vertices are then mapped into the bounding box of the
+     * object in the original image, the same box where the mask would be pasted
+     * @param selectedMasks: stack with the mask of each detection
+     * @param scaledBoxes: bounding box of each detection in pixel coordinates of 
+     * 	the original image, as [y1, x1, y2, x2]
+     * @param classIds: class of each detection
+     * @return one polygon per detection with a non-empty mask
+     */
+    private static PolygonRoi[] createRois(ImagePlus selectedMasks, int[][] scaledBoxes, int[] classIds) {
+    	final int mw = selectedMasks.getWidth();
+    	final int mh = selectedMasks.getHeight();
+    	final ArrayList<PolygonRoi> rois = new ArrayList<PolygonRoi>();
+    	for (int j = 0; j < classIds.length; j ++) {
+    		final float[] pixels = (float[]) selectedMasks.getStack().getProcessor(j + 1).convertToFloatProcessor().getPixels();
+    		final float[][] contour = MaskContour.largestContour(pixels, mw, mh, 0.5f);
+    		if (contour == null)
+    			continue;
+    		final float sx = (scaledBoxes[j][3] - scaledBoxes[j][1]) / (float) mw;
+    		final float sy = (scaledBoxes[j][2] - scaledBoxes[j][0]) / (float) mh;
+    		final float[] xs = contour[0];
+    		final float[] ys = contour[1];
+    		// The centre of mask pixel i is the centre of the pixels it covers once resized
+    		for (int k = 0; k < xs.length; k ++) {
+    			xs[k] = scaledBoxes[j][1] + (xs[k] + 0.5f) * sx;
+    			ys[k] = scaledBoxes[j][0] + (ys[k] + 0.5f) * sy;
+    		}
+    		final PolygonRoi roi = new PolygonRoi(xs, ys, Roi.POLYGON);
+    		roi.setName("Detection " + (j + 1) + " (class " + classIds[j] + ")");
+    		rois.add(roi);
+    	}
+    	return rois.toArray(new PolygonRoi[rois.size()]);
+    }
+    
+    /**
+     * Stream every instance into a sink as soon as it is unmolded, instead of
+     * pasting it into a full size mask stack. The mask stack is not returned while
+     * a sink is set. The sink is not closed by the post-processing.
+     * Instances can also be streamed into a file with the parameters 'INSTANCE_OUTPUT'
+     * and 'INSTANCE_OUTPUT_FORMAT' of the config file
+     * @param sink: destination of the instances, null to go back to the mask stack
+     */
+    public void setInstanceSink(InstanceSink sink) {
+    	INSTANCE_SINK = sink;
+    }
+    
+    /**
+     * Add a listener that receives each instance as soon as it is ready, in order
+     * of decreasing score, so the results can be displayed progressively
+     * @param listener: listener of the instances
+     */
+    public void addInstanceListener(InstanceListener listener) {
+    	INSTANCE_LISTENERS.add(listener);
+    }
+    
+    /**
+     * @param listener: listener added with {@link #addInstanceListener(InstanceListener)}
+     */
+    public void removeInstanceListener(InstanceListener listener) {
+    	INSTANCE_LISTENERS.remove(listener);
+    }
+    
+    /**
+     * Override the parameter 'OUTPUT_MODE' of the config file for this instance, for
+     * example to avoid the full size masks when an {@link maskrcnn.utils.AdmissionScheduler}
+     * admits the image with a sparse output
+     * @param outputMode: 'masks', 'rois' or 'instances', null to use the config file
+     */
+    public void setOutputMode(String outputMode) {
+    	OUTPUT_MODE = outputMode;
+    }
+    
+    /**
+     * @return number of masks memoised by the instances returned with 'OUTPUT_MODE = instances',
+     * 	given by the parameter 'INSTANCE_CACHE_SIZE'
+     */
+    private int getInstanceCacheSize() {
+    	try {
+    		return Integer.parseInt(CONFIG.get("INSTANCE_CACHE_SIZE"));
+    	} catch (Exception ex) {
+    		return 32;
+    	}
+    }
+    
+    /**
+     * @return whether the config file asks for the crops of the instances
+     */
+    private boolean isInstanceCropSet() {
+    	final String size = CONFIG.get("INSTANCE_CROP_SIZE");
+    	return size != null && !size.equals("") && !size.equals("None");
+    }
+    
+    /**
+     * Crop every instance from the original image with the size, margin and
+     * sampling ratio given in the config file
+     * @param original: image given to the model
+     * @param scaledBoxes: bounding box of each detection in pixel coordinates of 
+     * 	the original image, as [y1, x1, y2, x2]
+     * @return tensor with shape [N, height, width, channels]
+     * @throws IllegalArgumentException if the parameters are incorrect or the image is not available
+     */
+    private Img<FloatType> createInstanceCrops(ImagePlus original, int[][] scaledBoxes) {
+    	if (original == null)
+    		throw new IllegalArgumentException("The instance crops ('INSTANCE_CROP_SIZE') need the original image, "
+    				+ "which was not given to the post-processing.");
+    	final float[] size = str2array(CONFIG.get("INSTANCE_CROP_SIZE"));
+    	final double margin;
+    	final int samplingRatio;
+    	try {
+    		margin = Double.parseDouble(CONFIG.get("INSTANCE_CROP_MARGIN"));
+    		samplingRatio = Integer.parseInt(CONFIG.get("INSTANCE_CROP_SAMPLING"));
+    	} catch (NumberFormatException | NullPointerException ex) {
+    		throw new IllegalArgumentException("Cannot parse correctly the parameters 'INSTANCE_CROP_MARGIN' and 'INSTANCE_CROP_SAMPLING'.");
+    	}
+    	if (size == null || size.length > 2)
+    		throw new IllegalArgumentException("The config file information for the parameter 'INSTANCE_CROP_SIZE' is incorrect.\n"
+    				+ "The value provided is '" + CONFIG.get("INSTANCE_CROP_SIZE") + "'. It should be the height and width of the crops, "
+    				+ "for example '64, 64', or None.");
+    	final int cropHeight = (int) size[0];
+    	final int cropWidth = (int) size[size.length - 1];
+    	return InstanceCrops.extract(original, scaledBoxes, cropHeight, cropWidth, margin, samplingRatio);
+    }
+    
+    /**
+     * @return whether the config file asks to write the instances into a file
+     */
+    private boolean isInstanceOutputSet() {
+    	final String path = CONFIG.get("INSTANCE_OUTPUT");
+    	return path != null && !path.equals("") && !path.equals("None");
+    }
+    
+    /**
+     * Close a sink ignoring any error, used when the post-processing already failed
+     * or the instances were already written
+     * @param sink: sink to close
+     */
+    private static void closeQuietly(InstanceSink sink) {
+    	try {
+    		sink.close();
+    	} catch (IOException ex) {
+    		// The error that matters was already reported
+    	}
+    }
+    
+    /**
+     * Set the image given to the model, so the mean intensity of each instance can
+     * be measured when 'MEASURE_INSTANCES = true'. The image can also be passed in the
+     * map of the post-processing, with the key given by 'INPUT_IMAGE'
+     * @param image: original image, null to not measure intensities
+     */
+    public void setOriginalImage(ImagePlus image) {
+    	ORIGINAL_IMAGE = image;
+    }
+    
+    /**
+     * Give the runtime parameters of the image directly, instead of reading them
+     * from the config file rewritten by the pre-processing. The values given here
+     * take precedence over the ones in the config file
+     * @param params: map with the keys 'WINDOW_SIZE', 'ORIGINAL_IMAGE_SIZE' and 
+     * 	'PROCESSING_IMAGE_SIZE', as returned by {@link Preprocessing#getRuntimeParameters()}.
+     * 	Null to go back to the config file
+     */
+    public void setRuntimeParameters(HashMap<String, String> params) {
+    	RUNTIME_PARAMETERS = params;
+    }
+    
+    /**
+     * @param key: name of the runtime parameter
+     * @return the value given with {@link #setRuntimeParameters(HashMap)} or, if
+     * 	there is none, the one in the config file
+     */
+    private String getRuntimeParameter(String key) {
+    	if (RUNTIME_PARAMETERS != null && RUNTIME_PARAMETERS.get(key) != null)
+    		return RUNTIME_PARAMETERS.get(key);
+    	return CONFIG.get(key);
+    }
+    
+    /**
+     * Validate the config file and run a synthetic detection through the whole
+     * post-processing, so the classes are loaded and the JIT has compiled the
+     * mask pasting loops before the first real image arrives. The runtime
+     * parameters of the expected shape are computed here, so the warm-up does not
+     * depend on the config file having been rewritten by the pre-processing.
+     * {@link #setConfigFiles(ArrayList)} has to be called before.
+     * @param expectedShape: shape of the images that are going to be processed,
+     * 	as [height, width, channels]
+     * @param warmUp: whether to run the synthetic warm-up pass
+     * @return true if everything was prepared, false otherwise. The reason is given by {@link #error()}
+     */
+    public boolean prepare(int[] expectedShape, boolean warmUp) {
+    	if (CONFIG == null || CONFIG.isEmpty()) {
+    		ERROR = "The config file has to be provided before preparing the post-processing.";
+    		return false;
+    	}
+    	if (CONFIG.get("MRCNN_MASK") == null || CONFIG.get("MRCNN_DETECTION") == null) {
+    		ERROR = "The config file should contain the parameters 'MRCNN_MASK' and 'MRCNN_DETECTION'\n"
+    				+ "with the names of the outputs of the model.";
+    		return false;
+    	}
+    	final int h = expectedShape[0];
+    	final int w = expectedShape[1];
+    	final int nChannels = expectedShape.length > 2 ? expectedShape[2] : 1;
+    	final MoldGeometry geometry;
+    	final int nClasses;
+    	try {
+    		geometry = MoldGeometry.compute(h, w, Integer.parseInt(CONFIG.get("IMAGE_MIN_DIM")),
+    				Float.parseFloat(CONFIG.get("IMAGE_MIN_SCALE")), Integer.parseInt(CONFIG.get("IMAGE_MAX_DIM")),
+    				CONFIG.get("IMAGE_RESIZE_MODE"));
+    		nClasses = Integer.parseInt(CONFIG.get("NUM_CLASSES"));
+    	} catch (Exception ex) {
+    		ERROR = "Cannot parse correctly the parameters 'IMAGE_MIN_DIM', 'IMAGE_MIN_SCALE',\n"
+    				+ "'IMAGE_MAX_DIM', 'IMAGE_RESIZE_MODE' and 'NUM_CLASSES' from the config file.";
+    		return false;
+    	}
+    	if (!warmUp)
+    		return true;
+    	final HashMap<String, String> previous = RUNTIME_PARAMETERS;
+    	final HashMap<String, String> params = new HashMap<String, String>();
+    	params.put("WINDOW_SIZE", Arrays.toString(geometry.getWindow()));
+    	params.put("ORIGINAL_IMAGE_SIZE", Arrays.toString(new float[] {h, w, nChannels}));
+    	params.put("PROCESSING_IMAGE_SIZE", Arrays.toString(new float[] {geometry.getHeight(), geometry.getWidth(), nChannels}));
+    	// One detection covering the centre of the image, with an all-ones mask
+    	final ResultsTable detections = new ResultsTable();
+    	detections.incrementCounter();
+    	detections.addValue(0, 0.25);
+    	detections.addValue(1, 0.25);
+    	detections.addValue(2, 0.75);
+    	detections.addValue(3, 0.75);
+    	detections.addValue(4, 1);
+    	detections.addValue(5, 1);
+    	final ImagePlus mask = IJ.createImage("warm-up", "32-bit white", 28, 28, Math.max(nClasses, 2), 1, 1);
+    	final HashMap<String, Object> outputs = new HashMap<String, Object>();
+    	outputs.put(CONFIG.get("MRCNN_MASK"), mask);
+    	outputs.put(CONFIG.get("MRCNN_DETECTION"), detections);
+    	RUNTIME_PARAMETERS = params;
+    	WARMING_UP = true;
+    	try {
+    		return deepimagejPostprocessing(outputs) != null;
+    	} finally {
+    		WARMING_UP = false;
+    		RUNTIME_PARAMETERS = previous;
+    	}
+    }
 
     /**
 	 * Auxiliary method to be able to change some post-processing parameters without
@@ -200,6 +774,7 @@ public class PostProcessing implements PostProcessingInterface {
 	 * can then be selected by the name 
 	 */
     public void setConfigFiles(ArrayList<String> configFiles) {
+	    	ERROR = "";
 	    	for (String ff : configFiles) {
 	    		String fileName = ff.substring(ff.lastIndexOf(File.separator) + 1);
 	    		if (fileName.contentEquals("config.ijm")) {
@@ -221,9 +796,30 @@ public class PostProcessing implements PostProcessingInterface {
 	    	}
 	    	// Parse parameters from the config file
 	    	// Parameters are saved in the HashMap 'config'
+	    	long start = System.nanoTime();
 	    	getParameters(CONFIG_FILE_PATH);
+	    	CONFIG_PARSE_NANOS = System.nanoTime() - start;
 	    }
     
+    /**
+     * Metrics are collected if a sink has been set or if the config file contains
+     * the parameter 'COLLECT_METRICS = true'
+     * @return whether the metrics should be collected
+     */
+    private boolean metricsEnabled() {
+    	if (METRICS_SINK != null)
+    		return true;
+    	return CONFIG != null && "true".equalsIgnoreCase(CONFIG.get("COLLECT_METRICS"));
+    }
+    
+    /**
+     * Send the metrics of the current invocation to the sink, if there is any
+     */
+    private void publishMetrics() {
+    	if (METRICS_SINK != null && METRICS.isEnabled())
+    		METRICS_SINK.publish(METRICS);
+    }
+    
     /**
      * Parse parameters from a file provided in the plugin.
      * This method will try to find if there is either a .ijm or .txt file provided for
@@ -235,29 +831,8 @@ public class PostProcessing implements PostProcessingInterface {
      * @param parametersFile: file containing parameters needed for post-processing provided in the plugin
      */
     public void getParameters(String parametersFile) {
-    	// Initialise the parameters dictionary
-    	CONFIG = new HashMap<String, String>();
-    	File configFile = new File(parametersFile);
-    	// Key that is used to know where is each parameter
-    	String flag = "PARAMETER:";
-    	String flag2 = "*";
-    	String separator = "=";
-    	// Read the file line by line
-    	try (BufferedReader br = new BufferedReader(new FileReader(configFile))) {
-    	    String line = br.readLine().trim();
-    	    while (line != null) {
-    	    	line = line.trim();
-    	       if (line.contains(flag) && line.contains(flag2) && !line.contains("'" + flag + "'")) {
-    	    	   int paramStart = line.indexOf(flag) + flag.length();
-    	    	   int separatorInd = line.indexOf(separator);
-    	    	   // Parameter key and value are separated by '='
-    	    	   String key = line.substring(paramStart, separatorInd).trim();
-    	    	   String value = line.substring(separatorInd + 1).trim();
-    	    	   CONFIG.put(key, value);
-    	       }
-    	       line = br.readLine();
-    	    }
-    	    br.close();
+    	try {
+    		CONFIG = Preprocessing.readParameters(parametersFile);
     	} catch (IOException e) {
 			ERROR = "Could not access the config file provided during pre-preocessing:\n"
 					+ "- " + parametersFile;
@@ -266,6 +841,28 @@ public class PostProcessing implements PostProcessingInterface {
 		}
     }
     
+    /**
+     * Check whether the thread was interrupted, because the request was cancelled
+     * or reached its deadline, so the post-processing stops early
+     * @return true if the thread was interrupted, with the error set
+     */
+    private boolean isInterrupted() {
+    	if (!Thread.currentThread().isInterrupted())
+    		return false;
+    	ERROR = "The post-processing was interrupted.";
+    	return true;
+    }
+    
+    /**
+     * @param map: outputs of the model
+     * @return number of objects detected by the model, 0 if the detections table
+     * 	given by the parameter 'MRCNN_DETECTION' is not in the map
+     */
+    public int countDetections(final HashMap<String, Object> map) {
+    	final Object detections = CONFIG == null ? null : map.get(CONFIG.get("MRCNN_DETECTION"));
+    	return detections instanceof ResultsTable ? getNDetections((ResultsTable) detections) : 0;
+    }
+    
     /**
      * Get the number of objects detected by the model, that is rows that are non-zero
      * @param detections: ResultsTable with the output of the network
@@ -291,7 +888,7 @@ public class PostProcessing implements PostProcessingInterface {
      * @param imageShape: array with height and width of the modified image 
      * @return box normalized coordinates as [y1, x1, y2, x2]
      */
-    private static float[] normBoxes(float[] window, float[] imageShape) {
+    static float[] normBoxes(float[] window, float[] imageShape) {
     	float h = imageShape[0];
     	float w = imageShape[1];
     	float[] scale = {h - 1, w - 1, h - 1, w - 1}; 
@@ -312,7 +909,7 @@ public class PostProcessing implements PostProcessingInterface {
      * @return an array containing the vertices of each bounding
      * box in pixel coordinates
      */
-    private static int[][] denormBoxes(final double[][] boxes, final float[] shape) {
+    static int[][] denormBoxes(final double[][] boxes, final float[] shape) {
         final float h = shape[0];
         final float w = shape[1];
         final double[] scale = { h - 1, w - 1, h - 1, w - 1 };
@@ -36,12 +36,25 @@
  */
 package maskrcnn;
 
+import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
+import maskrcnn.utils.AdmissionScheduler;
+import maskrcnn.utils.AnchorCache;
+import maskrcnn.utils.DirectTensor;
 import maskrcnn.utils.ImageProcessingUtils;
 import maskrcnn.utils.ImgLib2Builder;
 import maskrcnn.utils.MaskRcnnAnchors;
+import maskrcnn.utils.MappedTiff;
 import maskrcnn.utils.MaskRcnnMetas;
+import maskrcnn.utils.MemoryEstimate;
+import maskrcnn.utils.MetricsSink;
+import maskrcnn.utils.MoldGeometry;
+import maskrcnn.utils.MoldedImageView;
+import maskrcnn.utils.ProcessingMetrics;
+import maskrcnn.utils.Resampler;
+import maskrcnn.utils.TensorPrecision;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.real.FloatType;
 
@@ -49,6 +62,7 @@ import java.util.Set;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -56,26 +70,66 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import deepimagej.processing.PreProcessingInterface;
 
 
 public class Preprocessing implements PreProcessingInterface {
 	/**
-	 * Dictionary containing all the parameters parsed from the file
+	 * Dictionary containing all the parameters parsed from the file. It belongs to
+	 * each instance, so requests with different config files do not mix their parameters
 	 */
-	private static HashMap<String, String> CONFIG = new HashMap<String, String>();
+	private HashMap<String, String> CONFIG = new HashMap<String, String>();
 	/**
 	 * Path to the other pre-processing file provided in deepImageJ. If it contains 
 	 * either a .ijm or .txt file it will be parsed to find parameters
 	 */
-	private static String CONFIG_FILE_PATH;
+	private String CONFIG_FILE_PATH;
 	/**
-	 * Attribute to communicate errors to DeepImageJ plugins
+	 * Attribute to communicate errors to DeepImageJ plugins. It belongs to each
+	 * instance, so concurrent requests do not overwrite each other's errors
 	 */
-	private static String ERROR = "";
+	private String ERROR = "";
+	/**
+	 * Optional destination of the metrics collected at each invocation
+	 */
+	private static MetricsSink METRICS_SINK;
+	/**
+	 * Time spent parsing the config file, reported in the next invocation
+	 */
+	private long CONFIG_PARSE_NANOS = -1;
+	/**
+	 * Metrics of the last invocation of the pre-processing
+	 */
+	private ProcessingMetrics METRICS = ProcessingMetrics.DISABLED;
+	/**
+	 * Maximum number of anchor and meta tensors kept in memory. Every new image
+	 * shape adds an entry, so only the most recently used ones are kept
+	 */
+	private static final int MAX_CACHED_TENSORS = 8;
+	/**
+	 * Anchor tensors already built in this JVM, by anchor cache key. Always
+	 * accessed synchronized on the map
+	 */
+	private static final Map<String, Img<FloatType>> ANCHOR_TENSORS = createTensorCache();
+	/**
+	 * Image meta tensors already built in this JVM, by shapes, window, scale and
+	 * number of classes. Always accessed synchronized on the map
+	 */
+	private static final Map<String, Img<FloatType>> META_TENSORS = createTensorCache();
+	/**
+	 * Whether the current invocation is a synthetic warm-up pass started by {@link #prepare(int[], boolean)}
+	 */
+	private boolean WARMING_UP = false;
+	/**
+	 * Whether the runtime parameters are written to the config file after each image
+	 */
+	private boolean REWRITE_CONFIG = true;
 	/**
 	 * Parameters corresponding to the Mask R-CNN pre-processing
 	 */
@@ -84,6 +138,52 @@ public class Preprocessing implements PreProcessingInterface {
 	private float[] PROCESSING_IMAGE_SIZE;
 	private double SCALE;
 	int NUM_CLASSES = 0;
+	/**
+	 * Element type of the image tensor. If it is null the image is returned as an
+	 * ImagePlus, otherwise it is returned directly as a tensor of this type
+	 */
+	private TensorPrecision INPUT_PRECISION;
+	/**
+	 * Whether the tensors are written into native-order direct buffers
+	 * ('TENSOR_MEMORY = direct') instead of heap ImgLib2 images
+	 */
+	private boolean DIRECT_TENSORS = false;
+	/**
+	 * Whether the image is molded with lazy ImgLib2 views ('PREPROCESSING_MODE = views')
+	 * instead of creating intermediate ImagePlus for each step
+	 */
+	private boolean LAZY_MOLDING = false;
+	/**
+	 * Whether the mean was already subtracted when the pixels were converted to float
+	 */
+	private boolean MEAN_SUBTRACTED = false;
+	/**
+	 * Number of channels expected by the model ('IMAGE_CHANNEL_COUNT'). Single-channel
+	 * images are broadcast to this number of channels when the tensor is written
+	 */
+	private int MODEL_CHANNELS = 1;
+	private int IMAGE_MIN_DIM = 0;
+	private double IMAGE_MIN_SCALE = 0;
+	private int IMAGE_MAX_DIM = 0;
+	private String IMAGE_RESIZE_MODE = null;
+	/**
+	 * Interpolation of the separable resampler ('RESIZE_METHOD'), null to use the resize of ImageJ
+	 */
+	private Resampler.Method RESIZE_METHOD = null;
+
+	public Preprocessing() {
+	}
+	
+	/**
+	 * Create a pre-processing with the config already read by another instance,
+	 * without parsing the config file again
+	 * @param configured: pre-processing whose config files were already set
+	 */
+	public Preprocessing(Preprocessing configured) {
+		CONFIG = configured.CONFIG;
+		CONFIG_FILE_PATH = configured.CONFIG_FILE_PATH;
+		ERROR = configured.ERROR;
+	}
 
 	/**
 	 * Return error that stopped pre-processing to DeepImageJ
@@ -93,6 +193,27 @@ public class Preprocessing implements PreProcessingInterface {
 		return ERROR;
 	}
 	
+	/**
+	 * Set where the per-stage metrics are published after each invocation.
+	 * Setting a sink enables the collection of metrics even if the config file
+	 * does not contain 'COLLECT_METRICS = true', and switches on the measurement
+	 * of the allocated bytes for the whole JVM
+	 * @param sink: destination of the metrics, null to remove it
+	 */
+	public static void setMetricsSink(MetricsSink sink) {
+		METRICS_SINK = sink;
+		if (sink != null)
+			ProcessingMetrics.enableAllocationMeasurement();
+	}
+	
+	/**
+	 * @return timing and allocation metrics of the last invocation. They are only
+	 * filled if 'COLLECT_METRICS = true' in the config file or a sink was set
+	 */
+	public ProcessingMetrics getMetrics() {
+		return METRICS;
+	}
+	
 	/**
 	 * This method replicates the Python pre-processing implemented at:
 	 * https://github.com/matterport/Mask_RCNN/blob/3deaec5d902d16e1daf56b62d5971d428dc920bc/mrcnn/model.py#L2417
@@ -101,7 +222,9 @@ public class Preprocessing implements PreProcessingInterface {
 	 * @param map: inputs to be pre-processed. It is provided by deepImageJ. The keys
 	 * correspond to name given by the model to the inputs. And the values are the images
 	 * selected to be applied to the model and any ResultsTable that is called as any of
-	 * the parameter inputs of the model
+	 * the parameter inputs of the model. The image can also be given as a File or Path:
+	 * uncompressed TIFF files are then read from a memory mapping without creating
+	 * an ImagePlus, and any other file is opened with ImageJ
 	 * @return this method has to return HashMap whose keys are the inputs to the model as
 	 * named by the model. The values types depend on the input type of tensor. For images,
 	 * they should correspond to an ImagePlus. FOr parameters, the output provided should be either
@@ -113,42 +236,146 @@ public class Preprocessing implements PreProcessingInterface {
 	 * See <a href="https://javadoc.io/doc/ai.djl/api/latest/ai/djl/ndarray/NDManager.html">https://javadoc.io/doc/ai.djl/api/latest/ai/djl/ndarray/NDManager.html</a>
 	 */
     public HashMap<String, Object> deepimagejPreprocessing(final HashMap<String, Object> inputMap) {
+        METRICS = ProcessingMetrics.create("preprocessing", metricsEnabled());
+        if (CONFIG_PARSE_NANOS >= 0 && METRICS.isEnabled()) {
+        	METRICS.record("config parsing", CONFIG_PARSE_NANOS, -1);
+        	CONFIG_PARSE_NANOS = -1;
+        }
         final Set<String> keys = inputMap.keySet();
-        ImagePlus im = null;
+        Object input = null;
         for (final String k : keys) {
             if (k.equals(CONFIG.get("INPUT_IMAGE"))) {
-                im = (ImagePlus) inputMap.get(k);
+                input = inputMap.get(k);
             }
         }
+        if (input instanceof Path)
+        	input = ((Path) input).toFile();
+        ImagePlus im;
+        if (input instanceof File) {
+        	// Uncompressed TIFF files are read from a memory mapping, without an ImagePlus
+        	final File file = (File) input;
+        	final MappedTiff tiff = openMappedTiff(file);
+        	if (tiff != null)
+        		return preprocessMappedTiff(tiff);
+        	METRICS.start("file decoding");
+        	im = IJ.openImage(file.getAbsolutePath());
+        	METRICS.stop();
+        	if (im == null) {
+        		ERROR = "The input image file '" + file + "' could not be opened.";
+        		return null;
+        	}
+        } else {
+        	im = (ImagePlus) input;
+        }
         
-        // If the image is not 32-bit, covert it to 32-bit
-        if (im.getBitDepth() != 32) {
-	    	ImageConverter converter = new ImageConverter(im);
-	    	converter.convertToGray32();
+        // RGB images are only collapsed to grey if the model expects a single channel
+        if (im.getBitDepth() == 24 && "1".equals(CONFIG.get("IMAGE_CHANNEL_COUNT"))) {
+        	METRICS.start("conversion");
+        	new ImageConverter(im).convertToGray32();
+        	METRICS.stop();
         }
+        if (!parseMoldingParameters(getNChannels(im)) || isInterrupted())
+        	return null;
+        if (getNChannels(im) != 1 && getNChannels(im) != MODEL_CHANNELS) {
+        	ERROR = "The image has " + getNChannels(im) + " channels but the model expects " + MODEL_CHANNELS
+        			+ " ('IMAGE_CHANNEL_COUNT').\nOnly single-channel images can be broadcast to the channels of the model.";
+        	return null;
+        }
+        MEAN_SUBTRACTED = false;
 
-        // Create the dictionary of outputs that is going to be outpued by the pre-processing
-        final HashMap<String, Object> map = new HashMap<String, Object>();
-        // Create the ImagePlus that is going to result from pre-processing and apply the corresponding transformations
-        //ImagePlus result = IJ.createImage(im.getTitle(), "32-bit", im.getWidth(), im.getHeight(), im.getNChannels(), im.getNSlices(), 1);
-        ImagePlus result = moldInputs(im);
-        if (result == null)
+        Object inputImage;
+        if (LAZY_MOLDING) {
+        	inputImage = moldInputsLazily(im);
+        	if (inputImage == null)
+        		return null;
+        } else {
+	        // If the image is not 32-bit, covert it to 32-bit
+	        if (im.getBitDepth() != 32) {
+	        	im = convertToFloat(im);
+	        	if (im == null)
+	        		return null;
+	        }
+	        // Create the ImagePlus that is going to result from pre-processing and apply the corresponding transformations
+	        //ImagePlus result = IJ.createImage(im.getTitle(), "32-bit", im.getWidth(), im.getHeight(), im.getNChannels(), im.getNSlices(), 1);
+	        ImagePlus result = moldInputs(im);
+	        if (result == null || isInterrupted())
+	        	return null;
+	        inputImage = toInputTensor(result);
+        }
+        if (isInterrupted())
         	return null;
-        MaskRcnnAnchors mrccAnchors = new MaskRcnnAnchors(CONFIG);
-        final float[][][] imageAnchors = MaskRcnnAnchors.getAnchors(result);
-        final Img<FloatType> anchors = ImgLib2Builder.createTensorFromArray(imageAnchors);
-        
-        //final float[][] imageMetas = MaskRcnnMetas.composeImageMeta(im);
-        final float[][] imageMetas = MaskRcnnMetas.composeImageMeta(0.0f, ORIGINAL_IMAGE_SIZE, PROCESSING_IMAGE_SIZE, WINDOW_SIZE, (float) SCALE, NUM_CLASSES);
-        final Img<FloatType> metas = ImgLib2Builder.createTensorFromArray(imageMetas);
+        return createOutputs(inputImage);
+    }
+    
+    /**
+     * Check whether the thread was interrupted, because the request was cancelled
+     * or reached its deadline, so the pre-processing stops early
+     * @return true if the thread was interrupted, with the error set
+     */
+    private boolean isInterrupted() {
+    	if (!Thread.currentThread().isInterrupted())
+    		return false;
+    	ERROR = "The pre-processing was interrupted.";
+    	return true;
+    }
+    
+    /**
+     * Write the molded image into the tensor requested by 'INPUT_TENSOR_TYPE' and
+     * 'TENSOR_MEMORY'. The mean is subtracted (except for uint8 tensors), and single
+     * channels broadcast, while writing the tensor. If no tensor is requested the image is returned unchanged
+     * @param result: image already molded
+     * @return the tensor or the image
+     */
+    private Object toInputTensor(ImagePlus result) {
+    	if (!DIRECT_TENSORS && INPUT_PRECISION == null)
+    		return result;
+    	METRICS.start("tensor building");
+    	final RandomAccessibleInterval<FloatType> view = MoldedImageView.create(result, 
+    			MoldGeometry.identity(result.getHeight(), result.getWidth()), getTensorMean(), getOutputChannels(result));
+    	Object tensor;
+    	if (DIRECT_TENSORS)
+    		tensor = ImgLib2Builder.createDirectImageTensor(view, INPUT_PRECISION == null ? TensorPrecision.FLOAT32 : INPUT_PRECISION);
+    	else
+    		tensor = ImgLib2Builder.createImageTensor(view, INPUT_PRECISION);
+    	METRICS.stop();
+    	return tensor;
+    }
+    
+    /**
+     * Create the map given to the model with the input image, the image metas and
+     * the anchors, and write the runtime parameters to the config file
+     * @param inputImage: molded image or tensor
+     * @return the map of inputs of the model
+     */
+    private HashMap<String, Object> createOutputs(Object inputImage) {
+        final HashMap<String, Object> map = new HashMap<String, Object>();
+        final Img<FloatType> anchors = createAnchors(PROCESSING_IMAGE_SIZE);
+        final Img<FloatType> metas = createMetas();
         
-        // Write the runtime parameters to the config file so it can be used by post processing
-        writeToConfigFile(CONFIG_FILE_PATH);
+        // Write the runtime parameters to the config file so it can be used by post processing.
+        // A warm-up pass must not overwrite the parameters of the real images
+        if (!WARMING_UP) {
+        	if (REWRITE_CONFIG) {
+		        METRICS.start("config rewrite");
+		        writeToConfigFile(CONFIG_FILE_PATH);
+		        METRICS.stop();
+        	}
+        }
         
         // Create the output map
-        map.put("input_image", result);
-        map.put("input_image_meta", metas);
-        map.put("input_anchors", anchors);
+        map.put("input_image", inputImage);
+        if (DIRECT_TENSORS) {
+        	METRICS.start("tensor building");
+        	map.put("input_image_meta", ImgLib2Builder.createDirectTensor(metas));
+        	map.put("input_anchors", ImgLib2Builder.createDirectTensor(anchors));
+        	METRICS.stop();
+        } else {
+        	map.put("input_image_meta", metas);
+        	map.put("input_anchors", anchors);
+        }
+        // Publish once every stage, including the tensor building, has been timed
+        if (!WARMING_UP)
+        	publishMetrics();
         return map;
     }
     
@@ -162,6 +389,7 @@ public class Preprocessing implements PreProcessingInterface {
 	 * can then be selected by the name 
 	 */
     public void setConfigFiles(ArrayList<String> configFiles) {
+    	ERROR = "";
     	for (String ff : configFiles) {
     		String fileName = ff.substring(ff.lastIndexOf(File.separator) + 1);
     		if (fileName.contentEquals("config.ijm")) {
@@ -183,41 +411,350 @@ public class Preprocessing implements PreProcessingInterface {
     	}
     	// Parse parameters from the config file
     	// Parameters are saved in the HashMap 'config'
+    	long start = System.nanoTime();
     	getParameters(CONFIG_FILE_PATH);
+    	CONFIG_PARSE_NANOS = System.nanoTime() - start;
     }
     
     /**
-     *  Takes an image and modifies it to the format expected by the
-     *  neural network
-     *  @param images: image to be modified
-     *  @return the modified image ready to be processed
-     *  
+     * Metrics are collected if a sink has been set or if the config file contains
+     * the parameter 'COLLECT_METRICS = true'
+     * @return whether the metrics should be collected
      */
-    private ImagePlus moldInputs(ImagePlus image) {
+    private boolean metricsEnabled() {
+    	if (METRICS_SINK != null)
+    		return true;
+    	return CONFIG != null && "true".equalsIgnoreCase(CONFIG.get("COLLECT_METRICS"));
+    }
+    
+    /**
+     * Send the metrics of the current invocation to the sink, if there is any
+     */
+    private void publishMetrics() {
+    	if (METRICS_SINK != null && METRICS.isEnabled())
+    		METRICS_SINK.publish(METRICS);
+    }
+    
+    /**
+     * Create the anchors tensor for the processed image. If the parameter 'ANCHOR_CACHE_DIR'
+     * points to a directory, the anchors are read from there when another process
+     * already generated them for the same shape and anchor configuration, and
+     * written there otherwise.
+     * @param imShape: shape of the processed image [height, width, channels]
+     * @return tensor of shape [1, nAnchors, 4]
+     */
+    private Img<FloatType> createAnchors(float[] imShape) {
+        METRICS.start("anchor generation");
+        new MaskRcnnAnchors(CONFIG);
+        final String key = MaskRcnnAnchors.getCacheKey(imShape);
+        synchronized (ANCHOR_TENSORS) {
+        	Img<FloatType> prepared = ANCHOR_TENSORS.get(key);
+        	if (prepared != null) {
+        		METRICS.stop();
+        		return prepared;
+        	}
+        }
+        String cacheDir = CONFIG.get("ANCHOR_CACHE_DIR");
+        boolean useCache = cacheDir != null && !cacheDir.equals("") && !cacheDir.equals("None");
+        if (useCache) {
+        	boolean mapped = "map".equalsIgnoreCase(CONFIG.get("ANCHOR_CACHE_MODE"));
+        	Img<FloatType> cached = AnchorCache.load(new File(cacheDir), key, mapped);
+        	if (cached != null) {
+        		synchronized (ANCHOR_TENSORS) {
+        			ANCHOR_TENSORS.put(key, cached);
+        		}
+        		METRICS.stop();
+        		return cached;
+        	}
+        }
+        final float[][][] imageAnchors = MaskRcnnAnchors.getAnchors(imShape);
+        if (useCache) {
+        	try {
+        		AnchorCache.store(new File(cacheDir), key, imageAnchors[0]);
+        	} catch (IOException ex) {
+        		// The cache is only an optimisation, keep processing without it
+        		IJ.log("The anchors could not be written to the cache '" + cacheDir + "': " + ex.getMessage());
+        	}
+        }
+        METRICS.start("tensor building");
+        final Img<FloatType> anchors = ImgLib2Builder.createTensorFromArray(imageAnchors);
+        synchronized (ANCHOR_TENSORS) {
+        	ANCHOR_TENSORS.put(key, anchors);
+        }
+        METRICS.stop();
+        return anchors;
+    }
+    
+    /**
+     * @return map that keeps the {@link #MAX_CACHED_TENSORS} most recently used tensors
+     */
+    private static Map<String, Img<FloatType>> createTensorCache() {
+    	return new LinkedHashMap<String, Img<FloatType>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Img<FloatType>> eldest) {
+				return size() > MAX_CACHED_TENSORS;
+			}
+		};
+    }
+    
+    /**
+     * Create the image meta tensor from the runtime parameters of the current image.
+     * Images with the same shape share the same tensor, which is built only once
+     * @return tensor of shape [1, metaSize]
+     */
+    private Img<FloatType> createMetas() {
+        METRICS.start("tensor building");
+        final String key = Arrays.toString(ORIGINAL_IMAGE_SIZE) + Arrays.toString(PROCESSING_IMAGE_SIZE)
+        		+ Arrays.toString(WINDOW_SIZE) + SCALE + "," + NUM_CLASSES;
+        synchronized (META_TENSORS) {
+        	Img<FloatType> metas = META_TENSORS.get(key);
+        	if (metas == null) {
+        		final float[][] imageMetas = MaskRcnnMetas.composeImageMeta(0.0f, ORIGINAL_IMAGE_SIZE, PROCESSING_IMAGE_SIZE, WINDOW_SIZE, (float) SCALE, NUM_CLASSES);
+        		metas = ImgLib2Builder.createTensorFromArray(imageMetas);
+        		META_TENSORS.put(key, metas);
+        	}
+        	METRICS.stop();
+        	return metas;
+        }
+    }
+    
+    /**
+     * Precompute everything that only depends on the shape of the images, so the
+     * first real image is processed at steady-state latency. It validates the
+     * parameters of the config file, builds the anchors and image meta tensors for
+     * the processed shape (they are reused by every image of that shape) and,
+     * optionally, runs a synthetic image through the whole pre-processing to load
+     * the classes and let the JIT compile the pixel loops. The warm-up pass does
+     * not modify the config file.
+     * {@link #setConfigFiles(ArrayList)} has to be called before.
+     * @param expectedShape: shape of the images that are going to be processed,
+     * 	as [height, width, channels]
+     * @param warmUp: whether to run the synthetic warm-up pass
+     * @return true if everything was prepared, false otherwise. The reason is given by {@link #error()}
+     */
+    public boolean prepare(int[] expectedShape, boolean warmUp) {
+    	if (CONFIG == null || CONFIG.isEmpty()) {
+    		ERROR = "The config file has to be provided before preparing the pre-processing.";
+    		return false;
+    	}
+    	final int h = expectedShape[0];
+    	final int w = expectedShape[1];
+    	final int nChannels = expectedShape.length > 2 ? expectedShape[2] : 1;
+    	if (!parseMoldingParameters(nChannels) || !validateAnchorParameters())
+    		return false;
+    	MoldGeometry geometry;
+    	try {
+    		geometry = MoldGeometry.compute(h, w, IMAGE_MIN_DIM, IMAGE_MIN_SCALE, IMAGE_MAX_DIM, IMAGE_RESIZE_MODE);
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = ex.getMessage();
+    		return false;
+    	}
+    	ORIGINAL_IMAGE_SIZE = new float[] {h, w, nChannels};
+    	PROCESSING_IMAGE_SIZE = new float[] {geometry.getHeight(), geometry.getWidth(), nChannels};
+    	WINDOW_SIZE = geometry.getWindow();
+    	SCALE = geometry.getScale();
+    	createAnchors(PROCESSING_IMAGE_SIZE);
+    	createMetas();
+    	if (!warmUp)
+    		return true;
+    	final ImagePlus synthetic = IJ.createImage("warm-up", "32-bit black", w, h, nChannels, 1, 1);
+    	final HashMap<String, Object> inputs = new HashMap<String, Object>();
+    	inputs.put(CONFIG.get("INPUT_IMAGE"), synthetic);
+    	WARMING_UP = true;
+    	try {
+    		return deepimagejPreprocessing(inputs) != null;
+    	} finally {
+    		WARMING_UP = false;
+    		synthetic.close();
+    	}
+    }
+    
+    /**
+     * Choose whether the runtime parameters are written to the config file after
+     * each image. It can be disabled when they are handed directly to the
+     * post-processing with {@link #getRuntimeParameters()}, for example when
+     * several images are processed at the same time
+     * @param rewrite: whether to write the runtime parameters to the config file
+     */
+    public void setConfigRewrite(boolean rewrite) {
+    	REWRITE_CONFIG = rewrite;
+    }
+    
+    /**
+     * @return copy of the parameters of the config file, empty if it has not been read
+     */
+    public HashMap<String, String> getConfig() {
+    	return CONFIG == null ? new HashMap<String, String>() : new HashMap<String, String>(CONFIG);
+    }
+    
+    /**
+     * @return name of the input image of the model, given by the parameter 'INPUT_IMAGE'
+     */
+    public String getInputImageName() {
+    	return CONFIG == null ? null : CONFIG.get("INPUT_IMAGE");
+    }
+    
+    /**
+     * Runtime parameters of the last image processed (or prepared). They are the same
+     * values written to the config file, and can be handed directly to
+     * {@link PostProcessing#setRuntimeParameters(HashMap)}
+     * @return map with the keys 'WINDOW_SIZE', 'ORIGINAL_IMAGE_SIZE' and 'PROCESSING_IMAGE_SIZE'
+     */
+    public HashMap<String, String> getRuntimeParameters() {
+    	final HashMap<String, String> params = new HashMap<String, String>();
+    	params.put("WINDOW_SIZE", Arrays.toString(WINDOW_SIZE));
+    	params.put("ORIGINAL_IMAGE_SIZE", Arrays.toString(ORIGINAL_IMAGE_SIZE));
+    	params.put("PROCESSING_IMAGE_SIZE", Arrays.toString(PROCESSING_IMAGE_SIZE));
+    	return params;
+    }
+    
+    /**
+     * Estimate the memory needed to process an image of the given shape with the
+     * current config file, to decide how many images can be processed at the same
+     * time with an {@link AdmissionScheduler}
+     * @param shape: shape of the image as [height, width, channels]
+     * @param bitDepth: bit depth of the image (8, 16, 24 or 32)
+     * @return the estimate, null if it cannot be computed. The reason is given by {@link #error()}
+     */
+    public MemoryEstimate estimateMemory(int[] shape, int bitDepth) {
+    	if (CONFIG == null || CONFIG.isEmpty()) {
+    		ERROR = "The config file has to be provided before estimating the memory needed.";
+    		return null;
+    	}
+    	try {
+    		return MemoryEstimate.estimate(CONFIG, shape[0], shape[1], shape.length > 2 ? shape[2] : 1, bitDepth);
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = ex.getMessage();
+    		return null;
+    	}
+    }
+    
+    /**
+     * Check that the anchor parameters of the config file can be parsed
+     * @return true if they are correct, false otherwise
+     */
+    private boolean validateAnchorParameters() {
+    	try {
+    		if (MaskRcnnAnchors.str2array(CONFIG.get("RPN_ANCHOR_SCALES")) != null
+    				&& MaskRcnnAnchors.str2array(CONFIG.get("RPN_ANCHOR_RATIOS")) != null
+    				&& MaskRcnnAnchors.str2array(CONFIG.get("BACKBONE_STRIDES")) != null) {
+    			Float.parseFloat(CONFIG.get("RPN_ANCHOR_STRIDE"));
+    			return true;
+    		}
+    	} catch (Exception ex) {
+    	}
+		ERROR = "Cannot parse correctly the parameters 'RPN_ANCHOR_SCALES', 'RPN_ANCHOR_RATIOS',\n"
+				+ "'BACKBONE_STRIDES' and 'RPN_ANCHOR_STRIDE' from the config file.";
+		return false;
+    }
+    
+    /**
+     * Parse and validate the parameters of the config file used to mold the image
+     * @param nChannels: number of channels of the image that is going to be processed
+     * @return true if every parameter is correct, false otherwise
+     */
+    private boolean parseMoldingParameters(int nChannels) {
         // Get the parameters from the class atribute dictionary
-    	int IMAGE_MIN_DIM = 0;
-    	double IMAGE_MIN_SCALE = 0;
-    	int IMAGE_MAX_DIM = 0;
-    	String IMAGE_RESIZE_MODE = null;
-    	
     	try {
         	IMAGE_MIN_DIM = Integer.parseInt(CONFIG.get("IMAGE_MIN_DIM"));
         	IMAGE_MIN_SCALE = (double) Float.parseFloat(CONFIG.get("IMAGE_MIN_SCALE"));
         	IMAGE_MAX_DIM = Integer.parseInt(CONFIG.get("IMAGE_MAX_DIM"));
         	IMAGE_RESIZE_MODE = CONFIG.get("IMAGE_RESIZE_MODE");
         	NUM_CLASSES = Integer.parseInt(CONFIG.get("NUM_CLASSES"));
+        	String channelCount = CONFIG.get("IMAGE_CHANNEL_COUNT");
+        	MODEL_CHANNELS = channelCount == null ? nChannels : Integer.parseInt(channelCount);
     	} catch (Exception ex) {
     		ERROR = "Cannot parse correctly the parameters 'IMAGE_MIN_DIM', 'IMAGE_MIN_SCALE',\n"
-    				+ "'IMAGE_MAX_DIM', 'IMAGE_RESIZE_MODE' and 'NUM_CLASSES' from the config file.";
+    				+ "'IMAGE_MAX_DIM', 'IMAGE_RESIZE_MODE', 'IMAGE_CHANNEL_COUNT' and 'NUM_CLASSES' from the config file.";
     		IJ.error("Missing parameter.");
-    		return null;
+    		return false;
+    	}
+    	try {
+    		INPUT_PRECISION = TensorPrecision.fromString(CONFIG.get("INPUT_TENSOR_TYPE"));
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = "The config file information for the parameter 'INPUT_TENSOR_TYPE' is incorrect.\n"
+    				+ ex.getMessage();
+    		return false;
+    	}
+    	try {
+    		RESIZE_METHOD = Resampler.Method.fromString(CONFIG.get("RESIZE_METHOD"));
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = "The config file information for the parameter 'RESIZE_METHOD' is incorrect.\n"
+    				+ ex.getMessage();
+    		return false;
+    	}
+    	String tensorMemory = CONFIG.get("TENSOR_MEMORY");
+    	if (tensorMemory != null && !tensorMemory.equalsIgnoreCase("heap") && !tensorMemory.equalsIgnoreCase("direct")) {
+    		ERROR = "The config file information for the parameter 'TENSOR_MEMORY' is incorrect.\n"
+    				+ "The value provided is '" + tensorMemory + "'. However the only values allowed are: 'heap' and 'direct'.";
+    		return false;
+    	}
+    	DIRECT_TENSORS = "direct".equalsIgnoreCase(tensorMemory);
+    	if (INPUT_PRECISION != null || DIRECT_TENSORS) {
+    		float[] mean = parseMeanPixel(CONFIG);
+    		if (mean == null || mean.length < Math.max(nChannels, MODEL_CHANNELS)) {
+    			ERROR = "The config file information for the parameter 'MEAN_PIXEL' is incorrect or not present."
+    					+ "\nIt should contain one value per channel, for example: MEAN_PIXEL = [123.7, 116.8, 103.9]";
+    			return false;
+    		}
+    	}
+    	String mode = CONFIG.get("PREPROCESSING_MODE");
+    	if (mode != null && !mode.equalsIgnoreCase("imagej") && !mode.equalsIgnoreCase("views")) {
+    		ERROR = "The config file information for the parameter 'PREPROCESSING_MODE' is incorrect.\n"
+    				+ "The value provided is '" + mode + "'. However the only values allowed are: 'imagej' and 'views'.";
+    		return false;
     	}
+    	LAZY_MOLDING = "views".equalsIgnoreCase(mode);
+    	return true;
+    }
+    
+    /**
+     *  Takes an image and modifies it to the format expected by the
+     *  neural network
+     *  @param images: image to be modified
+     *  @return the modified image ready to be processed
+     *  
+     */
+    private ImagePlus moldInputs(ImagePlus image) {
     	ImagePlus moldedImage = resizeImage(image, IMAGE_MIN_DIM, IMAGE_MIN_SCALE, IMAGE_MAX_DIM, IMAGE_RESIZE_MODE);
     	// If resizing was not successful and no image was obtained, exit the method and return null
     	if (moldedImage == null)
     		return null;
-    	final float[] finalShape = { (float)moldedImage.getHeight(), (float)moldedImage.getWidth(), (float)moldedImage.getNChannels() };
-    	moldedImage = moldImage(moldedImage, CONFIG);
+    	return normaliseInputs(moldedImage, moldedImage == image);
+    }
+    
+    /**
+     * Subtract the mean to the image already resized and padded, broadcasting
+     * single-channel images to the channels of the model. Nothing is done if the
+     * image is going to be written into a tensor, which subtracts the mean itself
+     * @param moldedImage: image resized and padded
+     * @param shared: whether the image is still the one given to the pre-processing,
+     * 	because it was neither resized nor padded, and so must not be modified
+     * @return the image ready to be processed
+     */
+    private ImagePlus normaliseInputs(ImagePlus moldedImage, boolean shared) {
+    	final float[] finalShape = { (float)moldedImage.getHeight(), (float)moldedImage.getWidth(), (float)getOutputChannels(moldedImage) };
+    	if (INPUT_PRECISION == null && !DIRECT_TENSORS && getNChannels(moldedImage) < MODEL_CHANNELS) {
+    		// Only the final image is replicated, the previous steps work on a single plane
+    		final float[] mean = parseMeanPixel(CONFIG);
+    		if (mean == null || mean.length < MODEL_CHANNELS) {
+    			ERROR = "The config file information for the parameter 'MEAN_PIXEL' is incorrect or not present."
+    					+ "\nIt should contain one value per channel, for example: MEAN_PIXEL = [123.7, 116.8, 103.9]";
+    			return null;
+    		}
+    		METRICS.start("mean subtraction");
+    		moldedImage = ImageProcessingUtils.broadcastChannels(moldedImage, MODEL_CHANNELS, mean);
+    		METRICS.stop();
+    	} else if (INPUT_PRECISION == null && !DIRECT_TENSORS && !MEAN_SUBTRACTED) {
+    		METRICS.start("mean subtraction");
+    		// The mean is subtracted in place, the image of the caller is left unchanged
+    		if (shared)
+    			moldedImage = moldedImage.duplicate();
+    		moldedImage = moldImage(moldedImage, CONFIG);
+    		METRICS.stop();
+    	}
     	
     	// Obtain the image meta data
     	PROCESSING_IMAGE_SIZE = finalShape;
@@ -225,13 +762,285 @@ public class Preprocessing implements PreProcessingInterface {
     	return moldedImage;
     }
     
+    /**
+     * Molds the image with lazy ImgLib2 views. Resize, padding and mean subtraction
+     * are chained as views over the pixels of the input image, and the chain is
+     * computed only once, when it is written into the tensor requested by
+     * 'INPUT_TENSOR_TYPE' and 'TENSOR_MEMORY'. If neither of them asks for a tensor,
+     * the view itself is returned so the model runner reads it directly
+     * @param image: image to be modified
+     * @return the tensor or view of shape [1, height, width, channels] ready to be processed
+     */
+    private Object moldInputsLazily(ImagePlus image) {
+    	MoldGeometry geometry;
+    	try {
+    		geometry = MoldGeometry.compute(image.getHeight(), image.getWidth(), IMAGE_MIN_DIM, IMAGE_MIN_SCALE, 
+    				IMAGE_MAX_DIM, IMAGE_RESIZE_MODE);
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = ex.getMessage();
+    		return null;
+    	}
+    	final int nChannels = getOutputChannels(image);
+    	ORIGINAL_IMAGE_SIZE = new float[] {image.getHeight(), image.getWidth(), nChannels};
+    	PROCESSING_IMAGE_SIZE = new float[] {geometry.getHeight(), geometry.getWidth(), nChannels};
+    	WINDOW_SIZE = geometry.getWindow();
+    	SCALE = geometry.getScale();
+    	final float[] mean = parseMeanPixel(CONFIG);
+    	if (mean == null || mean.length < nChannels) {
+    		ERROR = "The config file information for the parameter 'MEAN_PIXEL' is incorrect or not present."
+    				+ "\nIt should contain one value per channel, for example: MEAN_PIXEL = [123.7, 116.8, 103.9]";
+    		return null;
+    	}
+    	final RandomAccessibleInterval<FloatType> view = MoldedImageView.create(image, geometry, getTensorMean(), nChannels);
+    	// Resize, pad and mean subtraction happen all at once here
+    	METRICS.start("tensor building");
+    	Object tensor = view;
+    	if (DIRECT_TENSORS)
+    		tensor = ImgLib2Builder.createDirectImageTensor(view, INPUT_PRECISION == null ? TensorPrecision.FLOAT32 : INPUT_PRECISION);
+    	else if (INPUT_PRECISION != null)
+    		tensor = ImgLib2Builder.createImageTensor(view, INPUT_PRECISION);
+    	METRICS.stop();
+    	return tensor;
+    }
+    
+    /**
+     * Open a TIFF file for mapped reading. Files that have to be resized with the
+     * ImageJ resize ('RESIZE_METHOD = imagej') are not mapped, because it needs the
+     * whole image, so they give the same tensors as when they are given as an ImagePlus
+     * @param file: image file
+     * @return the mapped file, or null if it cannot be mapped and has to be opened with ImageJ
+     */
+    private MappedTiff openMappedTiff(File file) {
+    	final String name = file.getName().toLowerCase();
+    	if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+    		return null;
+    	MappedTiff tiff;
+    	try {
+    		tiff = MappedTiff.open(file);
+    	} catch (IOException ex) {
+    		return null;
+    	}
+    	if (!needsImageJResize(tiff.getHeight(), tiff.getWidth()))
+    		return tiff;
+    	try {
+    		tiff.close();
+    	} catch (IOException ex) {
+    		// The mapping is released by the garbage collector anyway
+    	}
+    	return null;
+    }
+    
+    /**
+     * @param height: height of the image
+     * @param width: width of the image
+     * @return whether the image is resized with the ImageJ resize. If the parameters
+     * 	cannot be parsed it returns false, and the error is reported when the image is molded
+     */
+    private boolean needsImageJResize(int height, int width) {
+    	try {
+    		if (Resampler.Method.fromString(CONFIG.get("RESIZE_METHOD")) != null)
+    			return false;
+    		return MoldGeometry.compute(height, width, Integer.parseInt(CONFIG.get("IMAGE_MIN_DIM")), 
+    				(double) Float.parseFloat(CONFIG.get("IMAGE_MIN_SCALE")), Integer.parseInt(CONFIG.get("IMAGE_MAX_DIM")), 
+    				CONFIG.get("IMAGE_RESIZE_MODE")).getScale() != 1;
+    	} catch (RuntimeException ex) {
+    		return false;
+    	}
+    }
+    
+    /**
+     * Pre-process an uncompressed TIFF file without decoding it into an ImagePlus.
+     * Each channel is read row by row from the memory mapping of the file and
+     * resized while it is read, so only the rows needed for the processing scale are
+     * touched and the original image is never held in the heap. The resized
+     * channels are padded and then follow the same steps as any other image.
+     * Images resized with 'RESIZE_METHOD = imagej' are never mapped, see
+     * {@link #openMappedTiff(File)}
+     * @param tiff: mapped file, it is closed by this method
+     * @return the map of inputs of the model, or null if there was any error
+     */
+    private HashMap<String, Object> preprocessMappedTiff(MappedTiff tiff) {
+    	try {
+    		// RGB files are only collapsed to grey if the model expects a single channel
+    		final boolean grey = tiff.getBitDepth() == 24 && "1".equals(CONFIG.get("IMAGE_CHANNEL_COUNT"));
+    		final int nChannels = grey ? 1 : tiff.getNChannels();
+    		if (!parseMoldingParameters(nChannels))
+    			return null;
+    		if (nChannels != 1 && nChannels != MODEL_CHANNELS) {
+    			ERROR = "The image has " + nChannels + " channels but the model expects " + MODEL_CHANNELS
+    					+ " ('IMAGE_CHANNEL_COUNT').\nOnly single-channel images can be broadcast to the channels of the model.";
+    			return null;
+    		}
+    		MEAN_SUBTRACTED = false;
+    		final int h = tiff.getHeight();
+    		final int w = tiff.getWidth();
+    		MoldGeometry geometry;
+    		try {
+    			geometry = MoldGeometry.compute(h, w, IMAGE_MIN_DIM, IMAGE_MIN_SCALE, IMAGE_MAX_DIM, IMAGE_RESIZE_MODE);
+    		} catch (IllegalArgumentException ex) {
+    			ERROR = ex.getMessage();
+    			return null;
+    		}
+    		ORIGINAL_IMAGE_SIZE = new float[] {h, w, nChannels == 1 ? MODEL_CHANNELS : nChannels};
+    		WINDOW_SIZE = geometry.getWindow();
+    		SCALE = geometry.getScale();
+    		final int sw = geometry.getScaledWidth();
+    		final int sh = geometry.getScaledHeight();
+    		final ImageStack stack = new ImageStack(geometry.getWidth(), geometry.getHeight());
+    		final float[] row = new float[w];
+    		for (int c = 0; c < nChannels; c ++) {
+    			if (isInterrupted())
+    				return null;
+    			final int channel = grey ? -1 : c;
+    			METRICS.start("resize");
+    			float[] plane;
+    			if (geometry.getScale() != 1) {
+    				plane = Resampler.resize(tiff.rowReader(channel), w, h, sw, sh, RESIZE_METHOD);
+    			} else {
+    				plane = new float[w * h];
+    				for (int y = 0; y < h; y ++) {
+    					tiff.readRow(channel, y, row);
+    					System.arraycopy(row, 0, plane, y * w, w);
+    				}
+    			}
+    			METRICS.stop();
+    			if (geometry.hasPadding()) {
+    				METRICS.start("pad");
+    				final float[] padded = new float[geometry.getWidth() * geometry.getHeight()];
+    				for (int y = 0; y < sh; y ++)
+    					System.arraycopy(plane, y * sw, padded, (y + geometry.getTopPad()) * geometry.getWidth() + geometry.getLeftPad(), sw);
+    				plane = padded;
+    				METRICS.stop();
+    			}
+    			stack.addSlice(new FloatProcessor(geometry.getWidth(), geometry.getHeight(), plane));
+    		}
+    		final ImagePlus molded = new ImagePlus("molded", stack);
+    		molded.setDimensions(nChannels, 1, 1);
+    		final ImagePlus result = normaliseInputs(molded, false);
+    		if (result == null || isInterrupted())
+    			return null;
+    		return createOutputs(toInputTensor(result));
+    	} catch (IllegalStateException ex) {
+    		ERROR = ex.getMessage();
+    		return null;
+    	} finally {
+    		try {
+    			tiff.close();
+    		} catch (IOException ex) {
+    			// The mapping is released by the garbage collector anyway
+    		}
+    	}
+    }
+    
+    /**
+     * Convert an 8, 16-bit or RGB image to float for the non-lazy molding, reading
+     * the original pixels only once.
+     * If the image does not need to be resized nor padded and it is going to be
+     * written into a tensor, it is not modified: the tensor is written directly from
+     * the original pixels. If it does not need to be resized nor padded but it is
+     * returned as an image, the mean is subtracted in the same loop that converts it:
+     * 8 and 16-bit pixels go through a look-up table of value - mean, and RGB pixels
+     * are unpacked into 3 channels. Otherwise the image is only converted to float
+     * @param image: 8, 16-bit or RGB image
+     * @return the image ready to be molded, or null if the parameters are incorrect
+     */
+    private ImagePlus convertToFloat(ImagePlus image) {
+    	MoldGeometry geometry;
+    	try {
+    		geometry = MoldGeometry.compute(image.getHeight(), image.getWidth(), IMAGE_MIN_DIM, IMAGE_MIN_SCALE, 
+    				IMAGE_MAX_DIM, IMAGE_RESIZE_MODE);
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = ex.getMessage();
+    		return null;
+    	}
+    	final boolean identity = geometry.getScale() == 1 && !geometry.hasPadding();
+    	final boolean toTensor = INPUT_PRECISION != null || DIRECT_TENSORS;
+    	if (identity && toTensor)
+    		return image;
+    	float[] mean = null;
+    	if (identity) {
+    		mean = parseMeanPixel(CONFIG);
+    		if (mean == null || mean.length < getOutputChannels(image)) {
+    			ERROR = "The config file information for the parameter 'MEAN_PIXEL' is incorrect or not present."
+    					+ "\nIt should contain one value per channel, for example: MEAN_PIXEL = [123.7, 116.8, 103.9]";
+    			return null;
+    		}
+    	}
+    	METRICS.start("conversion");
+    	ImagePlus converted = image;
+    	if (image.getBitDepth() == 24) {
+    		converted = ImageProcessingUtils.unpackRGB(image, mean);
+    	} else if (mean != null) {
+    		final float[][] luts = new float[getOutputChannels(image)][];
+    		for (int c = 0; c < luts.length; c ++)
+    			luts[c] = ImageProcessingUtils.getLut(image, mean[c]);
+    		converted = ImageProcessingUtils.applyLuts(image, luts);
+    	} else {
+    		new ImageConverter(image).convertToGray32();
+    	}
+    	METRICS.stop();
+    	MEAN_SUBTRACTED = mean != null;
+    	return converted;
+    }
+    
+    /**
+     * @param image: image to be processed
+     * @return number of channels of the image, 3 for RGB images
+     */
+    private static int getNChannels(ImagePlus image) {
+    	return image.getBitDepth() == 24 ? 3 : image.getNChannels();
+    }
+    
+    /**
+     * @param image: image to be processed
+     * @return number of channels of the image once it is written into the tensor.
+     * 	Single-channel images are broadcast to the channels expected by the model
+     */
+    private int getOutputChannels(ImagePlus image) {
+    	final int nChannels = getNChannels(image);
+    	return nChannels == 1 ? MODEL_CHANNELS : nChannels;
+    }
+    
+    /**
+     * Mean subtracted while the image is written into the tensor. It is not
+     * subtracted for uint8 tensors: saturating the result to [0, 255] would turn
+     * every pixel below the mean into 0, so quantised models get the pixel values
+     * and normalise them themselves
+     * @return the mean of each channel, null if nothing has to be subtracted
+     */
+    private float[] getTensorMean() {
+    	if (INPUT_PRECISION == TensorPrecision.UINT8)
+    		return null;
+    	return parseMeanPixel(CONFIG);
+    }
+    
+    /**
+     * Parse the parameter 'MEAN_PIXEL' of the config file
+     * @param config: HashMap containing every parameter
+     * @return the mean of each channel or null if it cannot be parsed
+     */
+    private static float[] parseMeanPixel(HashMap<String, String> config) {
+    	try {
+    		String meanStr = config.get("MEAN_PIXEL");
+    		meanStr = meanStr.substring(1, meanStr.length() - 1);
+    		String[] aux = meanStr.split(",");
+    		float[] mean = new float[aux.length];
+    		for (int i = 0; i < aux.length; i ++) {
+    			mean[i] = Float.parseFloat(aux[i]);
+    		}
+    		return mean;
+    	} catch (Exception ex) {
+    		return null;
+    	}
+    }
+    
     /**
      * This method subtracts the mean to each of the channels
      * @param moldedImage: image to modify
      * @param config: HashMap containing every parameter
      * @return modified image
      */
-    private static ImagePlus moldImage(ImagePlus moldedImage, HashMap<String, String> config) {
+    private ImagePlus moldImage(ImagePlus moldedImage, HashMap<String, String> config) {
 
     	String MEAN_PIXEL_STRING;
     	try {
@@ -245,6 +1054,8 @@ public class Preprocessing implements PreProcessingInterface {
         	for (int t = 0; t < moldedImage.getNFrames(); t ++) {
     	    	for (int z = 0; z < moldedImage.getNSlices(); z ++) {
     		    	for (int c = 0; c < moldedImage.getNChannels(); c ++) {
+    		    		 if (isInterrupted())
+    		    			 return null;
     		    		 moldedImage.setPositionWithoutUpdate(c + 1, z + 1, t + 1);
     		             ImageProcessor ip = moldedImage.getProcessor();
     		             for (int i = 0; i < moldedImage.getWidth(); i ++) {
@@ -293,97 +1104,33 @@ public class Preprocessing implements PreProcessingInterface {
      */
     private ImagePlus resizeImage(ImagePlus image, int minDim, double minScale, int maxDim, 
     								String mode) {
-    	// Default window is the whole image and default scale is 1
-    	int w = image.getWidth();
-    	int h = image.getHeight();
-    	float[] window = new float[] {0, 0, h, w};
-    	double scale = 1.0;
-    	double[][] padding = new double[3][2];
-    	
-    	if (mode.equals("none")) {
-    		SCALE = scale;
-    		WINDOW_SIZE = window;
-        	return image;
-    		
-    	}
-    	
-    	// Find the scale
-    	if (minDim > 0)
-    		scale = Math.max(1.0, ((double) minDim) / Math.min(h,  w));
-    	if (scale < minScale)
-    		scale = minScale;
-    	
-    	// Check if the found scale exceeds the max dimension
-    	double imageMax = Math.max(h, w);
-    	if (mode.equals("square") && Math.round(imageMax * scale) > maxDim) {
-    		scale = maxDim / imageMax;
+    	MoldGeometry geometry;
+    	try {
+    		geometry = MoldGeometry.compute(image.getHeight(), image.getWidth(), minDim, minScale, maxDim, mode);
+    	} catch (IllegalArgumentException ex) {
+    		ERROR = ex.getMessage();
+    		return null;
     	}
-
-        final float[] originalImShape = { (float)image.getHeight(), (float)image.getWidth(), (float)image.getNChannels() };
+        final float[] originalImShape = { (float)image.getHeight(), (float)image.getWidth(), (float)getOutputChannels(image) };
     	// Obtain the image meta data
     	ORIGINAL_IMAGE_SIZE = originalImShape;
     	
-    	if (scale != 1) {
-    		image = ImageProcessingUtils.resize(image, (int)Math.round(w * scale), (int)Math.round(h * scale));
+    	if (geometry.getScale() != 1) {
+    		METRICS.start("resize");
+    		image = ImageProcessingUtils.resize(image, geometry.getScaledWidth(), geometry.getScaledHeight(), RESIZE_METHOD);
+    		METRICS.stop();
     	}
-    	
-    	// Check if padding is needed
-    	if (mode.equals("square")) {
-    		// Get the new h and w
-        	w = image.getWidth();
-        	h = image.getHeight();
-        	double topPad = Math.floor((maxDim - h) / 2.0);
-        	double bottomPad = maxDim - h - topPad;
-        	double leftPad = Math.floor((maxDim - w) / 2.0);
-        	double rightPad = maxDim - w - leftPad;
-        	padding[0][0] = topPad; padding[0][1] = bottomPad;
-        	padding[1][0] = leftPad; padding[1][1] = rightPad;
-        	image = ImageProcessingUtils.pad(image, padding, 0);
-        	window = new float[] {(float) topPad, (float) leftPad, (float) (h + topPad), (float) (w + leftPad)};
-    	} else if (mode.equals("pad64")) {
-    		// Get the new h and w
-        	w = image.getWidth();
-        	h = image.getHeight();
-        	if (h % 64 != 0 || w % 64 != 0) {
-        		ERROR = "The 'IMAGE_RESIZE_MODE = pad64' can only be applied to images\n"
-        				+ "whose height and width are multiple of 64.";
-        		return null;
-        	}
-        	// Height
-        	int topPad = 0;
-        	int bottomPad = 0;
-            if (h % 64 > 0) {
-                int maxH = h - (h % 64) + 64;
-                topPad = (maxH - h) / 0;
-                bottomPad = maxH - h - topPad;
-            }
-        	// Width
-        	int leftPad = 0;
-        	int rightPad = 0;
-            if (h % 64 > 0) {
-                int maxW = w - (w % 64) + 64;
-                leftPad = (maxW - w) / 2;
-                rightPad = maxW - h - leftPad;
-            }
-        	padding[0][0] = topPad; padding[0][1] = bottomPad;
-        	padding[1][0] = leftPad; padding[1][1] = rightPad;
-        	image = ImageProcessingUtils.pad(image, padding, 0);
-        	window = new float[] {(float) topPad, (float) leftPad, (float) (h + topPad), (float) (w + leftPad)};
-    	} else if (mode.equals("crop")) {
-    		ERROR = "This Java Mask R-CNN pre-processing does not support 'IMAGE_RESIZE_MODE = crop',\n"
-    				+ "please change the parameter IMAGE_RESIZE_MODE to 'square' or 'pad64' in the\n"
-    				+ "config pre-preprocessing file.";
-    		return null;
-    	} else {
-    		ERROR = "The config file information for the parameter 'IMAGE_RESIZE_MODE' is incorrect."
-    				+ "\nThe value provided in the config file (" + CONFIG_FILE_PATH + "')\n"
-					+ "is '" + mode + "'. However the only values allowed are: 'square', 'pad64' and 'XXX'.";
-    		return null;
+    	// Pad with zeros up to the processing shape. Images that already have the
+    	// wanted shape are not copied
+    	if (geometry.hasPadding()) {
+        	METRICS.start("pad");
+        	image = ImageProcessingUtils.pad(image, geometry.getPadding(), 0);
+        	METRICS.stop();
     	}
     	
     	// Set the class attributes to be used later
-    	WINDOW_SIZE = window;
-    	SCALE = scale;
+    	WINDOW_SIZE = geometry.getWindow();
+    	SCALE = geometry.getScale();
 
     	return image;
     }
@@ -399,38 +1146,52 @@ public class Preprocessing implements PreProcessingInterface {
      * @param parametersFile: file containing parameters needed for post-processing provided in the plugin
      */
     private void getParameters(String parametersFile) {
-    	// Initialise the parameters dictionary
-    	CONFIG = new HashMap<String, String>();
     	// For this particular case, because the program is going to later
     	// modify the plugin, save the path to the file in an attribute
     	CONFIG_FILE_PATH = parametersFile;
-    	File configFile = new File(parametersFile);
+    	try {
+    		CONFIG = readParameters(parametersFile);
+    	} catch (IOException e) {
+			ERROR = "Could not access the config file provided during pre-preocessing:\n"
+					+ "- " + parametersFile;
+			e.printStackTrace();
+			CONFIG = null;
+		}
+    }
+    
+    /**
+     * Read the parameters of a config file. Each parameter is written in a comment
+     * line as '* PARAMETER: KEY = value'. Lines without the '=' after the flag are ignored.
+     * Shared by the pre- and post-processing of the plugin and by the
+     * {@link maskrcnn.pipeline.StagePreprocessing stage} processing
+     * @param parametersFile: path to the config file
+     * @return dictionary with the parameters found in the file
+     * @throws IOException if the file cannot be read
+     */
+    public static HashMap<String, String> readParameters(String parametersFile) throws IOException {
+    	HashMap<String, String> config = new HashMap<String, String>();
     	// Key that is used to know where is each parameter
     	String flag = "PARAMETER:";
     	String flag2 = "*";
     	String separator = "=";
     	// Read the file line by line
-    	try (BufferedReader br = new BufferedReader(new FileReader(configFile))) {
-    	    String line = br.readLine().trim();
+    	try (BufferedReader br = new BufferedReader(new FileReader(parametersFile))) {
+    	    String line = br.readLine();
     	    while (line != null) {
     	    	line = line.trim();
-    	       if (line.contains(flag) && line.contains(flag2) && !line.contains("'" + flag + "'")) {
+    	       if (line.contains(flag) && line.contains(flag2) && !line.contains("'" + flag + "'")
+    	    		   && line.indexOf(separator) > line.indexOf(flag)) {
     	    	   int paramStart = line.indexOf(flag) + flag.length();
     	    	   int separatorInd = line.indexOf(separator);
     	    	   // Parameter key and value are separated by '='
     	    	   String key = line.substring(paramStart, separatorInd).trim();
     	    	   String value = line.substring(separatorInd + 1).trim();
-    	    	   CONFIG.put(key, value);
+    	    	   config.put(key, value);
     	       }
     	       line = br.readLine();
     	    }
-    	    br.close();
-    	} catch (IOException e) {
-			ERROR = "Could not access the config file provided during pre-preocessing:\n"
-					+ "- " + parametersFile;
-			e.printStackTrace();
-			CONFIG = null;
-		}
+    	}
+    	return config;
     }
     
     /**
@@ -0,0 +1,120 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * Pixel stage value * scale + offset, with one scale and offset per channel.
+ * It covers mean subtraction, scaling and standardisation. Channels beyond the
+ * number of values given use the last one
+ */
+public class AffineStage extends PixelStage {
+	
+	private final float[] scale;
+	private final float[] offset;
+	
+	/**
+	 * @param scale: factor of each channel
+	 * @param offset: value added to each channel after scaling
+	 */
+	public AffineStage(float[] scale, float[] offset) {
+		if (scale.length == 0 || offset.length == 0)
+			throw new IllegalArgumentException("At least one scale and one offset are needed.");
+		this.scale = scale;
+		this.offset = offset;
+	}
+	
+	/**
+	 * @param mean: value subtracted to each channel
+	 * @return the stage value - mean
+	 */
+	public static AffineStage subtract(float[] mean) {
+		final float[] scale = new float[mean.length];
+		final float[] offset = new float[mean.length];
+		for (int c = 0; c < mean.length; c ++) {
+			scale[c] = 1;
+			offset[c] = -mean[c];
+		}
+		return new AffineStage(scale, offset);
+	}
+	
+	/**
+	 * @param mean: mean of each channel
+	 * @param std: standard deviation of each channel
+	 * @return the stage (value - mean) / std
+	 */
+	public static AffineStage standardise(float[] mean, float[] std) {
+		final int n = Math.max(mean.length, std.length);
+		final float[] scale = new float[n];
+		final float[] offset = new float[n];
+		for (int c = 0; c < n; c ++) {
+			scale[c] = 1 / get(std, c);
+			offset[c] = -get(mean, c) / get(std, c);
+		}
+		return new AffineStage(scale, offset);
+	}
+	
+	private static float get(float[] values, int c) {
+		return values[Math.min(c, values.length - 1)];
+	}
+	
+	@Override
+	public float apply(int channel, float value) {
+		return value * get(scale, channel) + get(offset, channel);
+	}
+	
+	@Override
+	public PixelStage fuse(PixelStage next) {
+		if (!(next instanceof AffineStage))
+			return super.fuse(next);
+		final AffineStage other = (AffineStage) next;
+		final int n = Math.max(Math.max(scale.length, offset.length), Math.max(other.scale.length, other.offset.length));
+		final float[] s = new float[n];
+		final float[] o = new float[n];
+		for (int c = 0; c < n; c ++) {
+			s[c] = get(scale, c) * get(other.scale, c);
+			o[c] = get(offset, c) * get(other.scale, c) + get(other.offset, c);
+		}
+		return new AffineStage(s, o);
+	}
+	
+	@Override
+	public String toString() {
+		return "affine(" + Arrays.toString(scale) + ", " + Arrays.toString(offset) + ")";
+	}
+}
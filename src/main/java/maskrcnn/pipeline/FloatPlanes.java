@@ -0,0 +1,133 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * 2D image with one float array per channel, row by row. It is the data that
+ * flows between the {@link Stage}s of a {@link StagePipeline}. Stages may
+ * modify the arrays in place, so images built from an ImagePlus always own a
+ * copy of its pixels.
+ */
+public class FloatPlanes {
+	
+	private final int width;
+	private final int height;
+	private final float[][] channels;
+	
+	/**
+	 * @param width: width of the image
+	 * @param height: height of the image
+	 * @param channels: pixels of each channel, row by row
+	 */
+	public FloatPlanes(int width, int height, float[][] channels) {
+		for (float[] c : channels) {
+			if (c.length != width * height)
+				throw new IllegalArgumentException("Every channel has to have width x height pixels.");
+		}
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+	}
+	
+	/**
+	 * Copy the channels of the current slice and frame of an image. RGB images
+	 * are split into 3 channels
+	 * @param image: 8, 16, 32-bit or RGB image
+	 * @return the float planes
+	 */
+	public static FloatPlanes fromImage(ImagePlus image) {
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		if (image.getBitDepth() == 24) {
+			final ColorProcessor cp = (ColorProcessor) image.getProcessor();
+			final float[][] rgb = new float[3][];
+			for (int c = 0; c < 3; c ++)
+				rgb[c] = (float[]) cp.toFloat(c, null).getPixels();
+			return new FloatPlanes(w, h, rgb);
+		}
+		final ImageStack stack = image.getStack();
+		final int nChannels = image.getNChannels();
+		final float[][] channels = new float[nChannels][];
+		for (int c = 0; c < nChannels; c ++) {
+			final ImageProcessor ip = stack.getProcessor(image.getStackIndex(c + 1, image.getSlice(), image.getFrame()));
+			// Float processors convert to themselves, their pixels are copied
+			channels[c] = ip instanceof FloatProcessor ? ((float[]) ip.getPixels()).clone() 
+					: (float[]) ip.convertToFloatProcessor().getPixels();
+		}
+		return new FloatPlanes(w, h, channels);
+	}
+	
+	/**
+	 * Wrap the planes into a 32-bit image without copying them
+	 * @param title: title of the image
+	 * @return image with one channel per plane
+	 */
+	public ImagePlus toImage(String title) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (float[] c : channels)
+			stack.addSlice(new FloatProcessor(width, height, c));
+		final ImagePlus image = new ImagePlus(title, stack);
+		image.setDimensions(channels.length, 1, 1);
+		return image;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getNChannels() {
+		return channels.length;
+	}
+	
+	/**
+	 * @param c: index of the channel
+	 * @return pixels of the channel, row by row
+	 */
+	public float[] getChannel(int c) {
+		return channels[c];
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Sequence of pixel stages applied to each pixel in a single pass
+ */
+public class FusedPixelStage extends PixelStage {
+	
+	private final PixelStage[] stages;
+	
+	/**
+	 * @param first: stage applied first
+	 * @param next: stage applied after the first one
+	 */
+	public FusedPixelStage(PixelStage first, PixelStage next) {
+		final ArrayList<PixelStage> list = new ArrayList<PixelStage>();
+		for (PixelStage s : new PixelStage[] {first, next}) {
+			if (s instanceof FusedPixelStage)
+				list.addAll(Arrays.asList(((FusedPixelStage) s).stages));
+			else
+				list.add(s);
+		}
+		stages = list.toArray(new PixelStage[list.size()]);
+	}
+	
+	private FusedPixelStage(PixelStage[] stages) {
+		this.stages = stages;
+	}
+	
+	@Override
+	public float apply(int channel, float value) {
+		for (PixelStage s : stages)
+			value = s.apply(channel, value);
+		return value;
+	}
+	
+	@Override
+	public PixelStage fuse(PixelStage next) {
+		// Consecutive affine stages collapse into one
+		final PixelStage last = stages[stages.length - 1];
+		if (last instanceof AffineStage && next instanceof AffineStage) {
+			final PixelStage[] fused = stages.clone();
+			fused[fused.length - 1] = last.fuse(next);
+			return fused.length == 1 ? fused[0] : new FusedPixelStage(fused);
+		}
+		return new FusedPixelStage(this, next);
+	}
+	
+	/**
+	 * @return number of stages fused
+	 */
+	public int size() {
+		return stages.length;
+	}
+	
+	@Override
+	public String toString() {
+		return "fused" + Arrays.toString(stages);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * Stage that pads the bottom and right of the image with a constant so its
+ * width and height are multiples of a number, as needed by networks that
+ * downsample the image several times (U-Net, StarDist)
+ */
+public class PadStage implements Stage {
+	
+	private final int multiple;
+	private final float value;
+	
+	/**
+	 * @param multiple: the padded width and height are multiples of this number
+	 * @param value: value of the padded pixels
+	 */
+	public PadStage(int multiple, float value) {
+		if (multiple <= 0)
+			throw new IllegalArgumentException("The padding multiple has to be positive.");
+		this.multiple = multiple;
+		this.value = value;
+	}
+	
+	@Override
+	public FloatPlanes apply(FloatPlanes input) {
+		final int w = input.getWidth();
+		final int h = input.getHeight();
+		final int pw = (w + multiple - 1) / multiple * multiple;
+		final int ph = (h + multiple - 1) / multiple * multiple;
+		if (pw == w && ph == h)
+			return input;
+		final float[][] channels = new float[input.getNChannels()][];
+		for (int c = 0; c < channels.length; c ++) {
+			final float[] src = input.getChannel(c);
+			final float[] dst = new float[pw * ph];
+			if (value != 0)
+				Arrays.fill(dst, value);
+			for (int y = 0; y < h; y ++)
+				System.arraycopy(src, y * w, dst, y * pw, w);
+			channels[c] = dst;
+		}
+		return new FloatPlanes(pw, ph, channels);
+	}
+	
+	@Override
+	public String toString() {
+		return "pad(" + multiple + ", " + value + ")";
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * Stage that normalises each channel with its percentiles, as done by StarDist
+ * and CSBDeep: (value - p_low) / (p_high - p_low). The percentiles are computed
+ * with linear interpolation between the closest ranks, like numpy.percentile.
+ * It depends on the whole image, so it is not fused with the pixel stages
+ */
+public class PercentileStage implements Stage {
+	
+	private static final float EPSILON = 1e-20f;
+	
+	private final double low;
+	private final double high;
+	
+	/**
+	 * @param low: lower percentile, between 0 and 100
+	 * @param high: upper percentile, between 0 and 100
+	 */
+	public PercentileStage(double low, double high) {
+		if (low < 0 || high > 100 || low >= high)
+			throw new IllegalArgumentException("The percentiles have to satisfy 0 <= low < high <= 100.");
+		this.low = low;
+		this.high = high;
+	}
+	
+	@Override
+	public FloatPlanes apply(FloatPlanes input) {
+		for (int c = 0; c < input.getNChannels(); c ++) {
+			final float[] pixels = input.getChannel(c);
+			final float[] sorted = pixels.clone();
+			Arrays.sort(sorted);
+			final float pLow = percentile(sorted, low);
+			final float scale = 1 / (percentile(sorted, high) - pLow + EPSILON);
+			for (int i = 0; i < pixels.length; i ++)
+				pixels[i] = (pixels[i] - pLow) * scale;
+		}
+		return input;
+	}
+	
+	/**
+	 * @param sorted: sorted values
+	 * @param p: percentile, between 0 and 100
+	 * @return the percentile interpolated between the closest ranks
+	 */
+	private static float percentile(float[] sorted, double p) {
+		final double rank = (sorted.length - 1) * p / 100;
+		final int lo = (int) Math.floor(rank);
+		final int hi = Math.min(lo + 1, sorted.length - 1);
+		return (float) (sorted[lo] + (rank - lo) * (sorted[hi] - sorted[lo]));
+	}
+	
+	@Override
+	public String toString() {
+		return "percentile(" + low + ", " + high + ")";
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+/**
+ * Stage whose output pixel only depends on the input pixel at the same position
+ * and on its channel. Adjacent pixel stages are fused by the {@link StagePipeline}
+ * into a single pass over the image, or into the pass that writes the tensor.
+ */
+public abstract class PixelStage implements Stage {
+	
+	/**
+	 * @param channel: channel of the pixel
+	 * @param value: value of the pixel
+	 * @return new value of the pixel
+	 */
+	public abstract float apply(int channel, float value);
+	
+	/**
+	 * Apply the stage in place
+	 */
+	@Override
+	public FloatPlanes apply(FloatPlanes input) {
+		for (int c = 0; c < input.getNChannels(); c ++) {
+			final float[] pixels = input.getChannel(c);
+			for (int i = 0; i < pixels.length; i ++)
+				pixels[i] = apply(c, pixels[i]);
+		}
+		return input;
+	}
+	
+	/**
+	 * Fuse this stage with the next one
+	 * @param next: stage applied after this one
+	 * @return a stage equivalent to applying this stage and then the next one
+	 */
+	public PixelStage fuse(PixelStage next) {
+		return new FusedPixelStage(this, next);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import maskrcnn.utils.Resampler;
+
+/**
+ * Stage that resizes every channel to a fixed size with the {@link Resampler}
+ */
+public class ResizeStage implements Stage {
+	
+	private final int width;
+	private final int height;
+	private final Resampler.Method method;
+	
+	/**
+	 * @param width: width of the resized image
+	 * @param height: height of the resized image
+	 * @param method: interpolation method
+	 */
+	public ResizeStage(int width, int height, Resampler.Method method) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("The size of the resized image has to be positive.");
+		this.width = width;
+		this.height = height;
+		this.method = method;
+	}
+	
+	@Override
+	public FloatPlanes apply(FloatPlanes input) {
+		if (input.getWidth() == width && input.getHeight() == height)
+			return input;
+		final float[][] channels = new float[input.getNChannels()][];
+		for (int c = 0; c < channels.length; c ++)
+			channels[c] = Resampler.resize(input.getChannel(c), input.getWidth(), input.getHeight(), width, height, method);
+		return new FloatPlanes(width, height, channels);
+	}
+	
+	@Override
+	public String toString() {
+		return "resize(" + width + ", " + height + ", " + method.toString().toLowerCase() + ")";
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ij.ImagePlus;
+import maskrcnn.utils.Resampler;
+import maskrcnn.utils.TensorPrecision;
+
+/**
+ * Chain of processing stages described by a single line of text, so models
+ * other than Mask R-CNN can be pre- and post-processed from their config file.
+ * Stages are separated by '|' and their arguments go between parentheses:
+ * <pre>
+ * resize(512, 512, bilinear) | pad(16) | percentile(1, 99.8) | clip(0, 1) | tensor(bhwc, float32)
+ * </pre>
+ * Available stages:
+ * <ul>
+ * <li>resize(width, height[, method]): method is bilinear (default), bicubic or area</li>
+ * <li>pad(multiple[, value]): pad bottom and right up to a multiple of the number</li>
+ * <li>subtract(v1, v2, ...): subtract a value to each channel</li>
+ * <li>scale(v1, v2, ...): multiply each channel by a value</li>
+ * <li>standardise(mean, std): (value - mean) / std, with one value for every channel</li>
+ * <li>percentile(low, high): normalise each channel with its percentiles</li>
+ * <li>clip(min, max): limit the values to a range</li>
+ * <li>threshold(t): 1 for values &gt;= t, 0 otherwise</li>
+ * <li>tensor(layout[, precision[, direct]]): only as last stage, write the image into a
+ * 	tensor with layout bhwc or bchw, precision float32 (default), float16, bfloat16 or
+ * 	uint8, on the heap or in a direct buffer</li>
+ * </ul>
+ * When the pipeline is compiled, adjacent pixel stages (subtract, scale,
+ * standardise, clip, threshold) are fused into a single pass, consecutive affine
+ * stages are folded into one, and the pixel stages before the tensor stage are
+ * applied while the tensor is written.
+ */
+public class StagePipeline {
+	
+	private final List<Stage> stages;
+	/**
+	 * Pixel stages applied while the tensor is written, null if there are none
+	 */
+	private final PixelStage tensorPixels;
+	private final TensorStage tensor;
+	
+	private StagePipeline(List<Stage> stages, PixelStage tensorPixels, TensorStage tensor) {
+		this.stages = stages;
+		this.tensorPixels = tensorPixels;
+		this.tensor = tensor;
+	}
+	
+	/**
+	 * Parse and compile a pipeline
+	 * @param spec: stages separated by '|'
+	 * @return the compiled pipeline
+	 * @throws IllegalArgumentException if the description is not valid
+	 */
+	public static StagePipeline parse(String spec) {
+		final ArrayList<Stage> parsed = new ArrayList<Stage>();
+		TensorStage tensor = null;
+		final String[] parts = spec.split("\\|");
+		for (int i = 0; i < parts.length; i ++) {
+			final String part = parts[i].trim();
+			final int open = part.indexOf('(');
+			if (open < 0 || !part.endsWith(")"))
+				throw new IllegalArgumentException("Stage '" + part + "' should be written as name(arguments).");
+			final String name = part.substring(0, open).trim().toLowerCase();
+			final String argStr = part.substring(open + 1, part.length() - 1).trim();
+			final String[] args = argStr.equals("") ? new String[0] : argStr.split(",");
+			for (int k = 0; k < args.length; k ++)
+				args[k] = args[k].trim();
+			if (name.equals("tensor")) {
+				if (i != parts.length - 1)
+					throw new IllegalArgumentException("The tensor stage has to be the last one.");
+				tensor = parseTensor(args);
+			} else {
+				parsed.add(parseStage(name, args));
+			}
+		}
+		return compile(parsed, tensor);
+	}
+	
+	/**
+	 * Fuse the adjacent pixel stages
+	 * @param parsed: stages in order
+	 * @param tensor: final tensor stage, null if the pipeline returns an image
+	 * @return the compiled pipeline
+	 */
+	private static StagePipeline compile(List<Stage> parsed, TensorStage tensor) {
+		final ArrayList<Stage> compiled = new ArrayList<Stage>();
+		PixelStage pending = null;
+		for (Stage s : parsed) {
+			if (s instanceof PixelStage) {
+				pending = pending == null ? (PixelStage) s : pending.fuse((PixelStage) s);
+				continue;
+			}
+			if (pending != null)
+				compiled.add(pending);
+			pending = null;
+			compiled.add(s);
+		}
+		if (pending != null && tensor == null) {
+			compiled.add(pending);
+			pending = null;
+		}
+		return new StagePipeline(Collections.unmodifiableList(compiled), pending, tensor);
+	}
+	
+	private static Stage parseStage(String name, String[] args) {
+		try {
+			switch (name) {
+			case "resize":
+				checkArgs(name, args, 2, 3);
+				final Resampler.Method method = args.length > 2 ? Resampler.Method.fromString(args[2]) : null;
+				return new ResizeStage(Integer.parseInt(args[0]), Integer.parseInt(args[1]), 
+						method == null ? Resampler.Method.BILINEAR : method);
+			case "pad":
+				checkArgs(name, args, 1, 2);
+				return new PadStage(Integer.parseInt(args[0]), args.length > 1 ? Float.parseFloat(args[1]) : 0);
+			case "subtract":
+				checkArgs(name, args, 1, Integer.MAX_VALUE);
+				return AffineStage.subtract(parseFloats(args));
+			case "scale":
+				checkArgs(name, args, 1, Integer.MAX_VALUE);
+				return new AffineStage(parseFloats(args), new float[] {0});
+			case "standardise":
+				checkArgs(name, args, 2, 2);
+				return AffineStage.standardise(new float[] {Float.parseFloat(args[0])}, new float[] {Float.parseFloat(args[1])});
+			case "percentile":
+				checkArgs(name, args, 2, 2);
+				return new PercentileStage(Double.parseDouble(args[0]), Double.parseDouble(args[1]));
+			case "clip":
+				checkArgs(name, args, 2, 2);
+				return new ClipStage(Float.parseFloat(args[0]), Float.parseFloat(args[1]));
+			case "threshold":
+				checkArgs(name, args, 1, 1);
+				return new ThresholdStage(Float.parseFloat(args[0]));
+			default:
+				throw new IllegalArgumentException("Unknown stage '" + name + "'.");
+			}
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("The arguments of the stage '" + name + "' are not numbers.");
+		}
+	}
+	
+	private static TensorStage parseTensor(String[] args) {
+		checkArgs("tensor", args, 1, 3);
+		final TensorPrecision precision = args.length > 1 ? TensorPrecision.fromString(args[1]) : null;
+		final boolean direct = args.length > 2 && args[2].equalsIgnoreCase("direct");
+		if (args.length > 2 && !direct && !args[2].equalsIgnoreCase("heap"))
+			throw new IllegalArgumentException("The memory of the tensor stage has to be 'heap' or 'direct'.");
+		return new TensorStage(args[0], precision == null ? TensorPrecision.FLOAT32 : precision, direct);
+	}
+	
+	private static void checkArgs(String name, String[] args, int min, int max) {
+		if (args.length < min || args.length > max)
+			throw new IllegalArgumentException("Wrong number of arguments for the stage '" + name + "'.");
+	}
+	
+	private static float[] parseFloats(String[] args) {
+		final float[] values = new float[args.length];
+		for (int i = 0; i < args.length; i ++)
+			values[i] = Float.parseFloat(args[i]);
+		return values;
+	}
+	
+	/**
+	 * Run the stages over an image
+	 * @param planes: input image, it may be modified
+	 * @return the tensor if the pipeline ends with a tensor stage, otherwise the
+	 * 	resulting {@link FloatPlanes}
+	 */
+	public Object run(FloatPlanes planes) {
+		for (Stage s : stages)
+			planes = s.apply(planes);
+		if (tensor != null)
+			return tensor.create(planes, tensorPixels);
+		return planes;
+	}
+	
+	/**
+	 * Run the stages over the current slice and frame of an image, which is not modified
+	 * @param image: input image
+	 * @return the tensor if the pipeline ends with a tensor stage, otherwise a 32-bit image
+	 */
+	public Object run(ImagePlus image) {
+		final Object out = run(FloatPlanes.fromImage(image));
+		if (out instanceof FloatPlanes)
+			return ((FloatPlanes) out).toImage(image.getTitle());
+		return out;
+	}
+	
+	/**
+	 * @return stages after fusion, without the tensor stage
+	 */
+	public List<Stage> getStages() {
+		return stages;
+	}
+	
+	/**
+	 * @return whether the pipeline returns a tensor instead of an image
+	 */
+	public boolean hasTensorStage() {
+		return tensor != null;
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (Stage s : stages)
+			sb.append(sb.length() == 0 ? "" : " | ").append(s);
+		if (tensor != null)
+			sb.append(sb.length() == 0 ? "" : " | ").append(tensorPixels == null ? "" : tensorPixels + " + ").append(tensor);
+		return sb.toString();
+	}
+}
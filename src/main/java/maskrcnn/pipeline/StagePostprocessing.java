@@ -0,0 +1,139 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import deepimagej.processing.PostProcessingInterface;
+import ij.ImagePlus;
+
+/**
+ * Post-processing defined entirely by the config file, the counterpart of
+ * {@link StagePreprocessing}. The stages of the parameter 'POSTPROCESSING_STAGES'
+ * are applied to every image output by the model, and the tables and any other
+ * output are returned unchanged:
+ * <pre>
+ * PARAMETER: POSTPROCESSING_STAGES = clip(0, 1) | threshold(0.5)
+ * </pre>
+ * The stages cannot end with a tensor stage.
+ */
+public class StagePostprocessing implements PostProcessingInterface {
+	/**
+	 * Attribute to communicate errors to DeepImageJ plugins
+	 */
+	private String ERROR = "";
+	/**
+	 * Stages compiled from the parameter 'POSTPROCESSING_STAGES'
+	 */
+	private StagePipeline PIPELINE = null;
+
+	/**
+	 * Return error that stopped post-processing to DeepImageJ
+	 */
+	@Override
+	public String error() {
+		return ERROR;
+	}
+
+	/**
+	 * Run the stages on each image output by the model
+	 * @param map: outputs of the model
+	 * @return the same outputs with the images processed
+	 */
+	@Override
+	public HashMap<String, Object> deepimagejPostprocessing(HashMap<String, Object> map) {
+		if (PIPELINE == null) {
+			if (ERROR.equals(""))
+				ERROR = "The config file has to be provided before running the post-processing.";
+			return null;
+		}
+		final HashMap<String, Object> outputs = new HashMap<String, Object>();
+		try {
+			for (Entry<String, Object> e : map.entrySet()) {
+				if (e.getValue() instanceof ImagePlus)
+					outputs.put(e.getKey(), PIPELINE.run((ImagePlus) e.getValue()));
+				else
+					outputs.put(e.getKey(), e.getValue());
+			}
+		} catch (IllegalArgumentException ex) {
+			ERROR = ex.getMessage();
+			return null;
+		}
+		return outputs;
+	}
+
+	/**
+	 * Find the config file among the attachments and compile its stages
+	 * @param configFiles: list of attachments, one of them called 'config.ijm'
+	 */
+	@Override
+	public void setConfigFiles(ArrayList<String> configFiles) {
+		ERROR = "";
+		PIPELINE = null;
+		final HashMap<String, String> config;
+		try {
+			config = StagePreprocessing.readConfig(configFiles, "post-processing");
+		} catch (IllegalArgumentException ex) {
+			ERROR = ex.getMessage();
+			return;
+		}
+		final String spec = config.get("POSTPROCESSING_STAGES");
+		if (spec == null) {
+			ERROR = "The config file does not contain the parameter 'POSTPROCESSING_STAGES'.";
+			return;
+		}
+		try {
+			final StagePipeline pipeline = StagePipeline.parse(spec);
+			if (pipeline.hasTensorStage()) {
+				ERROR = "The parameter 'POSTPROCESSING_STAGES' cannot end with a tensor stage.";
+				return;
+			}
+			PIPELINE = pipeline;
+		} catch (IllegalArgumentException ex) {
+			ERROR = "The parameter 'POSTPROCESSING_STAGES' is incorrect:\n" + ex.getMessage();
+		}
+	}
+	
+	/**
+	 * @return stages used by the post-processing, null if they have not been configured
+	 */
+	public StagePipeline getPipeline() {
+		return PIPELINE;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import deepimagej.processing.PreProcessingInterface;
+import ij.IJ;
+import ij.ImagePlus;
+import maskrcnn.Preprocessing;
+
+/**
+ * Pre-processing defined entirely by the config file, for models that only need
+ * a chain of generic stages instead of the Mask R-CNN molding. The comment block
+ * of the config file 'config.ijm' has to contain the stages (see {@link StagePipeline})
+ * and the name of the model input:
+ * <pre>
+ * PARAMETER: PREPROCESSING_STAGES = resize(256, 256) | percentile(1, 99.8) | tensor(bhwc)
+ * PARAMETER: INPUT_IMAGE = input
+ * </pre>
+ * If 'INPUT_IMAGE' is not given, the first image of the inputs is used and
+ * the result keeps its key.
+ */
+public class StagePreprocessing implements PreProcessingInterface {
+	/**
+	 * Dictionary containing all the parameters parsed from the file
+	 */
+	private HashMap<String, String> CONFIG = new HashMap<String, String>();
+	/**
+	 * Attribute to communicate errors to DeepImageJ plugins
+	 */
+	private String ERROR = "";
+	/**
+	 * Stages compiled from the parameter 'PREPROCESSING_STAGES'
+	 */
+	private StagePipeline PIPELINE = null;
+
+	/**
+	 * Return error that stopped pre-processing to DeepImageJ
+	 */
+	@Override
+	public String error() {
+		return ERROR;
+	}
+
+	/**
+	 * Run the stages on the input image
+	 * @param map: inputs given by deepImageJ. The image can be an ImagePlus or a File
+	 * 	or Path that ImageJ can open
+	 * @return the result of the stages under the name of the model input
+	 */
+	@Override
+	public HashMap<String, Object> deepimagejPreprocessing(HashMap<String, Object> map) {
+		if (PIPELINE == null) {
+			if (ERROR.equals(""))
+				ERROR = "The config file has to be provided before running the pre-processing.";
+			return null;
+		}
+		String key = CONFIG.get("INPUT_IMAGE");
+		Object input = key == null ? null : map.get(key);
+		if (input == null) {
+			for (Entry<String, Object> e : map.entrySet()) {
+				if (e.getValue() instanceof ImagePlus || e.getValue() instanceof File || e.getValue() instanceof Path) {
+					key = key == null ? e.getKey() : key;
+					input = e.getValue();
+					break;
+				}
+			}
+		}
+		if (input instanceof Path)
+			input = ((Path) input).toFile();
+		if (input instanceof File) {
+			input = IJ.openImage(((File) input).getAbsolutePath());
+			if (input == null) {
+				ERROR = "The input image file could not be opened.";
+				return null;
+			}
+		}
+		if (!(input instanceof ImagePlus)) {
+			ERROR = "No input image was found for the pre-processing.";
+			return null;
+		}
+		final HashMap<String, Object> outputs = new HashMap<String, Object>();
+		try {
+			outputs.put(key, PIPELINE.run((ImagePlus) input));
+		} catch (IllegalArgumentException ex) {
+			ERROR = ex.getMessage();
+			return null;
+		}
+		return outputs;
+	}
+
+	/**
+	 * Find the config file among the attachments and compile its stages
+	 * @param configFiles: list of attachments, one of them called 'config.ijm'
+	 */
+	@Override
+	public void setConfigFiles(ArrayList<String> configFiles) {
+		ERROR = "";
+		PIPELINE = null;
+		try {
+			CONFIG = readConfig(configFiles, "pre-processing");
+		} catch (IllegalArgumentException ex) {
+			ERROR = ex.getMessage();
+			return;
+		}
+		final String spec = CONFIG.get("PREPROCESSING_STAGES");
+		if (spec == null) {
+			ERROR = "The config file does not contain the parameter 'PREPROCESSING_STAGES'.";
+			return;
+		}
+		try {
+			PIPELINE = StagePipeline.parse(spec);
+		} catch (IllegalArgumentException ex) {
+			ERROR = "The parameter 'PREPROCESSING_STAGES' is incorrect:\n" + ex.getMessage();
+		}
+	}
+	
+	/**
+	 * @return stages used by the pre-processing, null if they have not been configured
+	 */
+	public StagePipeline getPipeline() {
+		return PIPELINE;
+	}
+
+	/**
+	 * Find 'config.ijm' among the attachments and read its parameters, written
+	 * as in the Mask R-CNN config file: '* PARAMETER: KEY = value'
+	 * @param configFiles: list of attachments
+	 * @param step: name of the processing step, used in the error messages
+	 * @return the parameters
+	 * @throws IllegalArgumentException if the config file is missing or cannot be read
+	 */
+	static HashMap<String, String> readConfig(ArrayList<String> configFiles, String step) {
+		String path = null;
+		for (String ff : configFiles) {
+			String fileName = ff.substring(ff.lastIndexOf(File.separator) + 1);
+			if (fileName.contentEquals("config.ijm")) {
+				path = ff;
+				break;
+			}
+		}
+		if (path == null && configFiles.size() == 0) {
+			throw new IllegalArgumentException("No parameters file or config file provided for " + step + ".");
+		} else if (path == null) {
+			throw new IllegalArgumentException("A configuration file was not found in the model. The configuration file"
+					+ "should be called 'config.ijm', please rename the config file if it is "
+					+ "not named correctly.");
+		} else if (!(new File(path).exists())) {
+			throw new IllegalArgumentException("The configuration file provided during " + step + " does not exist.");
+		}
+		try {
+			return Preprocessing.readParameters(path);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not access the config file provided during " + step + ":\n- " + path);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.pipeline;
+
+import java.util.ArrayList;
+
+import maskrcnn.utils.ImgLib2Builder;
+import maskrcnn.utils.TensorPrecision;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Last stage of a {@link StagePipeline}: writes the image into a tensor with
+ * a batch dimension of 1 in the wanted layout and precision, on the heap or in
+ * a direct buffer. The pixel stages that precede it are applied while the
+ * tensor is written, so they do not need a pass of their own
+ */
+public class TensorStage {
+	
+	private final boolean channelsLast;
+	private final TensorPrecision precision;
+	private final boolean direct;
+	
+	/**
+	 * @param layout: 'bhwc' or 'bchw'
+	 * @param precision: element type of the tensor
+	 * @param direct: whether the tensor is written into a direct buffer
+	 */
+	public TensorStage(String layout, TensorPrecision precision, boolean direct) {
+		if (layout.equalsIgnoreCase("bhwc"))
+			channelsLast = true;
+		else if (layout.equalsIgnoreCase("bchw"))
+			channelsLast = false;
+		else
+			throw new IllegalArgumentException("Unknown tensor layout '" + layout + "'. The allowed values are: 'bhwc' and 'bchw'.");
+		this.precision = precision;
+		this.direct = direct;
+	}
+	
+	/**
+	 * Write the image into the tensor
+	 * @param planes: image
+	 * @param pixels: pixel stages applied while writing, null for none
+	 * @return Img of the wanted precision or {@link maskrcnn.utils.DirectTensor}
+	 */
+	public Object create(FloatPlanes planes, final PixelStage pixels) {
+		final ArrayList<RandomAccessibleInterval<FloatType>> channels = new ArrayList<RandomAccessibleInterval<FloatType>>();
+		for (int c = 0; c < planes.getNChannels(); c ++) {
+			RandomAccessibleInterval<FloatType> channel = ArrayImgs.floats(planes.getChannel(c), planes.getWidth(), planes.getHeight());
+			if (pixels != null) {
+				final int ch = c;
+				channel = Converters.convert(channel, (a, b) -> b.set(pixels.apply(ch, a.get())), new FloatType());
+			}
+			channels.add(channel);
+		}
+		// [width, height, channels]
+		RandomAccessibleInterval<FloatType> view = Views.stack(channels);
+		// [height, width, channels] or [channels, height, width], then the batch dimension first
+		view = channelsLast ? Views.permute(view, 0, 1) : Views.permute(view, 0, 2);
+		view = Views.moveAxis(Views.addDimension(view, 0, 0), 3, 0);
+		if (direct)
+			return ImgLib2Builder.createDirectImageTensor(view, precision);
+		return ImgLib2Builder.createImageTensor(view, precision);
+	}
+	
+	@Override
+	public String toString() {
+		return "tensor(" + (channelsLast ? "bhwc" : "bchw") + ", " + precision.toString().toLowerCase() 
+				+ (direct ? ", direct" : "") + ")";
+	}
+}
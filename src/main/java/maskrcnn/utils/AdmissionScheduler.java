@@ -0,0 +1,206 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.ArrayDeque;
+
+/**
+ * Admission control for images processed at the same time. Each image asks
+ * for the memory given by its {@link MemoryEstimate} and only starts when it
+ * fits in the budget together with the images already running. If the full
+ * size masks do not fit but the sparse output does, the image is admitted
+ * with a sparse output instead of waiting. Otherwise it waits until enough
+ * memory is released. An image that does not fit in the budget even with a
+ * sparse output runs alone. Waiting images are admitted in arrival order, so a
+ * large image is not starved by a stream of small ones.
+ * 
+ * Usage:
+ * <pre>
+ * try (AdmissionScheduler.Ticket ticket = scheduler.admit(estimate)) {
+ *     if (ticket.isSparse())
+ *         postprocessing.setOutputMode("instances");
+ *     ...
+ * }
+ * </pre>
+ */
+public class AdmissionScheduler {
+	
+	private final long budget;
+	private long used = 0;
+	private int running = 0;
+	/**
+	 * Images waiting to be admitted, in arrival order. Only the first one can be admitted
+	 */
+	private final ArrayDeque<Object> waiting = new ArrayDeque<Object>();
+	
+	/**
+	 * Memory reserved by an admitted image, released when the ticket is closed
+	 */
+	public class Ticket implements AutoCloseable {
+		private final long bytes;
+		private final boolean sparse;
+		private boolean released = false;
+		
+		private Ticket(long bytes, boolean sparse) {
+			this.bytes = bytes;
+			this.sparse = sparse;
+		}
+		
+		/**
+		 * @return whether the image has to be processed with a sparse output
+		 */
+		public boolean isSparse() {
+			return sparse;
+		}
+		
+		/**
+		 * @return bytes reserved for the image
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+		
+		@Override
+		public void close() {
+			release(this);
+		}
+	}
+	
+	/**
+	 * @param budget: bytes of heap that the images processed at the same time can use
+	 */
+	public AdmissionScheduler(long budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * Create a scheduler whose budget is a fraction of the maximum heap of the JVM
+	 * @param fraction: fraction of the heap, between 0 and 1
+	 * @return the scheduler
+	 */
+	public static AdmissionScheduler ofHeapFraction(double fraction) {
+		return new AdmissionScheduler((long) (Runtime.getRuntime().maxMemory() * fraction));
+	}
+	
+	/**
+	 * Wait until the image fits in the budget and every image that arrived before it was admitted
+	 * @param estimate: memory needed by the image
+	 * @return ticket to close once the image has been processed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public Ticket admit(MemoryEstimate estimate) throws InterruptedException {
+		return admit(estimate, false);
+	}
+	
+	/**
+	 * Wait until the image fits in the budget and every image that arrived before it was admitted
+	 * @param estimate: memory needed by the image
+	 * @param sparseOnly: whether the image is always processed with a sparse output,
+	 * 	so only the memory of the sparse output is reserved
+	 * @return ticket to close once the image has been processed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public synchronized Ticket admit(MemoryEstimate estimate, boolean sparseOnly) throws InterruptedException {
+		Ticket ticket;
+		if (waiting.isEmpty() && (ticket = fit(estimate, sparseOnly)) != null)
+			return ticket;
+		final Object turn = new Object();
+		waiting.add(turn);
+		try {
+			while (waiting.peek() != turn || (ticket = fit(estimate, sparseOnly)) == null)
+				wait();
+			return ticket;
+		} finally {
+			// Admitted or interrupted, the next image in the queue gets its turn
+			waiting.remove(turn);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Admit the image only if it fits now and no other image is waiting
+	 * @param estimate: memory needed by the image
+	 * @return ticket to close once the image has been processed, null if it does not fit
+	 */
+	public synchronized Ticket tryAdmit(MemoryEstimate estimate) {
+		return waiting.isEmpty() ? fit(estimate, false) : null;
+	}
+	
+	/**
+	 * Reserve the memory of the image if it fits in the budget
+	 * @param estimate: memory needed by the image
+	 * @param sparseOnly: whether only the memory of the sparse output is needed
+	 * @return ticket of the reservation, null if it does not fit
+	 */
+	private Ticket fit(MemoryEstimate estimate, boolean sparseOnly) {
+		final long dense = estimate.getPeakBytes(false);
+		final long sparse = estimate.getPeakBytes(true);
+		Ticket ticket = null;
+		if (!sparseOnly && used + dense <= budget)
+			ticket = new Ticket(dense, false);
+		else if (used + sparse <= budget || running == 0)
+			ticket = new Ticket(sparse, true);
+		if (ticket != null) {
+			used += ticket.bytes;
+			running ++;
+		}
+		return ticket;
+	}
+	
+	private synchronized void release(Ticket ticket) {
+		if (ticket.released)
+			return;
+		ticket.released = true;
+		used -= ticket.bytes;
+		running --;
+		notifyAll();
+	}
+	
+	/**
+	 * @return bytes reserved by the images running
+	 */
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+	
+	/**
+	 * @return budget of the scheduler in bytes
+	 */
+	public long getBudget() {
+		return budget;
+	}
+}
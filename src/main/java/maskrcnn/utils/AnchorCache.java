@@ -0,0 +1,151 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Persistent cache of the anchor tensors generated by {@link MaskRcnnAnchors}.
+ * Each anchor pyramid is written to a file named after the key returned by
+ * {@link MaskRcnnAnchors#getCacheKey(float[])}, so every JVM on the same machine
+ * that processes images of the same shape with the same anchor configuration
+ * can reuse it instead of generating it again.
+ * 
+ * The file contains a 16 byte header (magic number, version, number of anchors
+ * and coordinates per anchor) followed by the little endian floats in the memory
+ * order of an ImgLib2 ArrayImg of shape [1, nAnchors, 4]. That allows mapping the
+ * file straight into an image, sharing the page cache between processes.
+ */
+public class AnchorCache {
+	
+	private static final int MAGIC = 0x4D52414E;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final String EXTENSION = ".anchors";
+	
+	/**
+	 * Load the anchors tensor corresponding to a key
+	 * @param dir: directory of the cache
+	 * @param key: key of the anchor configuration
+	 * @param mapped: if true the image is backed by a read-only memory-mapped buffer,
+	 * 	if false the data is copied in bulk into a heap array
+	 * @return image of shape [1, nAnchors, 4] or null if the anchors are not cached
+	 * 	or the file is not valid
+	 */
+	public static Img<FloatType> load(File dir, String key, boolean mapped) {
+		File file = new File(dir, key + EXTENSION);
+		if (!file.isFile())
+			return null;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES)
+				return null;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				return null;
+			int nAnchors = buffer.getInt(8);
+			int coords = buffer.getInt(12);
+			if (size != HEADER_BYTES + 4L * nAnchors * coords)
+				return null;
+			buffer.position(HEADER_BYTES);
+			FloatBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			if (mapped)
+				return ArrayImgs.floats(new NioFloatAccess(data), 1, nAnchors, coords);
+			float[] arr = new float[nAnchors * coords];
+			data.get(arr);
+			return ArrayImgs.floats(arr, 1, nAnchors, coords);
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Write the anchors to the cache. The file is written to a temporary file first
+	 * and then moved, so other processes never see a partially written file
+	 * @param dir: directory of the cache, it is created if it does not exist
+	 * @param key: key of the anchor configuration
+	 * @param anchors: array of shape [nAnchors][4] as produced by
+	 * 	{@link MaskRcnnAnchors#generatePyramidAnchors}
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void store(File dir, String key, float[][] anchors) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create the anchor cache directory: " + dir);
+		int nAnchors = anchors.length;
+		int coords = nAnchors == 0 ? 4 : anchors[0].length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * nAnchors * coords).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(nAnchors).putInt(coords);
+		// ArrayImg order: the first dimension (anchor index) varies fastest
+		for (int j = 0; j < coords; j ++) {
+			for (int i = 0; i < nAnchors; i ++) {
+				buffer.putFloat(anchors[i][j]);
+			}
+		}
+		buffer.flip();
+		Path target = new File(dir, key + EXTENSION).toPath();
+		Path tmp = Files.createTempFile(dir.toPath(), key, ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+			try {
+				Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sink that writes the instances in a compact little-endian binary format.
+ * The file starts with the int MAGIC and the int VERSION, followed by records
+ * that start with a tag byte:
+ * 'I' image: int name length, UTF-8 name, int width, int height
+ * 'D' instance: int index, int class id, float score, int y1, int x1, int y2,
+ * 		int x2, int number of run lengths, long run lengths (COCO order)
+ * 'E' end of the image
+ */
+public class BinaryInstanceSink extends FileInstanceSink {
+	
+	/**
+	 * "MRIN" in ASCII
+	 */
+	public static final int MAGIC = 0x4D52494E;
+	/**
+	 * Version 2 writes the run lengths as longs, as runs of whole-slide images
+	 * do not fit in an int
+	 */
+	public static final int VERSION = 2;
+	
+	/**
+	 * @param file: file where the instances are written
+	 * @param append: whether to append to the file if it exists, otherwise it is overwritten
+	 * @throws IOException if the file cannot be opened
+	 */
+	public BinaryInstanceSink(File file, boolean append) throws IOException {
+		super(file, append);
+		if (isEmptyFile())
+			reserve(8).putInt(MAGIC).putInt(VERSION);
+	}
+
+	@Override
+	public void beginImage(String name, int width, int height) throws IOException {
+		final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		reserve(5).put((byte) 'I').putInt(bytes.length);
+		write(bytes);
+		reserve(8).putInt(width).putInt(height);
+	}
+
+	@Override
+	public void accept(DetectedInstance instance) throws IOException {
+		final int[] box = instance.getBox();
+		final long[] counts = instance.getRle();
+		reserve(37).put((byte) 'D').putInt(instance.getIndex()).putInt(instance.getClassId())
+			.putFloat((float) instance.getScore()).putInt(box[0]).putInt(box[1]).putInt(box[2]).putInt(box[3])
+			.putInt(counts.length);
+		for (long c : counts)
+			reserve(8).putLong(c);
+	}
+
+	@Override
+	public void endImage() throws IOException {
+		reserve(1).put((byte) 'E');
+	}
+}
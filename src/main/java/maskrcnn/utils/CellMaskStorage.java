@@ -0,0 +1,203 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.File;
+import java.util.HashMap;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Full size output of the post-processing stored in ImgLib2 disk cached cell
+ * images instead of a heap ImagePlus, for images whose mask stack does not fit in
+ * memory. The image is divided into square cells that are only created when an
+ * instance is painted on them, so the cells outside every bounding box never
+ * exist. At most a fixed number of cells is kept in memory; the least recently
+ * used ones are written to a scratch directory, deleted when the JVM exits, and
+ * read back when they are needed again.
+ * 
+ * Two layouts are available: one binary mask per instance, [width, height, instances],
+ * or a single label image [width, height] where the instance i is painted with i + 1.
+ */
+public class CellMaskStorage<T extends NativeType<T> & IntegerType<T>> {
+	
+	private final Img<T> img;
+	private final boolean labels;
+	private final RandomAccess<T> access;
+	private final long width;
+	private final long height;
+	
+	private CellMaskStorage(Img<T> img, boolean labels) {
+		this.img = img;
+		this.labels = labels;
+		this.access = img.randomAccess();
+		this.width = img.dimension(0);
+		this.height = img.dimension(1);
+	}
+	
+	/**
+	 * Create the storage described by the parameters 'MASK_STORAGE', 'MASK_CELL_SIZE',
+	 * 'MASK_CACHE_CELLS' and 'MASK_CACHE_DIR' of the config file
+	 * @param config: parameters of the config file
+	 * @param width: width of the original image
+	 * @param height: height of the original image
+	 * @param nInstances: number of instances
+	 * @return the storage, or null if 'MASK_STORAGE' asks for the heap mask stack
+	 * @throws IllegalArgumentException if the parameters are incorrect
+	 */
+	public static CellMaskStorage<?> create(HashMap<String, String> config, int width, int height, int nInstances) {
+		final String storage = config.get("MASK_STORAGE");
+		if (storage == null || storage.equalsIgnoreCase("heap"))
+			return null;
+		final int cellSize;
+		final long maxCells;
+		try {
+			cellSize = Integer.parseInt(config.get("MASK_CELL_SIZE"));
+			maxCells = Long.parseLong(config.get("MASK_CACHE_CELLS"));
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("The config file information for the parameters 'MASK_CELL_SIZE' and "
+					+ "'MASK_CACHE_CELLS' is incorrect or not present.");
+		}
+		if (cellSize <= 0 || maxCells <= 0)
+			throw new IllegalArgumentException("The parameters 'MASK_CELL_SIZE' and 'MASK_CACHE_CELLS' have to be positive.");
+		final String dir = config.get("MASK_CACHE_DIR");
+		final File scratch = dir == null || dir.equals("") || dir.equals("None") ? null : new File(dir);
+		if (storage.equalsIgnoreCase("cells"))
+			return createMasks(width, height, nInstances, cellSize, maxCells, scratch);
+		if (storage.equalsIgnoreCase("labels"))
+			return createLabels(width, height, cellSize, maxCells, scratch);
+		throw new IllegalArgumentException("The config file information for the parameter 'MASK_STORAGE' is incorrect.\n"
+				+ "The value provided is '" + storage + "'. However the only values allowed are: 'heap', 'cells' and 'labels'.");
+	}
+	
+	/**
+	 * Create the storage of one binary mask per instance
+	 * @param width: width of the original image
+	 * @param height: height of the original image
+	 * @param nInstances: number of instances
+	 * @param cellSize: side of the cells
+	 * @param maxCells: maximum number of cells kept in memory
+	 * @param scratch: directory where the scratch directory is created, null for the system temporary directory
+	 * @return the storage, with dimensions [width, height, nInstances]
+	 */
+	public static CellMaskStorage<UnsignedByteType> createMasks(int width, int height, int nInstances, 
+			int cellSize, long maxCells, File scratch) {
+		final ImgFactory<UnsignedByteType> factory = new DiskCachedCellImgFactory<UnsignedByteType>(new UnsignedByteType(), 
+				options(scratch, maxCells, cellSize, cellSize, 1));
+		return new CellMaskStorage<UnsignedByteType>(factory.create(width, height, nInstances), false);
+	}
+	
+	/**
+	 * Create the storage of a label image
+	 * @param width: width of the original image
+	 * @param height: height of the original image
+	 * @param cellSize: side of the cells
+	 * @param maxCells: maximum number of cells kept in memory
+	 * @param scratch: directory where the scratch directory is created, null for the system temporary directory
+	 * @return the storage, with dimensions [width, height]
+	 */
+	public static CellMaskStorage<UnsignedShortType> createLabels(int width, int height, 
+			int cellSize, long maxCells, File scratch) {
+		final ImgFactory<UnsignedShortType> factory = new DiskCachedCellImgFactory<UnsignedShortType>(new UnsignedShortType(), 
+				options(scratch, maxCells, cellSize, cellSize));
+		return new CellMaskStorage<UnsignedShortType>(factory.create(width, height), true);
+	}
+	
+	/**
+	 * @param scratch: directory where the scratch directory is created, null for the system temporary directory
+	 * @param maxCells: maximum number of cells kept in memory
+	 * @param cellDimensions: dimensions of the cells
+	 * @return options of a bounded cache that writes the evicted cells to a
+	 * 	new scratch directory, deleted when the JVM exits
+	 */
+	private static DiskCachedCellImgOptions options(File scratch, long maxCells, int... cellDimensions) {
+		DiskCachedCellImgOptions options = DiskCachedCellImgOptions.options()
+				.cellDimensions(cellDimensions)
+				.cacheType(DiskCachedCellImgOptions.CacheType.BOUNDED)
+				.maxCacheSize(maxCells)
+				.dirtyAccesses(true)
+				.tempDirectoryPrefix("maskrcnn-masks")
+				.deleteCacheDirectoryOnExit(true);
+		if (scratch != null)
+			options = options.tempDirectory(scratch.toPath());
+		return options;
+	}
+	
+	/**
+	 * Paint one pixel of an instance. Pixels outside of the image are ignored and,
+	 * in the label image, pixels already painted keep the first label
+	 * @param instance: index of the instance
+	 * @param x: x coordinate in the original image
+	 * @param y: y coordinate in the original image
+	 */
+	public void paint(int instance, int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return;
+		access.setPosition(x, 0);
+		access.setPosition(y, 1);
+		if (labels) {
+			final T value = access.get();
+			if (value.getInteger() == 0)
+				value.setInteger(instance + 1);
+		} else {
+			access.setPosition(instance, 2);
+			access.get().setInteger(1);
+		}
+	}
+	
+	/**
+	 * @return the cell image, [width, height, instances] for masks or [width, height] for labels
+	 */
+	public Img<T> getImg() {
+		return img;
+	}
+	
+	/**
+	 * @return whether the storage is a label image
+	 */
+	public boolean isLabels() {
+		return labels;
+	}
+}
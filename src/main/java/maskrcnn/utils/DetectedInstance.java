@@ -0,0 +1,197 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Object detected by Mask R-CNN: its class, score and bounding box in the
+ * original image, together with the low resolution mask output by the model.
+ * The mask at the resolution of the original image is only computed when it
+ * is requested, and only inside the bounding box. If the instance has a
+ * {@link RasterCache} the mask is memoised there.
+ */
+public class DetectedInstance {
+	
+	private final int index;
+	private final int classId;
+	private final double score;
+	private final int[] box;
+	private final int imageWidth;
+	private final int imageHeight;
+	private final ImageProcessor sourceMask;
+	private final RasterCache cache;
+	
+	/**
+	 * @param index: position of the instance in the detections of the model
+	 * @param classId: class of the instance
+	 * @param score: probability of the instance being of the class, NaN if unknown
+	 * @param box: bounding box in pixel coordinates of the original image, as
+	 * 	[y1, x1, y2, x2], with (y2, x2) outside of the box
+	 * @param sourceMask: low resolution mask output by the model for the class
+	 * @param imageWidth: width of the original image
+	 * @param imageHeight: height of the original image
+	 */
+	public DetectedInstance(int index, int classId, double score, int[] box, ImageProcessor sourceMask,
+			int imageWidth, int imageHeight) {
+		this(index, classId, score, box, sourceMask, imageWidth, imageHeight, null);
+	}
+	
+	/**
+	 * @param index: position of the instance in the detections of the model
+	 * @param classId: class of the instance
+	 * @param score: probability of the instance being of the class, NaN if unknown
+	 * @param box: bounding box in pixel coordinates of the original image, as
+	 * 	[y1, x1, y2, x2], with (y2, x2) outside of the box
+	 * @param sourceMask: low resolution mask output by the model for the class
+	 * @param imageWidth: width of the original image
+	 * @param imageHeight: height of the original image
+	 * @param cache: cache where the mask is memoised once it is computed, null to not memoise it
+	 */
+	public DetectedInstance(int index, int classId, double score, int[] box, ImageProcessor sourceMask,
+			int imageWidth, int imageHeight, RasterCache cache) {
+		this.cache = cache;
+		this.index = index;
+		this.classId = classId;
+		this.score = score;
+		this.box = box;
+		this.sourceMask = sourceMask;
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+	
+	public int getClassId() {
+		return classId;
+	}
+	
+	public double getScore() {
+		return score;
+	}
+	
+	/**
+	 * @return bounding box as [y1, x1, y2, x2], with (y2, x2) outside of the box
+	 */
+	public int[] getBox() {
+		return box;
+	}
+	
+	public int getBoxWidth() {
+		return Math.max(0, box[3] - box[1]);
+	}
+	
+	public int getBoxHeight() {
+		return Math.max(0, box[2] - box[0]);
+	}
+	
+	public int getImageWidth() {
+		return imageWidth;
+	}
+	
+	public int getImageHeight() {
+		return imageHeight;
+	}
+	
+	/**
+	 * @return low resolution mask output by the model
+	 */
+	public ImageProcessor getSourceMask() {
+		return sourceMask;
+	}
+	
+	/**
+	 * Compute the mask of the instance inside its bounding box: the low resolution
+	 * mask is resized to the box with bicubic interpolation and thresholded at 0.5
+	 * @return mask of size {@link #getBoxWidth()} x {@link #getBoxHeight()}, row by row,
+	 * 	1 for the pixels of the instance and 0 otherwise
+	 */
+	public byte[] rasterise() {
+		final int w = getBoxWidth();
+		final int h = getBoxHeight();
+		final byte[] raster = new byte[w * h];
+		if (w == 0 || h == 0)
+			return raster;
+		final ImageProcessor ip = sourceMask.duplicate();
+		ip.setInterpolationMethod(ImageProcessor.BICUBIC);
+		final ImageProcessor resized = ip.resize(w, h);
+		for (int y = 0; y < h; y ++) {
+			for (int x = 0; x < w; x ++) {
+				if (resized.getPixelValue(x, y) >= 0.5)
+					raster[y * w + x] = 1;
+			}
+		}
+		return raster;
+	}
+	
+	/**
+	 * Get the mask of the instance inside its bounding box, from the cache if the
+	 * instance has one. The returned array must not be modified
+	 * @return mask of size {@link #getBoxWidth()} x {@link #getBoxHeight()}, see {@link #rasterise()}
+	 */
+	public byte[] getMask() {
+		return cache == null ? rasterise() : cache.get(this);
+	}
+	
+	/**
+	 * Create the mask of the instance with the size of the original image
+	 * @return binary image where the pixels of the instance are 255
+	 */
+	public ByteProcessor createMaskProcessor() {
+		final byte[] raster = getMask();
+		final ByteProcessor bp = new ByteProcessor(imageWidth, imageHeight);
+		final byte[] pixels = (byte[]) bp.getPixels();
+		final int w = getBoxWidth();
+		for (int y = Math.max(0, box[0]); y < Math.min(imageHeight, box[2]); y ++) {
+			for (int x = Math.max(0, box[1]); x < Math.min(imageWidth, box[3]); x ++) {
+				if (raster[(y - box[0]) * w + x - box[1]] != 0)
+					pixels[y * imageWidth + x] = (byte) 255;
+			}
+		}
+		return bp;
+	}
+	
+	/**
+	 * @return mask encoded as COCO run lengths over the whole image, see {@link MaskRle}
+	 */
+	public long[] getRle() {
+		return MaskRle.encode(getMask(), box, imageWidth, imageHeight);
+	}
+}
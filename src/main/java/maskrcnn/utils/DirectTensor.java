@@ -0,0 +1,105 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Tensor stored in a direct {@link ByteBuffer} with the native byte order of
+ * the platform and the row-major (C order) layout used by the Deep Learning
+ * engines. The model runner can wrap the buffer into a native tensor without
+ * copying it again.
+ */
+public class DirectTensor {
+	
+	private final long[] shape;
+	private final TensorPrecision precision;
+	private final ByteBuffer buffer;
+	
+	/**
+	 * Allocate a direct tensor filled with zeros
+	 * @param shape: shape of the tensor, the last dimension varies fastest in memory
+	 * @param precision: element type of the tensor
+	 */
+	public DirectTensor(long[] shape, TensorPrecision precision) {
+		this.shape = shape.clone();
+		this.precision = precision;
+		long bytes = getNumElements() * precision.getBytes();
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Tensor of shape " + Arrays.toString(shape) 
+					+ " is too big for a direct buffer.");
+		this.buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+	}
+	
+	/**
+	 * @return shape of the tensor
+	 */
+	public long[] getShape() {
+		return shape.clone();
+	}
+	
+	/**
+	 * @return element type of the tensor
+	 */
+	public TensorPrecision getPrecision() {
+		return precision;
+	}
+	
+	/**
+	 * @return number of elements of the tensor
+	 */
+	public long getNumElements() {
+		long n = 1;
+		for (long s : shape)
+			n *= s;
+		return n;
+	}
+	
+	/**
+	 * @return view of the direct buffer with the data, in native byte order and positioned at 0
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer.duplicate().order(ByteOrder.nativeOrder());
+	}
+	
+	@Override
+	public String toString() {
+		return "DirectTensor " + precision + " " + Arrays.toString(shape);
+	}
+}
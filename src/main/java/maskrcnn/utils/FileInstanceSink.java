@@ -0,0 +1,163 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Base of the sinks that write the instances into a file. Everything goes
+ * through a fixed size buffer that is flushed to a {@link FileChannel} when it
+ * is full, so the memory used does not depend on the number of instances.
+ */
+public abstract class FileInstanceSink implements InstanceSink {
+	
+	/**
+	 * Size of the write buffer in bytes
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	/**
+	 * Whether the file was empty when it was opened
+	 */
+	private final boolean empty;
+	
+	/**
+	 * @param file: file where the instances are written
+	 * @param append: whether to append to the file if it exists, otherwise it is overwritten
+	 * @throws IOException if the file cannot be opened
+	 */
+	protected FileInstanceSink(File file, boolean append) throws IOException {
+		if (append)
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		else
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		empty = channel.size() == 0;
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Open a file sink
+	 * @param file: file where the instances are written
+	 * @param format: 'jsonl' for JSON lines, 'csv' or 'binary'
+	 * @param append: whether to append to the file if it exists, otherwise it is overwritten
+	 * @return the sink
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if the format is not known
+	 */
+	public static FileInstanceSink open(File file, String format, boolean append) throws IOException {
+		if (format == null || format.equalsIgnoreCase("jsonl"))
+			return new JsonLinesInstanceSink(file, append);
+		else if (format.equalsIgnoreCase("csv"))
+			return new CsvInstanceSink(file, append);
+		else if (format.equalsIgnoreCase("binary"))
+			return new BinaryInstanceSink(file, append);
+		throw new IllegalArgumentException("Unknown instance output format '" + format + "'. The only values allowed are: "
+				+ "'jsonl', 'csv' and 'binary'.");
+	}
+	
+	/**
+	 * @return whether the file was empty when it was opened, to know if a header has to be written
+	 */
+	protected boolean isEmptyFile() {
+		return empty;
+	}
+	
+	/**
+	 * Make sure that the buffer has space for some bytes, flushing it if needed
+	 * @param bytes: number of bytes that are going to be written, at most the size of the buffer
+	 * @return the buffer
+	 * @throws IOException if the buffer cannot be flushed
+	 */
+	protected ByteBuffer reserve(int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			flush();
+		return buffer;
+	}
+	
+	/**
+	 * Write bytes, flushing the buffer as many times as needed
+	 * @param bytes: data to write
+	 * @throws IOException if the buffer cannot be flushed
+	 */
+	protected void write(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining())
+				flush();
+			final int n = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, n);
+			offset += n;
+		}
+	}
+	
+	/**
+	 * Write text encoded as UTF-8
+	 * @param text: text to write
+	 * @throws IOException if the buffer cannot be flushed
+	 */
+	protected void write(String text) throws IOException {
+		write(text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Write the content of the buffer into the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
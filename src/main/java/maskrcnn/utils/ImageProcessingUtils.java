@@ -39,9 +39,16 @@ package maskrcnn.utils;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
 
+import java.util.HashMap;
+
 public class ImageProcessingUtils {
+	/**
+	 * Look-up tables already created, by bit depth and mean
+	 */
+	private static final HashMap<String, float[]> LUTS = new HashMap<String, float[]>();
 	
     /**
      * Resize image to wanted width and height
@@ -67,6 +74,29 @@ public class ImageProcessingUtils {
     	return resizedImage;
     }
     
+    /**
+     * Resize image to wanted width and height with the separable {@link Resampler}
+     * @param im: image to be resized
+     * @param width: width to be resized
+     * @param height: height to be resized
+     * @param method: interpolation method, null to use the resize of ImageJ
+     * @return resized 32-bit image
+     */
+    public static ImagePlus resize(ImagePlus im, int width, int height, Resampler.Method method) {
+    	if (method == null)
+    		return resize(im, width, height);
+    	final ImageStack stack = im.getStack();
+    	final ImageStack resized = new ImageStack(width, height);
+    	for (int i = 1; i <= stack.getSize(); i ++) {
+    		final float[] pixels = (float[]) stack.getProcessor(i).convertToFloatProcessor().getPixels();
+    		resized.addSlice(stack.getSliceLabel(i), 
+    				Resampler.resize(pixels, im.getWidth(), im.getHeight(), width, height, method));
+    	}
+    	final ImagePlus resizedImage = new ImagePlus(im.getTitle(), resized);
+    	resizedImage.setDimensions(im.getNChannels(), im.getNSlices(), im.getNFrames());
+    	return resizedImage;
+    }
+    
     /**
      * @param image: image to be padded
      * @param padding: number of values padded to the edges of each axis 
@@ -105,5 +135,174 @@ public class ImageProcessingUtils {
     	}
     	return paddedIm;
     }
+    
+    /**
+     * Split a 24-bit RGB image into a 32-bit image with 3 channels. The packed pixels
+     * of each plane are read only once and written de-interleaved into the three
+     * float planes, instead of converting to RGB stack and then to float
+     * @param image: RGB image
+     * @param mean: value subtracted to each of the channels (R, G, B), null to not subtract anything
+     * @return 32-bit hyperstack with 3 channels and the slices and frames of the original image
+     */
+    public static ImagePlus unpackRGB(ImagePlus image, float[] mean) {
+    	final int w = image.getWidth();
+    	final int h = image.getHeight();
+    	final int z = image.getNSlices();
+    	final int t = image.getNFrames();
+    	final float mr = mean == null ? 0 : mean[0];
+    	final float mg = mean == null ? 0 : mean[1];
+    	final float mb = mean == null ? 0 : mean[2];
+    	final ImageStack rgbStack = image.getStack();
+    	final ImageStack stack = new ImageStack(w, h);
+    	for (int tt = 0; tt < t; tt ++) {
+    		for (int zz = 0; zz < z; zz ++) {
+    			final int[] packed = (int[]) rgbStack.getPixels(image.getStackIndex(1, zz + 1, tt + 1));
+    			final float[] r = new float[packed.length];
+    			final float[] g = new float[packed.length];
+    			final float[] b = new float[packed.length];
+    			unpackRGB(packed, r, g, b, mr, mg, mb);
+    			stack.addSlice(null, r);
+    			stack.addSlice(null, g);
+    			stack.addSlice(null, b);
+    		}
+    	}
+    	final ImagePlus unpacked = new ImagePlus(image.getTitle(), stack);
+    	unpacked.setDimensions(3, z, t);
+    	return unpacked;
+    }
+    
+    /**
+     * Replicate a single-channel 32-bit image into several channels, subtracting
+     * the mean of each channel. Each pixel is read once and written to every channel
+     * @param image: 32-bit image with one channel
+     * @param nChannels: number of channels of the result
+     * @param mean: value subtracted to each of the channels, null to not subtract anything
+     * @return 32-bit hyperstack with nChannels channels and the slices and frames of the original image
+     */
+    public static ImagePlus broadcastChannels(ImagePlus image, int nChannels, float[] mean) {
+    	final int z = image.getNSlices();
+    	final int t = image.getNFrames();
+    	final ImageStack source = image.getStack();
+    	final ImageStack stack = new ImageStack(image.getWidth(), image.getHeight());
+    	for (int tt = 0; tt < t; tt ++) {
+    		for (int zz = 0; zz < z; zz ++) {
+    			final float[] plane = (float[]) source.getPixels(image.getStackIndex(1, zz + 1, tt + 1));
+    			final float[][] planes = new float[nChannels][plane.length];
+    			for (int i = 0; i < plane.length; i ++) {
+    				final float v = plane[i];
+    				for (int c = 0; c < nChannels; c ++)
+    					planes[c][i] = mean == null ? v : v - mean[c];
+    			}
+    			for (int c = 0; c < nChannels; c ++)
+    				stack.addSlice(null, planes[c]);
+    		}
+    	}
+    	final ImagePlus broadcast = new ImagePlus(image.getTitle(), stack);
+    	broadcast.setDimensions(nChannels, z, t);
+    	return broadcast;
+    }
+    
+    /**
+     * Look-up table that converts 8 or 16-bit pixel values into float, subtracting a
+     * mean. Tables are created once per bit depth and mean and then shared
+     * @param bitDepth: 8 or 16
+     * @param mean: value subtracted to every pixel value
+     * @return table where the position v contains v - mean
+     */
+    public static float[] getLut(int bitDepth, float mean) {
+    	if (bitDepth != 8 && bitDepth != 16)
+    		throw new IllegalArgumentException("Look-up tables are only used for 8 and 16-bit images.");
+    	final String key = bitDepth + ":" + Float.floatToIntBits(mean);
+    	synchronized (LUTS) {
+    		float[] lut = LUTS.get(key);
+    		if (lut == null) {
+    			lut = new float[1 << bitDepth];
+    			for (int v = 0; v < lut.length; v ++)
+    				lut[v] = v - mean;
+    			LUTS.put(key, lut);
+    		}
+    		return lut;
+    	}
+    }
+    
+    /**
+     * Look-up table that converts the 8 or 16-bit pixel values of an image into the
+     * float values given by convertToGray32, subtracting a mean. Calibrated images
+     * (signed 16-bit, density calibrations) go through their calibration table,
+     * other images use the shared table of {@link #getLut(int, float)}
+     * @param image: 8 or 16-bit image
+     * @param mean: value subtracted to every calibrated pixel value
+     * @return table where the position v contains the calibrated value of v - mean
+     */
+    public static float[] getLut(ImagePlus image, float mean) {
+    	final float[] cTable = image.getCalibration().getCTable();
+    	if (cTable == null)
+    		return getLut(image.getBitDepth(), mean);
+    	final float[] lut = new float[cTable.length];
+    	for (int v = 0; v < lut.length; v ++)
+    		lut[v] = cTable[v] - mean;
+    	return lut;
+    }
+    
+    /**
+     * Convert an 8 or 16-bit image to 32-bit mapping the raw pixels through one
+     * look-up table per channel, so conversion and normalisation are done in a single
+     * pass without an intermediate float image. A single-channel image is broadcast
+     * to as many channels as tables are given
+     * @param image: 8 or 16-bit image
+     * @param luts: table of each channel of the result, see {@link #getLut(ImagePlus, float)}
+     * @return 32-bit hyperstack with one channel per table and the slices and frames of the original image
+     */
+    public static ImagePlus applyLuts(ImagePlus image, float[][] luts) {
+    	final int nChannels = luts.length;
+    	final int z = image.getNSlices();
+    	final int t = image.getNFrames();
+    	final boolean broadcast = image.getNChannels() == 1;
+    	final ImageStack source = image.getStack();
+    	final ImageStack stack = new ImageStack(image.getWidth(), image.getHeight());
+    	for (int tt = 0; tt < t; tt ++) {
+    		for (int zz = 0; zz < z; zz ++) {
+    			for (int c = 0; c < nChannels; c ++) {
+    				final Object pixels = source.getPixels(image.getStackIndex(broadcast ? 1 : c + 1, zz + 1, tt + 1));
+    				final float[] lut = luts[c];
+    				final float[] plane;
+    				if (pixels instanceof byte[]) {
+    					final byte[] bytes = (byte[]) pixels;
+    					plane = new float[bytes.length];
+    					for (int i = 0; i < bytes.length; i ++)
+    						plane[i] = lut[bytes[i] & 0xff];
+    				} else {
+    					final short[] shorts = (short[]) pixels;
+    					plane = new float[shorts.length];
+    					for (int i = 0; i < shorts.length; i ++)
+    						plane[i] = lut[shorts[i] & 0xffff];
+    				}
+    				stack.addSlice(null, plane);
+    			}
+    		}
+    	}
+    	final ImagePlus converted = new ImagePlus(image.getTitle(), stack);
+    	converted.setDimensions(nChannels, z, t);
+    	return converted;
+    }
+    
+    /**
+     * De-interleave packed RGB pixels into three float arrays, subtracting the mean of each channel
+     * @param packed: pixels as returned by ColorProcessor.getPixels()
+     * @param r: array where the red channel is written, at least as long as packed
+     * @param g: array where the green channel is written, at least as long as packed
+     * @param b: array where the blue channel is written, at least as long as packed
+     * @param mr: mean of the red channel
+     * @param mg: mean of the green channel
+     * @param mb: mean of the blue channel
+     */
+    public static void unpackRGB(int[] packed, float[] r, float[] g, float[] b, float mr, float mg, float mb) {
+    	for (int i = 0; i < packed.length; i ++) {
+    		final int p = packed[i];
+    		r[i] = ((p >> 16) & 0xff) - mr;
+    		g[i] = ((p >> 8) & 0xff) - mg;
+    		b[i] = (p & 0xff) - mb;
+    	}
+    }
 
 }
@@ -36,11 +36,22 @@
  */
 package maskrcnn.utils;
 
+import ij.ImagePlus;
 import io.bioimage.modelrunner.utils.IndexingUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
 import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 /**
  * Class to create ImgLib2 images from arrays
@@ -175,4 +186,143 @@ public class ImgLib2Builder {
 		}
 		return outputImg;
     }
+
+    /**
+     * Create the input image tensor of shape [1, height, width, channels] from the
+     * first slice and frame of an image, subtracting the mean of each channel while
+     * converting the values to the wanted precision. Float16 and bfloat16 tensors are
+     * returned as UnsignedShortType images containing the raw bits, and uint8 tensors
+     * as UnsignedByteType images with the values rounded and saturated to [0, 255]
+     * @param image
+     * 	image already resized and padded to the processing shape
+     * @param mean
+     * 	value subtracted to each channel, null to not subtract anything
+     * @param precision
+     * 	element type of the tensor
+     * @return the tensor with the image data
+     */
+    public static Img<? extends RealType<?>> createImageTensor(ImagePlus image, float[] mean, TensorPrecision precision) {
+    	final MoldGeometry identity = MoldGeometry.identity(image.getHeight(), image.getWidth());
+    	return createImageTensor(MoldedImageView.create(image, identity, mean), precision);
+    }
+    
+    /**
+     * Materialise an image view into a tensor of the same shape and the wanted
+     * precision. This is where the lazy views of {@link MoldedImageView} are computed
+     * @param view
+     * 	image of any shape, usually [1, height, width, channels]
+     * @param precision
+     * 	element type of the tensor
+     * @return the tensor with the image data
+     */
+    public static Img<? extends RealType<?>> createImageTensor(RandomAccessibleInterval<FloatType> view, TensorPrecision precision) {
+    	final long[] tensorShape = view.dimensionsAsLongArray();
+    	final int size = (int) Intervals.numElements(view);
+    	// Flat iteration order is the memory order of an ArrayImg
+    	final Cursor<FloatType> cursor = Views.flatIterable(view).cursor();
+    	switch (precision) {
+    	case FLOAT16:
+    	case BFLOAT16:
+    		final short[] halfArr = new short[size];
+    		final boolean bfloat = precision == TensorPrecision.BFLOAT16;
+    		for (int i = 0; i < size; i ++) {
+    			final float val = cursor.next().get();
+    			halfArr[i] = bfloat ? TensorPrecision.toBFloat16(val) : TensorPrecision.toFloat16(val);
+    		}
+    		return ArrayImgs.unsignedShorts(halfArr, tensorShape);
+    	case UINT8:
+    		final byte[] byteArr = new byte[size];
+    		for (int i = 0; i < size; i ++)
+    			byteArr[i] = TensorPrecision.toUint8(cursor.next().get());
+    		return ArrayImgs.unsignedBytes(byteArr, tensorShape);
+    	default:
+    		final float[] floatArr = new float[size];
+    		for (int i = 0; i < size; i ++)
+    			floatArr[i] = cursor.next().get();
+    		return ArrayImgs.floats(floatArr, tensorShape);
+    	}
+    }
+    
+    /**
+     * Create a direct tensor of shape [1, height, width, channels] in the layout of
+     * the Deep Learning engines (channels interleaved), subtracting the mean of each
+     * channel while converting to the wanted precision. It is the off-heap equivalent
+     * of {@link #createImageTensor(ImagePlus, float[], TensorPrecision)}
+     * @param image
+     * 	image already resized and padded to the processing shape
+     * @param mean
+     * 	value subtracted to each channel, null to not subtract anything
+     * @param precision
+     * 	element type of the tensor
+     * @return the tensor with the image data
+     */
+    public static DirectTensor createDirectImageTensor(ImagePlus image, float[] mean, TensorPrecision precision) {
+    	final MoldGeometry identity = MoldGeometry.identity(image.getHeight(), image.getWidth());
+    	return createDirectImageTensor(MoldedImageView.create(image, identity, mean), precision);
+    }
+    
+    /**
+     * Materialise an image view into a direct tensor of the same shape, in the
+     * row-major layout used by the Deep Learning engines
+     * @param view
+     * 	image of any shape, usually [1, height, width, channels]
+     * @param precision
+     * 	element type of the tensor
+     * @return the tensor with the image data
+     */
+    public static DirectTensor createDirectImageTensor(RandomAccessibleInterval<FloatType> view, TensorPrecision precision) {
+    	final DirectTensor tensor = new DirectTensor(view.dimensionsAsLongArray(), precision);
+    	// Reversing the axes makes the flat iteration follow the row-major order
+    	RandomAccessibleInterval<FloatType> reversed = view;
+    	final int n = view.numDimensions();
+    	for (int d = 0; d < n / 2; d ++)
+    		reversed = Views.permute(reversed, d, n - 1 - d);
+    	final Cursor<FloatType> cursor = Views.flatIterable(reversed).cursor();
+    	final long size = tensor.getNumElements();
+    	final ByteBuffer buffer = tensor.getBuffer();
+    	switch (precision) {
+    	case FLOAT16:
+    	case BFLOAT16:
+    		final ShortBuffer halfBuffer = buffer.asShortBuffer();
+    		final boolean bfloat = precision == TensorPrecision.BFLOAT16;
+    		for (long i = 0; i < size; i ++) {
+    			final float val = cursor.next().get();
+    			halfBuffer.put(bfloat ? TensorPrecision.toBFloat16(val) : TensorPrecision.toFloat16(val));
+    		}
+    		break;
+    	case UINT8:
+    		for (long i = 0; i < size; i ++)
+    			buffer.put(TensorPrecision.toUint8(cursor.next().get()));
+    		break;
+    	default:
+    		final FloatBuffer floatBuffer = buffer.asFloatBuffer();
+    		for (long i = 0; i < size; i ++)
+    			floatBuffer.put(cursor.next().get());
+    	}
+    	return tensor;
+    }
+    
+    /**
+     * Copy an ImgLib2 image into a float32 direct tensor with the same shape, in
+     * the row-major layout used by the Deep Learning engines
+     * @param img
+     * 	image to copy
+     * @return the direct tensor with the image data
+     */
+    public static DirectTensor createDirectTensor(Img<FloatType> img) {
+    	final long[] tensorShape = img.dimensionsAsLongArray();
+    	final DirectTensor tensor = new DirectTensor(tensorShape, TensorPrecision.FLOAT32);
+    	final FloatBuffer floatBuffer = tensor.getBuffer().asFloatBuffer();
+    	final Cursor<FloatType> cursor = img.localizingCursor();
+    	final long[] pos = new long[tensorShape.length];
+    	while (cursor.hasNext()) {
+    		cursor.fwd();
+    		cursor.localize(pos);
+    		long flatPos = 0;
+    		for (int d = 0; d < pos.length; d ++)
+    			flatPos = flatPos * tensorShape[d] + pos[d];
+    		floatBuffer.put((int) flatPos, cursor.get().get());
+    	}
+    	return tensor;
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Fixed size crops of the detected instances taken from the original image, to
+ * feed a second model (a classifier for example) with all the instances in a
+ * single batch. Each crop covers the bounding box of an instance enlarged by a
+ * margin and is filled with ROI-align sampling: every output pixel is the
+ * average of a grid of bilinear samples taken inside the region it covers, so
+ * boxes larger than the crop are not aliased. The instances are cropped in parallel.
+ */
+public class InstanceCrops {
+	
+	/**
+	 * Crop every instance from the current slice and frame of an image
+	 * @param image: original image given to the model
+	 * @param boxes: bounding box of each instance in pixel coordinates of the
+	 * 	image, as [y1, x1, y2, x2] with (y2, x2) outside of the box
+	 * @param cropHeight: height of each crop
+	 * @param cropWidth: width of each crop
+	 * @param margin: fraction of the height and width of the box added on each side
+	 * @param samplingRatio: number of samples per output pixel along each axis
+	 * @return tensor with shape [N, cropHeight, cropWidth, channels], with the
+	 * 	channels of an RGB image split
+	 */
+	public static Img<FloatType> extract(ImagePlus image, int[][] boxes, int cropHeight, int cropWidth,
+			double margin, int samplingRatio) {
+		if (cropHeight <= 0 || cropWidth <= 0 || samplingRatio <= 0 || margin < 0)
+			throw new IllegalArgumentException("The size, sampling ratio and margin of the instance crops cannot be negative.");
+		final float[][] channels = getChannels(image);
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int n = boxes.length;
+		final int nChannels = channels.length;
+		final float[] data = new float[n * cropHeight * cropWidth * nChannels];
+		IntStream.range(0, n).parallel().forEach(i -> crop(channels, width, height, boxes[i], margin, 
+				samplingRatio, cropHeight, cropWidth, data, i, n));
+		return ArrayImgs.floats(data, n, cropHeight, cropWidth, nChannels);
+	}
+	
+	/**
+	 * Fill the crop of one instance. The sampling grid is separable, so the
+	 * interpolation indices and weights are computed once per row and column
+	 * @param channels: pixels of each channel, row by row
+	 * @param width: width of the image
+	 * @param height: height of the image
+	 * @param box: bounding box of the instance
+	 * @param margin: fraction of the box added on each side
+	 * @param s: number of samples per output pixel along each axis
+	 * @param cropHeight: height of the crop
+	 * @param cropWidth: width of the crop
+	 * @param data: storage of the tensor, with the first dimension varying fastest
+	 * @param index: position of the instance in the batch
+	 * @param n: number of instances in the batch
+	 */
+	private static void crop(float[][] channels, int width, int height, int[] box, double margin, int s,
+			int cropHeight, int cropWidth, float[] data, int index, int n) {
+		final double boxHeight = box[2] - box[0];
+		final double boxWidth = box[3] - box[1];
+		final Samples ys = new Samples(box[0] - margin * boxHeight, boxHeight * (1 + 2 * margin) / cropHeight, cropHeight, s, height);
+		final Samples xs = new Samples(box[1] - margin * boxWidth, boxWidth * (1 + 2 * margin) / cropWidth, cropWidth, s, width);
+		final int nChannels = channels.length;
+		final float[] sums = new float[nChannels];
+		final float norm = 1f / (s * s);
+		for (int y = 0; y < cropHeight; y ++) {
+			for (int x = 0; x < cropWidth; x ++) {
+				Arrays.fill(sums, 0);
+				for (int sy = y * s; sy < (y + 1) * s; sy ++) {
+					final float ly = ys.weight[sy];
+					if (ly < 0)
+						continue;
+					final int row0 = ys.low[sy] * width;
+					final int row1 = ys.high[sy] * width;
+					for (int sx = x * s; sx < (x + 1) * s; sx ++) {
+						final float lx = xs.weight[sx];
+						if (lx < 0)
+							continue;
+						final float w00 = (1 - ly) * (1 - lx);
+						final float w01 = (1 - ly) * lx;
+						final float w10 = ly * (1 - lx);
+						final float w11 = ly * lx;
+						final int x0 = xs.low[sx];
+						final int x1 = xs.high[sx];
+						for (int c = 0; c < nChannels; c ++) {
+							final float[] p = channels[c];
+							sums[c] += w00 * p[row0 + x0] + w01 * p[row0 + x1] + w10 * p[row1 + x0] + w11 * p[row1 + x1];
+						}
+					}
+				}
+				for (int c = 0; c < nChannels; c ++)
+					data[index + n * (y + cropHeight * (x + cropWidth * c))] = sums[c] * norm;
+			}
+		}
+	}
+	
+	/**
+	 * Positions of the samples along one axis. Pixel centres are at k + 0.5 in
+	 * continuous coordinates. Samples more than one pixel outside of the image
+	 * add 0 (negative weight) and samples closer are clamped to the border, as
+	 * in ROI-align
+	 */
+	private static class Samples {
+		private final int[] low;
+		private final int[] high;
+		private final float[] weight;
+		
+		private Samples(double start, double bin, int size, int s, int length) {
+			low = new int[size * s];
+			high = new int[size * s];
+			weight = new float[size * s];
+			for (int i = 0; i < size * s; i ++) {
+				double v = start + (i + 0.5) / s * bin - 0.5;
+				if (v < -1 || v > length) {
+					weight[i] = -1;
+					continue;
+				}
+				v = Math.min(Math.max(v, 0), length - 1);
+				low[i] = (int) v;
+				high[i] = Math.min(low[i] + 1, length - 1);
+				weight[i] = (float) (v - low[i]);
+			}
+		}
+	}
+	
+	/**
+	 * @param image: original image
+	 * @return the pixels of each channel of the current slice and frame as floats.
+	 * 	RGB images are split into their three channels
+	 */
+	private static float[][] getChannels(ImagePlus image) {
+		if (image.getBitDepth() == 24) {
+			final ImageProcessor ip = image.getProcessor();
+			final float[][] channels = new float[3][];
+			for (int c = 0; c < 3; c ++)
+				channels[c] = (float[]) ip.toFloat(c, null).getPixels();
+			return channels;
+		}
+		final int nChannels = image.getNChannels();
+		final float[][] channels = new float[nChannels][];
+		for (int c = 0; c < nChannels; c ++) {
+			final ImageProcessor ip = image.getStack().getProcessor(image.getStackIndex(c + 1, image.getZ(), image.getT()));
+			channels[c] = (float[]) ip.toFloat(0, null).getPixels();
+		}
+		return channels;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+/**
+ * Receives the instances found by the post-processing one by one, in order of
+ * decreasing score, as soon as each of them is ready. It lets an interface show
+ * the first results (overlays, ROI Manager entries...) while the rest of the
+ * detections are still being unmolded. Unlike an {@link InstanceSink} it does
+ * not replace the outputs of the post-processing.
+ * The methods are called from the thread running the post-processing, so a
+ * listener that updates a user interface should hand the work to the event
+ * dispatch thread.
+ */
+public interface InstanceListener {
+	
+	/**
+	 * Called before the first instance of an image is published
+	 * @param name: name of the image
+	 * @param width: width of the image
+	 * @param height: height of the image
+	 * @param nInstances: number of instances that will be published
+	 */
+	void instancesStarted(String name, int width, int height, int nInstances);
+	
+	/**
+	 * Called when an instance is ready. With 'OUTPUT_MODE = masks' its mask has
+	 * already been pasted into the outputs, and {@link DetectedInstance#getMask()}
+	 * returns it without rasterising it again
+	 * @param instance: detected instance
+	 * @param rank: position of the instance in order of decreasing score, starting at 0
+	 */
+	void instanceReady(DetectedInstance instance, int rank);
+	
+	/**
+	 * Called after every instance of the image has been published
+	 */
+	void instancesFinished();
+}
@@ -0,0 +1,176 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+
+/**
+ * Measurements of the detected instances accumulated while their masks are
+ * pasted into the image, so no extra pass over the masks is needed to obtain
+ * the area, centroid, bounding box and mean intensity of each instance. The
+ * statistics are kept in primitive arrays, one position per instance.
+ */
+public class InstanceMeasurements {
+	
+	private final long[] area;
+	private final double[] sumX;
+	private final double[] sumY;
+	private final double[] sumIntensity;
+	private final int[] minX;
+	private final int[] minY;
+	private final int[] maxX;
+	private final int[] maxY;
+	
+	/**
+	 * @param nInstances: number of instances measured
+	 */
+	public InstanceMeasurements(int nInstances) {
+		area = new long[nInstances];
+		sumX = new double[nInstances];
+		sumY = new double[nInstances];
+		sumIntensity = new double[nInstances];
+		minX = new int[nInstances];
+		minY = new int[nInstances];
+		maxX = new int[nInstances];
+		maxY = new int[nInstances];
+		for (int i = 0; i < nInstances; i ++) {
+			minX[i] = Integer.MAX_VALUE;
+			minY[i] = Integer.MAX_VALUE;
+			maxX[i] = -1;
+			maxY[i] = -1;
+		}
+	}
+	
+	/**
+	 * Add a pixel to an instance
+	 * @param i: index of the instance
+	 * @param x: x coordinate of the pixel
+	 * @param y: y coordinate of the pixel
+	 * @param intensity: value of the pixel in the original image, 0 if there is no image
+	 */
+	public void add(int i, int x, int y, double intensity) {
+		area[i] ++;
+		sumX[i] += x;
+		sumY[i] += y;
+		sumIntensity[i] += intensity;
+		if (x < minX[i])
+			minX[i] = x;
+		if (x > maxX[i])
+			maxX[i] = x;
+		if (y < minY[i])
+			minY[i] = y;
+		if (y > maxY[i])
+			maxY[i] = y;
+	}
+	
+	/**
+	 * @return number of instances measured
+	 */
+	public int size() {
+		return area.length;
+	}
+	
+	/**
+	 * @param i: index of the instance
+	 * @return number of pixels of the instance
+	 */
+	public long getArea(int i) {
+		return area[i];
+	}
+	
+	/**
+	 * @param i: index of the instance
+	 * @return centroid of the instance as [x, y], in pixels. The centre of a
+	 * 	pixel is at its coordinates plus 0.5, as in ImageJ
+	 */
+	public double[] getCentroid(int i) {
+		if (area[i] == 0)
+			return new double[] {Double.NaN, Double.NaN};
+		return new double[] {sumX[i] / area[i] + 0.5, sumY[i] / area[i] + 0.5};
+	}
+	
+	/**
+	 * @param i: index of the instance
+	 * @return bounding box of the instance as [x, y, width, height], in pixels
+	 */
+	public int[] getBounds(int i) {
+		if (area[i] == 0)
+			return new int[4];
+		return new int[] {minX[i], minY[i], maxX[i] - minX[i] + 1, maxY[i] - minY[i] + 1};
+	}
+	
+	/**
+	 * @param i: index of the instance
+	 * @return mean intensity of the original image inside the instance
+	 */
+	public double getMean(int i) {
+		return area[i] == 0 ? Double.NaN : sumIntensity[i] / area[i];
+	}
+	
+	/**
+	 * Create a table with one row per instance and the columns used by the ImageJ
+	 * Measure command (Area, X, Y, BX, BY, Width, Height and Mean)
+	 * @param classIds: class of each instance
+	 * @param scores: score of each instance, null if they are not known
+	 * @param cal: spatial calibration of the original image, null for pixels
+	 * @param withMean: whether to add the column of the mean intensity
+	 * @return the table
+	 */
+	public ResultsTable toResultsTable(int[] classIds, double[] scores, Calibration cal, boolean withMean) {
+		final double pw = cal == null ? 1 : cal.pixelWidth;
+		final double ph = cal == null ? 1 : cal.pixelHeight;
+		final ResultsTable rt = new ResultsTable(area.length);
+		for (int i = 0; i < area.length; i ++) {
+			final double[] centroid = getCentroid(i);
+			final int[] bounds = getBounds(i);
+			rt.setValue("Class", i, classIds[i]);
+			if (scores != null)
+				rt.setValue("Score", i, scores[i]);
+			rt.setValue("Area", i, area[i] * pw * ph);
+			rt.setValue("X", i, centroid[0] * pw);
+			rt.setValue("Y", i, centroid[1] * ph);
+			rt.setValue("BX", i, bounds[0] * pw);
+			rt.setValue("BY", i, bounds[1] * ph);
+			rt.setValue("Width", i, bounds[2] * pw);
+			rt.setValue("Height", i, bounds[3] * ph);
+			if (withMean)
+				rt.setValue("Mean", i, getMean(i));
+		}
+		return rt;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the instances found by the post-processing. Instances are
+ * pushed one by one as soon as they are unmolded, so they do not need to be
+ * kept in memory until every detection of the image has been processed.
+ */
+public interface InstanceSink extends Closeable {
+	
+	/**
+	 * Called before the instances of an image are pushed
+	 * @param name: name of the image
+	 * @param width: width of the image
+	 * @param height: height of the image
+	 * @throws IOException if the sink cannot be written
+	 */
+	void beginImage(String name, int width, int height) throws IOException;
+	
+	/**
+	 * Push one instance of the current image
+	 * @param instance: detected instance
+	 * @throws IOException if the sink cannot be written
+	 */
+	void accept(DetectedInstance instance) throws IOException;
+	
+	/**
+	 * Called after every instance of the current image has been pushed
+	 * @throws IOException if the sink cannot be written
+	 */
+	void endImage() throws IOException;
+}
@@ -0,0 +1,139 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link MetricsSink} that exposes the processing metrics as a JMX MBean, so
+ * they can be inspected with JConsole, VisualVM or any other JMX client.
+ * The bean is registered as 'maskrcnn:type=ProcessingMetrics,phase=PHASE'
+ */
+public class JmxMetricsSink implements MetricsSink, JmxMetricsSinkMBean {
+	
+	private final List<String> stages = new ArrayList<String>();
+	private final HashMap<String, Long> lastNanos = new HashMap<String, Long>();
+	private final HashMap<String, Long> lastBytes = new HashMap<String, Long>();
+	private final HashMap<String, Long> totalNanos = new HashMap<String, Long>();
+	private long invocations = 0;
+	private String lastReport = "";
+	
+	/**
+	 * Create the sink and register it in the platform MBean server
+	 * @param phase: name used in the ObjectName of the bean, e.g. 'preprocessing'
+	 * @throws Exception if the bean cannot be registered
+	 */
+	public JmxMetricsSink(String phase) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("maskrcnn:type=ProcessingMetrics,phase=" + phase);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+
+	@Override
+	public synchronized void publish(ProcessingMetrics metrics) {
+		invocations ++;
+		lastNanos.clear();
+		lastBytes.clear();
+		for (String stage : metrics.getStages()) {
+			if (!stages.contains(stage))
+				stages.add(stage);
+			long nanos = metrics.getNanos(stage);
+			lastNanos.put(stage, nanos);
+			lastBytes.put(stage, metrics.getAllocatedBytes(stage));
+			Long total = totalNanos.get(stage);
+			totalNanos.put(stage, total == null ? nanos : total + nanos);
+		}
+		lastReport = metrics.toString();
+	}
+
+	@Override
+	public synchronized long getInvocations() {
+		return invocations;
+	}
+
+	@Override
+	public synchronized String[] getStages() {
+		return stages.toArray(new String[stages.size()]);
+	}
+
+	@Override
+	public synchronized long[] getLastNanos() {
+		return values(lastNanos, 0);
+	}
+
+	@Override
+	public synchronized long[] getLastAllocatedBytes() {
+		return values(lastBytes, -1);
+	}
+
+	@Override
+	public synchronized long[] getTotalNanos() {
+		return values(totalNanos, 0);
+	}
+
+	@Override
+	public synchronized String getLastReport() {
+		return lastReport;
+	}
+
+	@Override
+	public synchronized void reset() {
+		stages.clear();
+		lastNanos.clear();
+		lastBytes.clear();
+		totalNanos.clear();
+		invocations = 0;
+		lastReport = "";
+	}
+	
+	private long[] values(HashMap<String, Long> map, long missing) {
+		long[] arr = new long[stages.size()];
+		for (int i = 0; i < arr.length; i ++) {
+			Long val = map.get(stages.get(i));
+			arr[i] = val == null ? missing : val;
+		}
+		return arr;
+	}
+}
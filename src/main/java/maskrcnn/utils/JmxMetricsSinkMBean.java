@@ -0,0 +1,78 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+/**
+ * JMX management interface of {@link JmxMetricsSink}
+ */
+public interface JmxMetricsSinkMBean {
+
+	/**
+	 * @return number of invocations published to the sink
+	 */
+	public long getInvocations();
+	
+	/**
+	 * @return names of the stages seen so far
+	 */
+	public String[] getStages();
+	
+	/**
+	 * @return nanoseconds per stage of the last invocation, in the order of {@link #getStages()}
+	 */
+	public long[] getLastNanos();
+	
+	/**
+	 * @return bytes allocated per stage in the last invocation, in the order of {@link #getStages()}
+	 */
+	public long[] getLastAllocatedBytes();
+	
+	/**
+	 * @return nanoseconds per stage accumulated over all the invocations
+	 */
+	public long[] getTotalNanos();
+	
+	/**
+	 * @return human readable report of the last invocation
+	 */
+	public String getLastReport();
+	
+	/**
+	 * Reset the accumulated counters
+	 */
+	public void reset();
+}
@@ -0,0 +1,104 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sink that writes one JSON object per line and instance, with the mask as a
+ * compressed COCO run-length encoding:
+ * {"image": "name", "index": 0, "class_id": 1, "score": 0.98, "bbox": [x, y, width, height],
+ *  "segmentation": {"size": [height, width], "counts": "..."}}
+ */
+public class JsonLinesInstanceSink extends FileInstanceSink {
+	
+	private String imageName;
+	
+	/**
+	 * @param file: file where the instances are written
+	 * @param append: whether to append to the file if it exists, otherwise it is overwritten
+	 * @throws IOException if the file cannot be opened
+	 */
+	public JsonLinesInstanceSink(File file, boolean append) throws IOException {
+		super(file, append);
+	}
+
+	@Override
+	public void beginImage(String name, int width, int height) throws IOException {
+		imageName = quote(name);
+	}
+
+	@Override
+	public void accept(DetectedInstance instance) throws IOException {
+		final int[] box = instance.getBox();
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"image\": ").append(imageName);
+		sb.append(", \"index\": ").append(instance.getIndex());
+		sb.append(", \"class_id\": ").append(instance.getClassId());
+		sb.append(", \"score\": ").append(Double.isNaN(instance.getScore()) ? "null" : String.valueOf(instance.getScore()));
+		sb.append(", \"bbox\": [").append(box[1]).append(", ").append(box[0]).append(", ")
+			.append(instance.getBoxWidth()).append(", ").append(instance.getBoxHeight()).append("]");
+		sb.append(", \"segmentation\": {\"size\": [").append(instance.getImageHeight()).append(", ")
+			.append(instance.getImageWidth()).append("], \"counts\": ");
+		sb.append(quote(MaskRle.toCocoString(instance.getRle()))).append("}}\n");
+		write(sb.toString());
+	}
+
+	@Override
+	public void endImage() throws IOException {
+		imageName = null;
+	}
+	
+	/**
+	 * @param str: text
+	 * @return the text as a JSON string
+	 */
+	private static String quote(String str) {
+		final StringBuilder sb = new StringBuilder(str.length() + 2).append('"');
+		for (int i = 0; i < str.length(); i ++) {
+			final char c = str.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+}
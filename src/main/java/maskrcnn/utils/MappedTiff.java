@@ -0,0 +1,294 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * Uncompressed TIFF file read row by row from a memory mapping of the file,
+ * without decoding it into an ImagePlus. Only the rows that are requested are
+ * touched, so the memory used is bounded by the page cache instead of the heap.
+ * The file is mapped through windows of at most {@link #WINDOW} bytes, which
+ * allows files bigger than 2 GB. Each page of the TIFF (or each image of an
+ * ImageJ stack) is a channel of a single plane, as given by the ImageJ
+ * description of the file; RGB files have a single plane with 3 channels.
+ * 
+ * Supported types are 8 and 16-bit unsigned, 32-bit float and 8-bit RGB
+ * (interleaved). Compressed, signed, inverted, calibrated or planar RGB files,
+ * stacks with slices or frames and multi-page files without an ImageJ
+ * description are rejected when opened, so the caller can fall back to ImageJ.
+ * 
+ * Instances are not thread safe.
+ */
+public class MappedTiff implements Closeable {
+	
+	/**
+	 * Maximum size of each mapped window of the file
+	 */
+	private static final long WINDOW = 1L << 28;
+	
+	private final FileChannel channel;
+	private final long fileSize;
+	private final FileInfo[] info;
+	private final int width;
+	private final int height;
+	private final int nPlanes;
+	private final int fileType;
+	private final int bytesPerPixel;
+	private final ByteOrder order;
+	private MappedByteBuffer window = null;
+	private long windowStart = 0;
+	private long windowEnd = 0;
+	
+	private MappedTiff(FileChannel channel, FileInfo[] info) throws IOException {
+		this.channel = channel;
+		this.fileSize = channel.size();
+		this.info = info;
+		final FileInfo fi = info[0];
+		width = fi.width;
+		height = fi.height;
+		fileType = fi.fileType;
+		nPlanes = info.length > 1 ? info.length : Math.max(1, fi.nImages);
+		bytesPerPixel = fi.getBytesPerPixel();
+		order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+	
+	/**
+	 * Open a TIFF file for mapped reading
+	 * @param file: TIFF file
+	 * @return the opened file
+	 * @throws IOException if the file cannot be read or its type is not supported
+	 */
+	public static MappedTiff open(File file) throws IOException {
+		final String dir = file.getAbsoluteFile().getParent() + File.separator;
+		final FileInfo[] info = new TiffDecoder(dir, file.getName()).getTiffInfo();
+		if (info == null || info.length == 0)
+			throw new IOException("The file '" + file + "' is not a TIFF file.");
+		for (FileInfo fi : info) {
+			if (fi.compression != FileInfo.COMPRESSION_NONE)
+				throw new IOException("Only uncompressed TIFF files can be mapped.");
+			if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED 
+					&& fi.fileType != FileInfo.GRAY32_FLOAT && fi.fileType != FileInfo.RGB)
+				throw new IOException("Only 8-bit, 16-bit unsigned, 32-bit float and RGB TIFF files can be mapped.");
+			if (fi.whiteIsZero)
+				throw new IOException("Inverted TIFF files cannot be mapped.");
+			if (fi.width != info[0].width || fi.height != info[0].height || fi.fileType != info[0].fileType)
+				throw new IOException("Every page of the TIFF file has to have the same size and type to be mapped.");
+		}
+		final String description = info[0].description;
+		final int nPages = info.length > 1 ? info.length : Math.max(1, info[0].nImages);
+		if (nPages > 1 && getDescriptionValue(description, "channels", 1) != nPages)
+			throw new IOException("Only files whose pages are the channels of a single plane can be mapped.");
+		// The calibration function is applied by ImageJ when the file is opened
+		if (getDescriptionValue(description, "cf", -1) != -1)
+			throw new IOException("Calibrated TIFF files cannot be mapped.");
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		final MappedTiff tiff = new MappedTiff(channel, info);
+		// Reject truncated files now instead of while reading
+		for (int p = 0; p < tiff.nPlanes; p ++) {
+			if (tiff.getRowPosition(p, tiff.height - 1) + tiff.getRowBytes() > tiff.fileSize) {
+				tiff.close();
+				throw new IOException("The TIFF file '" + file + "' is truncated.");
+			}
+		}
+		return tiff;
+	}
+	
+	/**
+	 * @param description: ImageJ description of the file, null if there is none
+	 * @param key: key of the description, such as 'channels' or 'slices'
+	 * @param defaultValue: value returned if the key is not in the description
+	 * @return integer value of the key
+	 */
+	private static int getDescriptionValue(String description, String key, int defaultValue) {
+		if (description == null || !description.startsWith("ImageJ"))
+			return defaultValue;
+		for (String line : description.split("\n")) {
+			if (!line.startsWith(key + "="))
+				continue;
+			try {
+				return Integer.parseInt(line.substring(key.length() + 1).trim());
+			} catch (NumberFormatException ex) {
+				return defaultValue;
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * @return width of the image
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * @return height of the image
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return number of planes (pages) of the file
+	 */
+	public int getNPlanes() {
+		return nPlanes;
+	}
+	
+	/**
+	 * @return number of channels of the image: 3 for RGB files, the number of planes otherwise
+	 */
+	public int getNChannels() {
+		return fileType == FileInfo.RGB ? 3 : nPlanes;
+	}
+	
+	/**
+	 * @return bit depth of the image as given by ImageJ (8, 16, 24 or 32)
+	 */
+	public int getBitDepth() {
+		return fileType == FileInfo.RGB ? 24 : bytesPerPixel * 8;
+	}
+	
+	/**
+	 * @return bytes of each row in the file
+	 */
+	private long getRowBytes() {
+		return (long) width * bytesPerPixel;
+	}
+	
+	/**
+	 * Position of a row in the file. Pages with their own IFD use their strips,
+	 * the images of an ImageJ stack are stored one after the other
+	 * @param plane: index of the plane
+	 * @param y: index of the row
+	 * @return position of the first byte of the row
+	 */
+	private long getRowPosition(int plane, int y) {
+		final FileInfo fi = info.length > 1 ? info[plane] : info[0];
+		final long rowBytes = getRowBytes();
+		if (info.length == 1 && plane > 0)
+			return fi.getOffset() + plane * (rowBytes * height + fi.getGap()) + y * rowBytes;
+		if (fi.stripOffsets != null && fi.stripOffsets.length > 0 && fi.rowsPerStrip > 0) {
+			final int strip = Math.min(y / fi.rowsPerStrip, fi.stripOffsets.length - 1);
+			// Strip offsets are unsigned 32-bit values
+			return (fi.stripOffsets[strip] & 0xffffffffL) + (y - strip * (long) fi.rowsPerStrip) * rowBytes;
+		}
+		return fi.getOffset() + y * rowBytes;
+	}
+	
+	/**
+	 * Map the window of the file that contains the given bytes
+	 * @param position: first byte needed
+	 * @param length: number of bytes needed
+	 */
+	private void mapWindow(long position, long length) {
+		if (window != null && position >= windowStart && position + length <= windowEnd)
+			return;
+		final long size = Math.min(Math.max(WINDOW, length), fileSize - position);
+		try {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Cannot map the TIFF file: " + ex.getMessage(), ex);
+		}
+		window.order(order);
+		windowStart = position;
+		windowEnd = position + size;
+	}
+	
+	/**
+	 * Read a row of one channel as float
+	 * @param channel: channel to read. For RGB files 0, 1 or 2 read red, green and
+	 * 	blue and -1 reads the grey value (r + g + b) / 3 used by ImageJ. For other files
+	 * 	it is the plane
+	 * @param y: index of the row
+	 * @param row: array of the width of the image where the row is written
+	 */
+	public void readRow(int channel, int y, float[] row) {
+		final int plane = fileType == FileInfo.RGB ? 0 : channel;
+		final long position = getRowPosition(plane, y);
+		mapWindow(position, getRowBytes());
+		final int offset = (int) (position - windowStart);
+		final MappedByteBuffer buf = window;
+		switch (fileType) {
+		case FileInfo.GRAY8:
+			for (int x = 0; x < width; x ++)
+				row[x] = buf.get(offset + x) & 0xff;
+			break;
+		case FileInfo.GRAY16_UNSIGNED:
+			for (int x = 0; x < width; x ++)
+				row[x] = buf.getShort(offset + 2 * x) & 0xffff;
+			break;
+		case FileInfo.GRAY32_FLOAT:
+			for (int x = 0; x < width; x ++)
+				row[x] = buf.getFloat(offset + 4 * x);
+			break;
+		default:
+			if (channel < 0) {
+				for (int x = 0; x < width; x ++)
+					row[x] = ((buf.get(offset + 3 * x) & 0xff) + (buf.get(offset + 3 * x + 1) & 0xff)
+							+ (buf.get(offset + 3 * x + 2) & 0xff)) / 3f;
+			} else {
+				for (int x = 0; x < width; x ++)
+					row[x] = buf.get(offset + 3 * x + channel) & 0xff;
+			}
+		}
+	}
+	
+	/**
+	 * @param channel: channel to read, as in {@link #readRow(int, int, float[])}
+	 * @return reader of the rows of the channel, to be resized by {@link Resampler}
+	 */
+	public Resampler.RowReader rowReader(final int channel) {
+		return (y, row) -> readRow(channel, y, row);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Contour extraction with marching squares. The contour is traced on the low
+ * resolution masks output by the model, so the cost is proportional to the
+ * size of the mask and the length of the contour, and not to the area that the
+ * instance covers in the original image.
+ */
+public class MaskContour {
+	
+	/**
+	 * Extract the outer contour of the largest region of a mask above a threshold.
+	 * Vertices are interpolated linearly between pixel centres, with the centre
+	 * of pixel i at coordinate i. Pixels outside of the mask count as background,
+	 * so the contour is always closed
+	 * @param mask: mask values, row by row
+	 * @param w: width of the mask
+	 * @param h: height of the mask
+	 * @param threshold: iso-value of the contour
+	 * @return the vertices of the contour as {xs, ys}, or null if no pixel is above the threshold
+	 */
+	public static float[][] largestContour(float[] mask, int w, int h, float threshold) {
+		List<float[][]> contours = contours(mask, w, h, threshold);
+		float[][] largest = null;
+		double largestArea = 0;
+		for (float[][] c : contours) {
+			final double area = Math.abs(signedArea(c[0], c[1]));
+			if (largest == null || area > largestArea) {
+				largest = c;
+				largestArea = area;
+			}
+		}
+		return largest;
+	}
+	
+	/**
+	 * Extract every closed contour of a mask at a threshold
+	 * @param mask: mask values, row by row
+	 * @param w: width of the mask
+	 * @param h: height of the mask
+	 * @param threshold: iso-value of the contours
+	 * @return list with the vertices of each contour as {xs, ys}
+	 */
+	public static List<float[][]> contours(float[] mask, int w, int h, float threshold) {
+		// The grid is surrounded by a border of background so contours close.
+		// Grid point (gx, gy) is the mask pixel (gx - 1, gy - 1)
+		final int gw = w + 2;
+		final int gh = h + 2;
+		final boolean[] inside = new boolean[gw * gh];
+		final float[] values = new float[gw * gh];
+		for (int y = 0; y < h; y ++) {
+			for (int x = 0; x < w; x ++) {
+				final float v = mask[y * w + x];
+				values[(y + 1) * gw + x + 1] = v;
+				inside[(y + 1) * gw + x + 1] = v >= threshold;
+			}
+		}
+		// Each contour vertex lies on a grid edge. Horizontal edge (gx, gy)-(gx + 1, gy)
+		// has id 2 * (gy * gw + gx) and vertical edge (gx, gy)-(gx, gy + 1) the next one
+		final HashMap<Integer, int[]> links = new HashMap<Integer, int[]>();
+		for (int gy = 0; gy < gh - 1; gy ++) {
+			for (int gx = 0; gx < gw - 1; gx ++) {
+				final int tl = gy * gw + gx;
+				final int tr = tl + 1;
+				final int bl = tl + gw;
+				final int br = bl + 1;
+				final int code = (inside[tl] ? 1 : 0) | (inside[tr] ? 2 : 0) | (inside[br] ? 4 : 0) | (inside[bl] ? 8 : 0);
+				if (code == 0 || code == 15)
+					continue;
+				final int top = 2 * tl;
+				final int bottom = 2 * bl;
+				final int left = 2 * tl + 1;
+				final int right = 2 * tr + 1;
+				switch (code) {
+				case 1: case 14: link(links, left, top); break;
+				case 2: case 13: link(links, top, right); break;
+				case 3: case 12: link(links, left, right); break;
+				case 4: case 11: link(links, right, bottom); break;
+				case 6: case 9: link(links, top, bottom); break;
+				case 7: case 8: link(links, left, bottom); break;
+				case 5: case 10:
+					// Saddle, resolved with the mean of the four corners
+					final boolean centre = (values[tl] + values[tr] + values[br] + values[bl]) / 4 >= threshold;
+					if ((code == 5) == centre) {
+						link(links, left, bottom);
+						link(links, top, right);
+					} else {
+						link(links, left, top);
+						link(links, right, bottom);
+					}
+					break;
+				}
+			}
+		}
+		final List<float[][]> contours = new ArrayList<float[][]>();
+		final HashMap<Integer, Boolean> visited = new HashMap<Integer, Boolean>();
+		for (Integer start : links.keySet()) {
+			if (visited.containsKey(start))
+				continue;
+			final List<Integer> loop = new ArrayList<Integer>();
+			int previous = -1;
+			int current = start;
+			while (!visited.containsKey(current)) {
+				visited.put(current, true);
+				loop.add(current);
+				final int[] next = links.get(current);
+				final int following = next[0] != previous && !visited.containsKey(next[0]) ? next[0] : next[1];
+				previous = current;
+				current = following;
+			}
+			final float[] xs = new float[loop.size()];
+			final float[] ys = new float[loop.size()];
+			for (int i = 0; i < xs.length; i ++) {
+				final int edge = loop.get(i);
+				final int a = edge / 2;
+				final int b = edge % 2 == 0 ? a + 1 : a + gw;
+				// Position of the threshold crossing between both grid points
+				float t = (threshold - values[a]) / (values[b] - values[a]);
+				t = Math.max(0, Math.min(1, t));
+				final float ax = a % gw - 1;
+				final float ay = a / gw - 1;
+				xs[i] = edge % 2 == 0 ? ax + t : ax;
+				ys[i] = edge % 2 == 0 ? ay : ay + t;
+			}
+			contours.add(new float[][] {xs, ys});
+		}
+		return contours;
+	}
+	
+	/**
+	 * Area of a polygon with the shoelace formula
+	 * @param xs: x coordinates of the vertices
+	 * @param ys: y coordinates of the vertices
+	 * @return signed area of the polygon
+	 */
+	public static double signedArea(float[] xs, float[] ys) {
+		double area = 0;
+		for (int i = 0, j = xs.length - 1; i < xs.length; j = i ++)
+			area += (double) xs[j] * ys[i] - (double) xs[i] * ys[j];
+		return area / 2;
+	}
+	
+	private static void link(HashMap<Integer, int[]> links, int a, int b) {
+		addLink(links, a, b);
+		addLink(links, b, a);
+	}
+	
+	private static void addLink(HashMap<Integer, int[]> links, int from, int to) {
+		int[] l = links.get(from);
+		if (l == null) {
+			links.put(from, new int[] {to, -1});
+		} else {
+			l[1] = to;
+		}
+	}
+}
@@ -39,6 +39,9 @@ package maskrcnn.utils;
 
 import ij.ImagePlus;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 
 import ij.IJ;
@@ -86,6 +89,37 @@ public class MaskRcnnAnchors {
     	}
     }
     
+    /**
+     * Create a key that identifies the anchors generated for an image shape with
+     * the current anchor configuration. Used to name the files of the {@link AnchorCache}
+     * @param imShape: shape of the processed image [height, width, channels]
+     * @return hexadecimal SHA-256 digest of the shape and the anchor parameters
+     */
+    public static String getCacheKey(final float[] imShape) {
+    	int nValues = 3 + RPN_ANCHOR_SCALES.length + RPN_ANCHOR_RATIOS.length + BACKBONE_STRIDES.length;
+    	ByteBuffer buffer = ByteBuffer.allocate(4 * (nValues + 3));
+    	// Only height and width determine the anchors
+    	buffer.putFloat(imShape[0]).putFloat(imShape[1]).putFloat(RPN_ANCHOR_STRIDE);
+    	buffer.putInt(RPN_ANCHOR_SCALES.length);
+    	for (float v : RPN_ANCHOR_SCALES)
+    		buffer.putFloat(v);
+    	buffer.putInt(RPN_ANCHOR_RATIOS.length);
+    	for (float v : RPN_ANCHOR_RATIOS)
+    		buffer.putFloat(v);
+    	buffer.putInt(BACKBONE_STRIDES.length);
+    	for (float v : BACKBONE_STRIDES)
+    		buffer.putFloat(v);
+    	try {
+    		byte[] digest = MessageDigest.getInstance("SHA-256").digest(buffer.array());
+    		StringBuilder sb = new StringBuilder();
+    		for (byte b : digest)
+    			sb.append(String.format("%02x", b));
+    		return sb.toString();
+    	} catch (NoSuchAlgorithmException ex) {
+    		throw new IllegalStateException(ex);
+    	}
+    }
+    
     public static void main(final String[] args) {
         final ImagePlus im = IJ.createImage("aux", 1024, 1024, 1, 24);
         final float[][][] a = getAnchors(im);
@@ -93,6 +127,15 @@ public class MaskRcnnAnchors {
     
     public static float[][][] getAnchors(final ImagePlus im) {
         final float[] imShape = { (float)im.getHeight(), (float)im.getWidth(), (float)im.getNChannels() };
+        return getAnchors(imShape);
+    }
+    
+    /**
+     * Generate the anchors for an image of the given shape
+     * @param imShape: shape of the processed image [height, width, channels]
+     * @return anchors tensor as an array of shape [1, nAnchors, 4]
+     */
+    public static float[][][] getAnchors(final float[] imShape) {
         final float[][] backboneShapes = computeBackboneShapes(imShape);
         final float[][] anchors = generatePyramidAnchors(MaskRcnnAnchors.RPN_ANCHOR_SCALES, MaskRcnnAnchors.RPN_ANCHOR_RATIOS, backboneShapes, MaskRcnnAnchors.BACKBONE_STRIDES, MaskRcnnAnchors.RPN_ANCHOR_STRIDE, imShape);
         final float[][][] tensorAnchors = new float[1][anchors.length][anchors[0].length];
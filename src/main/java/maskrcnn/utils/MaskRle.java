@@ -0,0 +1,131 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.ArrayList;
+
+/**
+ * Run-length encoding of instance masks in the format of the COCO dataset:
+ * alternating runs of background and foreground pixels, starting with
+ * background, over the pixels of the whole image in column-major order.
+ */
+public class MaskRle {
+	
+	/**
+	 * Encode the mask of an instance that only covers its bounding box. Pixels out
+	 * of the box, or out of the image, are background
+	 * @param mask: mask inside the box, row by row, non-zero for foreground
+	 * @param box: bounding box of the mask in the image, as [y1, x1, y2, x2], with (y2, x2) outside
+	 * @param width: width of the image
+	 * @param height: height of the image
+	 * @return run lengths, the first one being background (possibly of length 0)
+	 */
+	public static long[] encode(byte[] mask, int[] box, int width, int height) {
+		final int bw = box[3] - box[1];
+		final ArrayList<Long> counts = new ArrayList<Long>();
+		// Position where the current run started and whether it is foreground
+		long runStart = 0;
+		boolean foreground = false;
+		final int x0 = Math.max(0, box[1]);
+		final int x1 = Math.min(width, box[3]);
+		final int y0 = Math.max(0, box[0]);
+		final int y1 = Math.min(height, box[2]);
+		for (int x = x0; x < x1; x ++) {
+			// The pixels above the box are background
+			if (foreground && y0 > 0) {
+				final long pos = (long) x * height;
+				counts.add(pos - runStart);
+				runStart = pos;
+				foreground = false;
+			}
+			for (int y = y0; y < y1; y ++) {
+				final boolean value = mask[(y - box[0]) * bw + x - box[1]] != 0;
+				if (value == foreground)
+					continue;
+				final long pos = (long) x * height + y;
+				counts.add(pos - runStart);
+				runStart = pos;
+				foreground = value;
+			}
+			// The pixels below the box are background
+			if (foreground && y1 < height) {
+				final long pos = (long) x * height + y1;
+				counts.add(pos - runStart);
+				runStart = pos;
+				foreground = false;
+			}
+		}
+		// The pixels right of the box are background. This closes the runs of boxes
+		// that reach the bottom of the image, which are not closed in the loop
+		if (foreground && x1 < width) {
+			final long pos = (long) x1 * height;
+			counts.add(pos - runStart);
+			runStart = pos;
+		}
+		counts.add((long) width * height - runStart);
+		final long[] arr = new long[counts.size()];
+		for (int i = 0; i < arr.length; i ++)
+			arr[i] = counts.get(i);
+		return arr;
+	}
+	
+	/**
+	 * Compress run lengths into the string used by the COCO API (rleToString in
+	 * pycocotools): counts are stored as differences with the count two
+	 * positions before, in variable-length groups of 5 bits written as characters
+	 * @param counts: run lengths
+	 * @return compressed string
+	 */
+	public static String toCocoString(long[] counts) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < counts.length; i ++) {
+			long x = counts[i];
+			if (i > 2)
+				x -= counts[i - 2];
+			boolean more = true;
+			while (more) {
+				long c = x & 0x1f;
+				x >>= 5;
+				more = (c & 0x10) != 0 ? x != -1 : x != 0;
+				if (more)
+					c |= 0x20;
+				sb.append((char) (c + 48));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.HashMap;
+
+/**
+ * Estimate of the peak memory needed to process one image, derived from the
+ * shape of the image and the parameters of the config file. Pre-processing
+ * keeps the original image, its float conversion, the resized and padded
+ * copies and the tensors. Post-processing keeps the output of the model and,
+ * in 'masks' output mode, one full size float mask per detection, which is
+ * the dominant term for large crowded images. The sparse output modes ('rois',
+ * 'instances' or an instance sink) only keep data proportional to the masks
+ * of the model.
+ */
+public class MemoryEstimate {
+	
+	private final long preprocessingBytes;
+	private final long denseBytes;
+	private final long sparseBytes;
+	
+	private MemoryEstimate(long preprocessingBytes, long denseBytes, long sparseBytes) {
+		this.preprocessingBytes = preprocessingBytes;
+		this.denseBytes = denseBytes;
+		this.sparseBytes = sparseBytes;
+	}
+	
+	/**
+	 * Estimate the memory needed to process an image
+	 * @param config: parameters of the config file
+	 * @param height: height of the image
+	 * @param width: width of the image
+	 * @param nChannels: number of channels of the image
+	 * @param bitDepth: bit depth of the image (8, 16, 24 or 32)
+	 * @return the estimate
+	 * @throws IllegalArgumentException if the parameters of the config file cannot be parsed
+	 */
+	public static MemoryEstimate estimate(HashMap<String, String> config, int height, int width, int nChannels, int bitDepth) {
+		final MoldGeometry geometry;
+		final int maxInstances;
+		final int numClasses;
+		final float[] strides;
+		final float[] ratios;
+		final float[] maskShape;
+		final int anchorStride;
+		final int modelChannels;
+		try {
+			geometry = MoldGeometry.compute(height, width, Integer.parseInt(config.get("IMAGE_MIN_DIM")),
+					Float.parseFloat(config.get("IMAGE_MIN_SCALE")), Integer.parseInt(config.get("IMAGE_MAX_DIM")),
+					config.get("IMAGE_RESIZE_MODE"));
+			maxInstances = Integer.parseInt(config.get("DETECTION_MAX_INSTANCES"));
+			numClasses = Integer.parseInt(config.get("NUM_CLASSES"));
+			strides = MaskRcnnAnchors.str2array(config.get("BACKBONE_STRIDES"));
+			ratios = MaskRcnnAnchors.str2array(config.get("RPN_ANCHOR_RATIOS"));
+			maskShape = MaskRcnnAnchors.str2array(config.get("MASK_SHAPE"));
+			anchorStride = Integer.parseInt(config.get("RPN_ANCHOR_STRIDE"));
+			modelChannels = config.get("IMAGE_CHANNEL_COUNT") == null ? nChannels : Integer.parseInt(config.get("IMAGE_CHANNEL_COUNT"));
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Cannot estimate the memory needed, some parameters of the config file are missing or incorrect.", ex);
+		}
+		final long original = (long) height * width * Math.max(nChannels, bitDepth == 24 ? 3 : 1);
+		final long originalBytes = original * (bitDepth == 24 ? 1 : Math.max(1, bitDepth / 8));
+		final long channels = Math.max(nChannels, modelChannels);
+		final long floatOriginal = (long) height * width * channels * 4;
+		final long processed = (long) geometry.getHeight() * geometry.getWidth() * channels * 4;
+		final long scaled = (long) geometry.getScaledHeight() * geometry.getScaledWidth() * channels * 4;
+		long anchors = 0;
+		for (float s : strides) {
+			final long rows = (long) Math.ceil(Math.ceil(geometry.getHeight() / s) / anchorStride);
+			final long cols = (long) Math.ceil(Math.ceil(geometry.getWidth() / s) / anchorStride);
+			anchors += rows * cols * ratios.length;
+		}
+		// Original image, float copy, resized copy, padded copy, tensor and anchors
+		final long pre = originalBytes + floatOriginal + scaled + 2 * processed + anchors * 4 * 4;
+		final long maskBytes = (long) maxInstances * (long) maskShape[0] * (long) maskShape[1] * 4;
+		// Output of the model, detections table and the masks selected for each detection
+		final long modelOutput = maskBytes * numClasses + maxInstances * 6 * 8 + maskBytes;
+		final long dense = modelOutput + (long) maxInstances * height * width * 4;
+		return new MemoryEstimate(pre, dense, modelOutput);
+	}
+	
+	/**
+	 * @return bytes needed by the pre-processing
+	 */
+	public long getPreprocessingBytes() {
+		return preprocessingBytes;
+	}
+	
+	/**
+	 * @return bytes needed by the post-processing when the full size masks are created
+	 */
+	public long getDenseBytes() {
+		return denseBytes;
+	}
+	
+	/**
+	 * @return bytes needed by the post-processing with a sparse output
+	 */
+	public long getSparseBytes() {
+		return sparseBytes;
+	}
+	
+	/**
+	 * @param sparse: whether the output is sparse
+	 * @return peak bytes needed to process the image with that output
+	 */
+	public long getPeakBytes(boolean sparse) {
+		return Math.max(preprocessingBytes, sparse ? sparseBytes : denseBytes);
+	}
+	
+	@Override
+	public String toString() {
+		return "MemoryEstimate[preprocessing=" + preprocessingBytes + " B, dense post-processing=" + denseBytes
+				+ " B, sparse post-processing=" + sparseBytes + " B]";
+	}
+}
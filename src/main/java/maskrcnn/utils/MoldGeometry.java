@@ -0,0 +1,203 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+/**
+ * Scale and padding that the Mask R-CNN pre-processing applies to an image of
+ * a given size. It replicates the geometry of resize_image at:
+ * https://github.com/matterport/Mask_RCNN/blob/3deaec5d902d16e1daf56b62d5971d428dc920bc/mrcnn/utils.py#L388
+ * without touching any pixel, so the shape of the processed image, its window
+ * and its scale can be known before (or instead of) resizing and padding it.
+ */
+public class MoldGeometry {
+	
+	private final int originalHeight;
+	private final int originalWidth;
+	private final double scale;
+	private final int scaledHeight;
+	private final int scaledWidth;
+	private final int topPad;
+	private final int bottomPad;
+	private final int leftPad;
+	private final int rightPad;
+	
+	private MoldGeometry(int originalHeight, int originalWidth, double scale, int scaledHeight, int scaledWidth,
+			int topPad, int bottomPad, int leftPad, int rightPad) {
+		this.originalHeight = originalHeight;
+		this.originalWidth = originalWidth;
+		this.scale = scale;
+		this.scaledHeight = scaledHeight;
+		this.scaledWidth = scaledWidth;
+		this.topPad = topPad;
+		this.bottomPad = bottomPad;
+		this.leftPad = leftPad;
+		this.rightPad = rightPad;
+	}
+	
+	/**
+	 * Geometry that leaves the image unchanged
+	 * @param h: height of the image
+	 * @param w: width of the image
+	 * @return geometry without scaling nor padding
+	 */
+	public static MoldGeometry identity(int h, int w) {
+		return new MoldGeometry(h, w, 1.0, h, w, 0, 0, 0, 0);
+	}
+	
+	/**
+	 * Compute the geometry for an image
+	 * @param h: height of the image
+	 * @param w: width of the image
+	 * @param minDim: the image is scaled so its smaller side is at least this value
+	 * @param minScale: the image is scaled up by at least this factor
+	 * @param maxDim: in 'square' mode, the longest side does not exceed this value and
+	 * 	the image is padded to maxDim x maxDim
+	 * @param mode: resizing mode, 'none', 'square' or 'pad64'
+	 * @return the geometry of the processed image
+	 * @throws IllegalArgumentException if the mode is not supported
+	 */
+	public static MoldGeometry compute(int h, int w, int minDim, double minScale, int maxDim, String mode) {
+		if (mode.equals("none"))
+			return identity(h, w);
+		if (mode.equals("crop")) {
+			throw new IllegalArgumentException("This Java Mask R-CNN pre-processing does not support 'IMAGE_RESIZE_MODE = crop',\n"
+    				+ "please change the parameter IMAGE_RESIZE_MODE to 'square' or 'pad64' in the\n"
+    				+ "config pre-preprocessing file.");
+		} else if (!mode.equals("square") && !mode.equals("pad64")) {
+			throw new IllegalArgumentException("The config file information for the parameter 'IMAGE_RESIZE_MODE' is incorrect."
+					+ "\nThe value provided in the config file is '" + mode + "'. However the only values allowed are: "
+					+ "'none', 'square' and 'pad64'.");
+		}
+    	// Find the scale
+		double scale = 1.0;
+    	if (minDim > 0)
+    		scale = Math.max(1.0, ((double) minDim) / Math.min(h,  w));
+    	if (scale < minScale)
+    		scale = minScale;
+    	// Check if the found scale exceeds the max dimension
+    	double imageMax = Math.max(h, w);
+    	if (mode.equals("square") && Math.round(imageMax * scale) > maxDim)
+    		scale = maxDim / imageMax;
+    	int sh = h;
+    	int sw = w;
+    	if (scale != 1) {
+    		sh = (int) Math.round(h * scale);
+    		sw = (int) Math.round(w * scale);
+    	}
+    	if (mode.equals("square")) {
+    		int topPad = (int) Math.floor((maxDim - sh) / 2.0);
+    		int leftPad = (int) Math.floor((maxDim - sw) / 2.0);
+    		return new MoldGeometry(h, w, scale, sh, sw, topPad, maxDim - sh - topPad, leftPad, maxDim - sw - leftPad);
+    	}
+    	// pad64, pad to the next multiple of 64
+    	int maxH = sh % 64 == 0 ? sh : sh - (sh % 64) + 64;
+    	int maxW = sw % 64 == 0 ? sw : sw - (sw % 64) + 64;
+    	int topPad = (maxH - sh) / 2;
+    	int leftPad = (maxW - sw) / 2;
+		return new MoldGeometry(h, w, scale, sh, sw, topPad, maxH - sh - topPad, leftPad, maxW - sw - leftPad);
+	}
+	
+	public int getOriginalHeight() {
+		return originalHeight;
+	}
+	
+	public int getOriginalWidth() {
+		return originalWidth;
+	}
+	
+	public double getScale() {
+		return scale;
+	}
+	
+	/**
+	 * @return height of the image after scaling and before padding
+	 */
+	public int getScaledHeight() {
+		return scaledHeight;
+	}
+	
+	/**
+	 * @return width of the image after scaling and before padding
+	 */
+	public int getScaledWidth() {
+		return scaledWidth;
+	}
+	
+	/**
+	 * @return height of the processed image
+	 */
+	public int getHeight() {
+		return topPad + scaledHeight + bottomPad;
+	}
+	
+	/**
+	 * @return width of the processed image
+	 */
+	public int getWidth() {
+		return leftPad + scaledWidth + rightPad;
+	}
+	
+	public int getTopPad() {
+		return topPad;
+	}
+	
+	public int getLeftPad() {
+		return leftPad;
+	}
+	
+	/**
+	 * @return whether any padding is added to the scaled image
+	 */
+	public boolean hasPadding() {
+		return topPad + bottomPad + leftPad + rightPad > 0;
+	}
+	
+	/**
+	 * @return padding in the format expected by {@link ImageProcessingUtils#pad(ij.ImagePlus, double[][], int)}
+	 */
+	public double[][] getPadding() {
+		return new double[][] {{topPad, bottomPad}, {leftPad, rightPad}, {0, 0}};
+	}
+	
+	/**
+	 * @return area of the processed image that contains the original image,
+	 * 	as [y1, x1, y2, x2]
+	 */
+	public float[] getWindow() {
+		return new float[] {topPad, leftPad, topPad + scaledHeight, leftPad + scaledWidth};
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Lazy ImgLib2 version of the Mask R-CNN image molding (resize, pad and mean
+ * subtraction). The image planes are wrapped without copying them and every
+ * step is a view, so no intermediate image is created: pixels are only computed
+ * when the resulting view is read, e.g. when it is written into the input tensor.
+ */
+public class MoldedImageView {
+	
+	/**
+	 * Create the molded view of the first slice and frame of an image
+	 * @param image: image to be molded, 8, 16, 32-bit or RGB. RGB images are molded
+	 * 	as 3 channels, read directly from the packed pixels
+	 * @param geometry: scale and padding to apply
+	 * @param mean: value subtracted to each channel, null to not subtract anything
+	 * @return view of shape [1, height, width, channels] of the processed image
+	 */
+	public static RandomAccessibleInterval<FloatType> create(ImagePlus image, MoldGeometry geometry, float[] mean) {
+		return create(image, geometry, mean, image.getBitDepth() == 24 ? 3 : image.getNChannels());
+	}
+	
+	/**
+	 * Create the molded view of the first slice and frame of an image, broadcasting
+	 * a single-channel image to the number of channels expected by the model. The
+	 * channels of the view share the same resized and padded plane, only the mean
+	 * subtracted differs, so nothing is replicated in memory
+	 * @param image: image to be molded, 8, 16, 32-bit or RGB
+	 * @param geometry: scale and padding to apply
+	 * @param mean: value subtracted to each channel, null to not subtract anything
+	 * @param nChannels: number of channels of the view. If the image has a single
+	 * 	channel it is repeated, otherwise it has to be the number of channels of the image
+	 * @return view of shape [1, height, width, nChannels] of the processed image
+	 */
+	public static RandomAccessibleInterval<FloatType> create(ImagePlus image, MoldGeometry geometry, float[] mean, int nChannels) {
+		final List<RandomAccessibleInterval<FloatType>> channels = new ArrayList<RandomAccessibleInterval<FloatType>>();
+		final Interval processedInterval = new FinalInterval(new long[] {0, 0}, 
+				new long[] {geometry.getWidth() - 1, geometry.getHeight() - 1});
+		final boolean rgb = image.getBitDepth() == 24;
+		final int imageChannels = rgb ? 3 : image.getNChannels();
+		if (imageChannels != 1 && imageChannels != nChannels)
+			throw new IllegalArgumentException("Cannot broadcast an image with " + imageChannels 
+					+ " channels to " + nChannels + " channels.");
+		final boolean integer = image.getBitDepth() == 8 || image.getBitDepth() == 16;
+		// Calibrated pixel values, as given by convertToGray32
+		final boolean calibrated = integer && image.getCalibration().getCTable() != null;
+		RandomAccessibleInterval<FloatType> plane = null;
+		for (int c = 0; c < nChannels; c ++) {
+			final float m = mean == null ? 0 : mean[c];
+			if (integer && m != 0 && geometry.getScale() == 1) {
+				// Conversion and mean subtraction in a single look-up. The padding
+				// is then the value of a zero pixel after subtracting the mean
+				final float[] lut = ImageProcessingUtils.getLut(image, m);
+				final RandomAccessibleInterval<FloatType> channel = wrapChannel(image, imageChannels == 1 ? 0 : c, lut);
+				channels.add(Views.interval(Views.extendValue(Views.translate(channel, geometry.getLeftPad(), geometry.getTopPad()),
+						-m), processedInterval));
+				continue;
+			}
+			RandomAccessibleInterval<FloatType> channel = plane;
+			if (channel == null) {
+				if (rgb)
+					channel = wrapRGBChannel(image, c);
+				else if (calibrated)
+					channel = wrapChannel(image, c, ImageProcessingUtils.getLut(image, 0));
+				else
+					channel = wrapChannel(image, c);
+				if (geometry.getScale() != 1)
+					channel = scale(channel, geometry.getScaledWidth(), geometry.getScaledHeight());
+				// Padding is an offset plus a constant border of zeros
+				channel = Views.interval(Views.extendValue(Views.translate(channel, geometry.getLeftPad(), geometry.getTopPad()),
+						0f), processedInterval);
+				if (imageChannels == 1)
+					plane = channel;
+			}
+			if (m != 0) {
+				channel = Converters.convert(channel, (in, out) -> out.set(in.get() - m), new FloatType());
+			}
+			channels.add(channel);
+		}
+		return toTensorAxes(Views.stack(channels));
+	}
+	
+	/**
+	 * Wrap one channel of the first slice and frame of an image as an ImgLib2 image
+	 * of dimensions [width, height]. The pixel array of the image is not copied
+	 * @param image: 8, 16 or 32-bit image
+	 * @param c: channel index, starting at 0
+	 * @return float view of the channel
+	 */
+	public static RandomAccessibleInterval<FloatType> wrapChannel(ImagePlus image, int c) {
+		final ImageProcessor ip = image.getStack().getProcessor(image.getStackIndex(c + 1, 1, 1));
+		final int w = ip.getWidth();
+		final int h = ip.getHeight();
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof float[]) {
+			return ArrayImgs.floats((float[]) pixels, w, h);
+		} else if (pixels instanceof byte[]) {
+			final RandomAccessibleInterval<UnsignedByteType> bytes = ArrayImgs.unsignedBytes((byte[]) pixels, w, h);
+			return Converters.convert(bytes, (in, out) -> out.set(in.get()), new FloatType());
+		} else if (pixels instanceof short[]) {
+			final RandomAccessibleInterval<UnsignedShortType> shorts = ArrayImgs.unsignedShorts((short[]) pixels, w, h);
+			return Converters.convert(shorts, (in, out) -> out.set(in.get()), new FloatType());
+		}
+		throw new IllegalArgumentException("Only 8, 16 and 32-bit images can be wrapped, use wrapRGBChannel for RGB images.");
+	}
+	
+	/**
+	 * Wrap one channel of the first slice and frame of an 8 or 16-bit image as an
+	 * ImgLib2 image of dimensions [width, height], converting the pixels with a look-up table
+	 * @param image: 8 or 16-bit image
+	 * @param c: channel index, starting at 0
+	 * @param lut: float value of each pixel value, see {@link ImageProcessingUtils#getLut(ImagePlus, float)}
+	 * @return float view of the channel
+	 */
+	public static RandomAccessibleInterval<FloatType> wrapChannel(ImagePlus image, int c, float[] lut) {
+		final ImageProcessor ip = image.getStack().getProcessor(image.getStackIndex(c + 1, 1, 1));
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+			final RandomAccessibleInterval<UnsignedByteType> bytes = ArrayImgs.unsignedBytes((byte[]) pixels, ip.getWidth(), ip.getHeight());
+			return Converters.convert(bytes, (in, out) -> out.set(lut[in.get()]), new FloatType());
+		} else if (pixels instanceof short[]) {
+			final RandomAccessibleInterval<UnsignedShortType> shorts = ArrayImgs.unsignedShorts((short[]) pixels, ip.getWidth(), ip.getHeight());
+			return Converters.convert(shorts, (in, out) -> out.set(lut[in.get()]), new FloatType());
+		}
+		throw new IllegalArgumentException("Look-up tables can only be applied to 8 and 16-bit images.");
+	}
+	
+	/**
+	 * Wrap one colour of the first slice and frame of an RGB image as an ImgLib2 image
+	 * of dimensions [width, height]. The colour is extracted from the packed pixels
+	 * when it is read, so the image is not split nor copied
+	 * @param image: RGB image
+	 * @param c: colour index, 0 for red, 1 for green and 2 for blue
+	 * @return float view of the colour
+	 */
+	public static RandomAccessibleInterval<FloatType> wrapRGBChannel(ImagePlus image, int c) {
+		final ImageProcessor ip = image.getStack().getProcessor(image.getStackIndex(1, 1, 1));
+		final RandomAccessibleInterval<IntType> packed = ArrayImgs.ints((int[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+		final int shift = 16 - 8 * c;
+		return Converters.convert(packed, (in, out) -> out.set((in.get() >> shift) & 0xff), new FloatType());
+	}
+	
+	/**
+	 * Reorder the axes of a [width, height, channels] image into the axes of the
+	 * Mask R-CNN input tensor [1, height, width, channels]
+	 * @param xyc: image with axes [width, height, channels]
+	 * @return view with axes [batch, height, width, channels]
+	 */
+	public static RandomAccessibleInterval<FloatType> toTensorAxes(RandomAccessibleInterval<FloatType> xyc) {
+		final RandomAccessibleInterval<FloatType> yxc = Views.permute(xyc, 0, 1);
+		return Views.moveAxis(Views.addDimension(yxc, 0, 0), 3, 0);
+	}
+	
+	/**
+	 * Lazily scale a 2D image with linear interpolation, using the pixel-centre
+	 * convention of skimage.transform.resize used by the Python implementation
+	 * @param source: image of dimensions [width, height]
+	 * @param newWidth: width of the scaled image
+	 * @param newHeight: height of the scaled image
+	 * @return view of dimensions [newWidth, newHeight]
+	 */
+	public static RandomAccessibleInterval<FloatType> scale(RandomAccessibleInterval<FloatType> source, int newWidth, int newHeight) {
+		final RealRandomAccessible<FloatType> interpolated = Views.interpolate(Views.extendBorder(source), 
+				new NLinearInterpolatorFactory<FloatType>());
+		final double sx = newWidth / (double) source.dimension(0);
+		final double sy = newHeight / (double) source.dimension(1);
+		return Views.interval(new ScaledRandomAccessible(interpolated, sx, sy), 
+				new long[] {0, 0}, new long[] {newWidth - 1, newHeight - 1});
+	}
+	
+	/**
+	 * Raster of a 2D real image sampled at the centres of the pixels of a scaled grid
+	 */
+	private static class ScaledRandomAccessible implements RandomAccessible<FloatType> {
+		
+		private final RealRandomAccessible<FloatType> source;
+		private final double sx;
+		private final double sy;
+		
+		ScaledRandomAccessible(RealRandomAccessible<FloatType> source, double sx, double sy) {
+			this.source = source;
+			this.sx = sx;
+			this.sy = sy;
+		}
+
+		@Override
+		public int numDimensions() {
+			return 2;
+		}
+
+		@Override
+		public RandomAccess<FloatType> randomAccess() {
+			return new ScaledRandomAccess(source.realRandomAccess(), sx, sy);
+		}
+
+		@Override
+		public RandomAccess<FloatType> randomAccess(Interval interval) {
+			return randomAccess();
+		}
+	}
+	
+	private static class ScaledRandomAccess extends Point implements RandomAccess<FloatType> {
+		
+		private final RealRandomAccess<FloatType> source;
+		private final double sx;
+		private final double sy;
+		
+		ScaledRandomAccess(RealRandomAccess<FloatType> source, double sx, double sy) {
+			super(2);
+			this.source = source;
+			this.sx = sx;
+			this.sy = sy;
+		}
+
+		@Override
+		public FloatType get() {
+			source.setPosition((position[0] + 0.5) / sx - 0.5, 0);
+			source.setPosition((position[1] + 0.5) / sy - 0.5, 1);
+			return source.get();
+		}
+
+		@Override
+		public ScaledRandomAccess copy() {
+			ScaledRandomAccess copy = new ScaledRandomAccess(source.copyRealRandomAccess(), sx, sy);
+			copy.setPosition(this);
+			return copy;
+		}
+
+		@Override
+		public ScaledRandomAccess copyRandomAccess() {
+			return copy();
+		}
+	}
+}
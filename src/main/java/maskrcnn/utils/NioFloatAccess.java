@@ -0,0 +1,77 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.nio.FloatBuffer;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+
+/**
+ * ImgLib2 {@link FloatAccess} backed by a {@link FloatBuffer}. It allows creating
+ * images whose data lives off-heap, in direct or memory-mapped buffers, without
+ * copying it into a Java array. Writing into an access created from a read-only
+ * buffer throws a {@link java.nio.ReadOnlyBufferException}
+ */
+public class NioFloatAccess implements FloatAccess {
+	
+	private final FloatBuffer buffer;
+	
+	/**
+	 * @param buffer: buffer containing the data. Index 0 of the access corresponds to
+	 * position 0 of the buffer
+	 */
+	public NioFloatAccess(FloatBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public float getValue(int index) {
+		return buffer.get(index);
+	}
+
+	@Override
+	public void setValue(int index, float value) {
+		buffer.put(index, value);
+	}
+	
+	/**
+	 * @return the buffer wrapped by the access
+	 */
+	public FloatBuffer getBuffer() {
+		return buffer;
+	}
+}
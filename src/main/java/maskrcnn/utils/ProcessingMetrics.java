@@ -0,0 +1,242 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Per-invocation timing and allocation counters for the stages of the
+ * Mask R-CNN pre- and post-processing. A new instance is created for each
+ * call to the processing routines. When metrics are disabled every method
+ * returns immediately, so the instrumentation can stay in the code paths.
+ */
+public class ProcessingMetrics {
+	
+	/**
+	 * Instance used when metrics are not collected. All the methods are no-ops
+	 */
+	public static final ProcessingMetrics DISABLED = new ProcessingMetrics("disabled", false);
+	/**
+	 * Bean used to read the bytes allocated by the current thread, null if the
+	 * JVM does not support it. The measurement is only switched on by
+	 * {@link #enableAllocationMeasurement()}, until then the bytes are unknown
+	 */
+	private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = getAllocationBean();
+	
+	private final String phase;
+	private final boolean enabled;
+	/**
+	 * Nanoseconds and allocated bytes accumulated per stage, in execution order
+	 */
+	private final LinkedHashMap<String, long[]> stages = new LinkedHashMap<String, long[]>();
+	private String currentStage;
+	private long stageStartNanos;
+	private long stageStartBytes;
+	
+	private ProcessingMetrics(String phase, boolean enabled) {
+		this.phase = phase;
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Create the metrics for one invocation of a processing routine
+	 * @param phase: name of the routine, e.g. 'preprocessing' or 'postprocessing'
+	 * @param enabled: whether the metrics are actually collected
+	 * @return a new metrics instance or {@link #DISABLED}
+	 */
+	public static ProcessingMetrics create(String phase, boolean enabled) {
+		if (!enabled)
+			return DISABLED;
+		return new ProcessingMetrics(phase, true);
+	}
+	
+	/**
+	 * Start timing a stage. If another stage was running it is stopped first
+	 * @param stage: name of the stage
+	 */
+	public void start(String stage) {
+		if (!enabled)
+			return;
+		if (currentStage != null)
+			stop();
+		currentStage = stage;
+		stageStartBytes = allocatedBytes();
+		stageStartNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Stop the running stage and accumulate its time and allocated bytes
+	 */
+	public void stop() {
+		if (!enabled || currentStage == null)
+			return;
+		long nanos = System.nanoTime() - stageStartNanos;
+		long bytes = allocatedBytes();
+		record(currentStage, nanos, (bytes < 0 || stageStartBytes < 0) ? -1 : bytes - stageStartBytes);
+		currentStage = null;
+	}
+	
+	/**
+	 * Add a measurement taken outside of {@link #start(String)} and {@link #stop()}
+	 * @param stage: name of the stage
+	 * @param nanos: elapsed nanoseconds
+	 * @param bytes: allocated bytes, -1 if unknown
+	 */
+	public void record(String stage, long nanos, long bytes) {
+		if (!enabled)
+			return;
+		long[] values = stages.get(stage);
+		if (values == null) {
+			stages.put(stage, new long[] {nanos, bytes});
+			return;
+		}
+		values[0] += nanos;
+		values[1] = (values[1] < 0 || bytes < 0) ? -1 : values[1] + bytes;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public String getPhase() {
+		return phase;
+	}
+	
+	/**
+	 * @return names of the stages measured, in execution order
+	 */
+	public List<String> getStages() {
+		return new ArrayList<String>(stages.keySet());
+	}
+	
+	/**
+	 * @param stage: name of the stage
+	 * @return nanoseconds spent in the stage, 0 if it was not measured
+	 */
+	public long getNanos(String stage) {
+		long[] values = stages.get(stage);
+		return values == null ? 0 : values[0];
+	}
+	
+	/**
+	 * @param stage: name of the stage
+	 * @return bytes allocated by the stage, -1 if unknown
+	 */
+	public long getAllocatedBytes(String stage) {
+		long[] values = stages.get(stage);
+		return values == null ? -1 : values[1];
+	}
+	
+	/**
+	 * @return total nanoseconds of all the stages
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for (long[] values : stages.values())
+			total += values[0];
+		return total;
+	}
+	
+	/**
+	 * Create a ResultsTable with one row per stage
+	 * @return table with the columns 'Stage', 'Time (ms)' and 'Allocated (bytes)'
+	 */
+	public ResultsTable toResultsTable() {
+		ResultsTable rt = new ResultsTable();
+		for (String stage : stages.keySet()) {
+			rt.incrementCounter();
+			rt.addValue("Stage", stage);
+			rt.addValue("Time (ms)", getNanos(stage) / 1e6);
+			rt.addValue("Allocated (bytes)", getAllocatedBytes(stage));
+		}
+		return rt;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(phase);
+		for (String stage : stages.keySet()) {
+			sb.append(System.getProperty("line.separator"));
+			sb.append(" - ").append(stage).append(": ").append(getNanos(stage) / 1e6).append(" ms");
+			long bytes = getAllocatedBytes(stage);
+			if (bytes >= 0)
+				sb.append(", ").append(bytes).append(" bytes");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Switch on the measurement of the bytes allocated by each thread. It is a
+	 * setting of the whole JVM, so it is only done when a {@link MetricsSink} is set
+	 */
+	public static void enableAllocationMeasurement() {
+		if (ALLOCATION_BEAN == null)
+			return;
+		try {
+			if (!ALLOCATION_BEAN.isThreadAllocatedMemoryEnabled())
+				ALLOCATION_BEAN.setThreadAllocatedMemoryEnabled(true);
+		} catch (UnsupportedOperationException | SecurityException ex) {
+			// The bytes stay unknown
+		}
+	}
+	
+	private static long allocatedBytes() {
+		if (ALLOCATION_BEAN == null)
+			return -1;
+		return ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	private static com.sun.management.ThreadMXBean getAllocationBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!(bean instanceof com.sun.management.ThreadMXBean))
+				return null;
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (!sunBean.isThreadAllocatedMemorySupported())
+				return null;
+			return sunBean;
+		} catch (Throwable ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the masks of {@link DetectedInstance}s at the
+ * resolution of the original image. Masks are rasterised the first time they
+ * are requested and only the last ones used are kept, so reviewing a few
+ * instances of a crowded image does not rasterise nor keep every mask.
+ */
+public class RasterCache {
+	
+	private final int maxEntries;
+	private final LinkedHashMap<DetectedInstance, byte[]> rasters;
+	
+	/**
+	 * @param maxEntries: maximum number of masks kept, 0 to not keep any
+	 */
+	public RasterCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.rasters = new LinkedHashMap<DetectedInstance, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<DetectedInstance, byte[]> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Get the mask of an instance, rasterising it if it is not in the cache
+	 * @param instance: detected instance
+	 * @return mask of the instance inside its bounding box, see {@link DetectedInstance#rasterise()}
+	 */
+	public synchronized byte[] get(DetectedInstance instance) {
+		byte[] raster = rasters.get(instance);
+		if (raster == null) {
+			raster = instance.rasterise();
+			if (maxEntries > 0)
+				rasters.put(instance, raster);
+		}
+		return raster;
+	}
+	
+	/**
+	 * @return number of masks currently kept
+	 */
+	public synchronized int size() {
+		return rasters.size();
+	}
+	
+	/**
+	 * Remove every mask from the cache
+	 */
+	public synchronized void clear() {
+		rasters.clear();
+	}
+}
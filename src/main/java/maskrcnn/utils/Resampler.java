@@ -0,0 +1,351 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Separable image resampler. Images are resized with a horizontal pass over each
+ * source row followed by a vertical pass that combines the resampled rows. The
+ * source index and weight of every tap are computed once per (source size,
+ * target size, method) and cached, so images that share their size, as it
+ * happens with the 'square' resize mode, never recompute them.
+ * Exact 2x and 4x reductions with the area method, and 2x reductions with the
+ * bilinear method, are done with box averaging, which gives the same result
+ * with fewer operations.
+ * 
+ * The source is read row by row through a {@link RowReader} and only the rows
+ * needed by the vertical taps are kept in memory, so images that do not fit
+ * in memory as a whole can be resized too.
+ */
+public class Resampler {
+	
+	/**
+	 * Interpolation methods supported by the resampler
+	 */
+	public enum Method {
+		/**
+		 * Linear interpolation with the pixel-centre convention of skimage.transform.resize
+		 */
+		BILINEAR,
+		/**
+		 * Cubic convolution (a = -0.5), the kernel used by ImageJ
+		 */
+		BICUBIC,
+		/**
+		 * Average of the source pixels covered by each target pixel when
+		 * reducing, pixel replication when enlarging
+		 */
+		AREA;
+		
+		/**
+		 * @param str: name of the method, case insensitive
+		 * @return the method or null if the string is null, empty or 'imagej', which
+		 * 	means that the ImageJ resize is used instead of the resampler
+		 * @throws IllegalArgumentException if the method does not exist
+		 */
+		public static Method fromString(String str) {
+			if (str == null || str.trim().equals("") || str.trim().equalsIgnoreCase("imagej"))
+				return null;
+			for (Method m : values()) {
+				if (m.name().equalsIgnoreCase(str.trim()))
+					return m;
+			}
+			throw new IllegalArgumentException("Unknown resize method '" + str + "'. The only values allowed are: "
+					+ "'imagej', 'bilinear', 'bicubic' and 'area'.");
+		}
+	}
+	
+	/**
+	 * Source of the rows of the image to resample
+	 */
+	public interface RowReader {
+		/**
+		 * Read a row of the source image
+		 * @param y: index of the row, rows are requested in increasing order and
+		 * 	the rows that do not contribute to the resized image are skipped
+		 * @param row: array where the row is written, of the length of the source width
+		 */
+		void readRow(int y, float[] row);
+	}
+	
+	/**
+	 * Taps of the interpolation along one axis. Target pixel i is computed from the
+	 * source pixels index[i * taps + k] with weights weight[i * taps + k]
+	 */
+	private static class Taps {
+		private final int taps;
+		private final int[] index;
+		private final float[] weight;
+		/**
+		 * Integer factor between the source and target sizes if it is an exact 2x or 4x
+		 * reduction (positive) or enlargement with replication (negative), 0 otherwise
+		 */
+		private final int factor;
+		
+		private Taps(int taps, int[] index, float[] weight, int factor) {
+			this.taps = taps;
+			this.index = index;
+			this.weight = weight;
+			this.factor = factor;
+		}
+	}
+	
+	/**
+	 * Maximum number of tap tables kept in memory
+	 */
+	private static final int MAX_CACHED_TAPS = 32;
+	/**
+	 * Tap tables already computed, by source size, target size and method. Only
+	 * the most recently used ones are kept
+	 */
+	private static final Map<String, Taps> TAPS = new LinkedHashMap<String, Taps>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Taps> eldest) {
+			return size() > MAX_CACHED_TAPS;
+		}
+	};
+	
+	/**
+	 * Resize a float image
+	 * @param pixels: source image, row by row
+	 * @param width: width of the source image
+	 * @param height: height of the source image
+	 * @param newWidth: width of the resized image
+	 * @param newHeight: height of the resized image
+	 * @param method: interpolation method
+	 * @return the resized image, row by row
+	 */
+	public static float[] resize(final float[] pixels, final int width, int height, int newWidth, int newHeight, Method method) {
+		return resize((y, row) -> System.arraycopy(pixels, y * width, row, 0, width), width, height, newWidth, newHeight, method);
+	}
+	
+	/**
+	 * Resize an image read row by row. Only the rows needed for the current target
+	 * row are read and kept in memory, already resampled horizontally
+	 * @param reader: source of the rows of the image
+	 * @param width: width of the source image
+	 * @param height: height of the source image
+	 * @param newWidth: width of the resized image
+	 * @param newHeight: height of the resized image
+	 * @param method: interpolation method
+	 * @return the resized image, row by row
+	 */
+	public static float[] resize(RowReader reader, int width, int height, int newWidth, int newHeight, Method method) {
+		final Taps xTaps = getTaps(width, newWidth, method);
+		final Taps yTaps = getTaps(height, newHeight, method);
+		final float[] out = new float[newWidth * newHeight];
+		final float[] sourceRow = new float[width];
+		// Horizontally resampled source rows, released once no target row needs them
+		final float[][] rows = new float[height][];
+		int nextRead = 0;
+		int firstKept = 0;
+		for (int y = 0; y < newHeight; y ++) {
+			int minRow = height;
+			int maxRow = -1;
+			for (int k = 0; k < yTaps.taps; k ++) {
+				minRow = Math.min(minRow, yTaps.index[y * yTaps.taps + k]);
+				maxRow = Math.max(maxRow, yTaps.index[y * yTaps.taps + k]);
+			}
+			for (; firstKept < minRow; firstKept ++)
+				rows[firstKept] = null;
+			// Rows skipped by the vertical taps are never read
+			for (nextRead = Math.max(nextRead, minRow); nextRead <= maxRow; nextRead ++) {
+				reader.readRow(nextRead, sourceRow);
+				rows[nextRead] = resampleRow(sourceRow, xTaps, newWidth);
+			}
+			final int offset = y * newWidth;
+			for (int k = 0; k < yTaps.taps; k ++) {
+				final float w = yTaps.weight[y * yTaps.taps + k];
+				if (w == 0)
+					continue;
+				final float[] row = rows[yTaps.index[y * yTaps.taps + k]];
+				for (int x = 0; x < newWidth; x ++)
+					out[offset + x] += w * row[x];
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Horizontal pass over one source row
+	 * @param row: source row
+	 * @param taps: horizontal taps
+	 * @param newWidth: width of the resized image
+	 * @return the resampled row
+	 */
+	private static float[] resampleRow(float[] row, Taps taps, int newWidth) {
+		final float[] out = new float[newWidth];
+		if (taps.factor == 2) {
+			for (int x = 0; x < newWidth; x ++)
+				out[x] = (row[2 * x] + row[2 * x + 1]) * 0.5f;
+		} else if (taps.factor == 4) {
+			for (int x = 0; x < newWidth; x ++)
+				out[x] = (row[4 * x] + row[4 * x + 1] + row[4 * x + 2] + row[4 * x + 3]) * 0.25f;
+		} else if (taps.factor < 0) {
+			final int f = -taps.factor;
+			for (int x = 0; x < newWidth; x ++)
+				out[x] = row[x / f];
+		} else {
+			final int n = taps.taps;
+			for (int x = 0; x < newWidth; x ++) {
+				float val = 0;
+				for (int k = 0; k < n; k ++)
+					val += taps.weight[x * n + k] * row[taps.index[x * n + k]];
+				out[x] = val;
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Get the taps of one axis from the cache, computing them if needed
+	 * @param size: source size along the axis
+	 * @param newSize: target size along the axis
+	 * @param method: interpolation method
+	 * @return the taps
+	 */
+	private static Taps getTaps(int size, int newSize, Method method) {
+		final String key = size + ":" + newSize + ":" + method;
+		synchronized (TAPS) {
+			Taps taps = TAPS.get(key);
+			if (taps == null) {
+				taps = computeTaps(size, newSize, method);
+				TAPS.put(key, taps);
+			}
+			return taps;
+		}
+	}
+	
+	/**
+	 * Compute the source indexes and weights of every target pixel along one axis.
+	 * Indexes outside of the image are clamped to the border
+	 * @param size: source size along the axis
+	 * @param newSize: target size along the axis
+	 * @param method: interpolation method
+	 * @return the taps
+	 */
+	private static Taps computeTaps(int size, int newSize, Method method) {
+		// Exact 2x and 4x reductions are box filters for the area method. For the
+		// bilinear method only the 2x reduction samples two pixels with equal weights
+		if ((method == Method.AREA && (size == newSize * 2 || size == newSize * 4))
+				|| (method == Method.BILINEAR && size == newSize * 2))
+			return boxTaps(size / newSize, newSize);
+		if (method == Method.AREA && newSize >= size) {
+			final int[] index = new int[newSize];
+			final float[] weight = new float[newSize];
+			for (int i = 0; i < newSize; i ++) {
+				index[i] = (int) Math.min(size - 1, Math.floor(i * size / (double) newSize));
+				weight[i] = 1;
+			}
+			final boolean integer = newSize == size * 2 || newSize == size * 4;
+			return new Taps(1, index, weight, integer ? -(newSize / size) : 0);
+		}
+		final double scale = newSize / (double) size;
+		if (method == Method.AREA) {
+			// Each target pixel covers [i / scale, (i + 1) / scale) of the source
+			final double span = 1 / scale;
+			final int n = (int) Math.ceil(span) + 1;
+			final int[] index = new int[newSize * n];
+			final float[] weight = new float[newSize * n];
+			for (int i = 0; i < newSize; i ++) {
+				final double start = i * span;
+				final double end = Math.min(size, start + span);
+				final int first = (int) Math.floor(start);
+				for (int k = 0; k < n; k ++) {
+					final int p = first + k;
+					final double overlap = Math.min(end, p + 1) - Math.max(start, p);
+					index[i * n + k] = Math.min(p, size - 1);
+					weight[i * n + k] = overlap > 0 ? (float) (overlap / (end - start)) : 0;
+				}
+			}
+			return new Taps(n, index, weight, 0);
+		}
+		final int n = method == Method.BICUBIC ? 4 : 2;
+		final int[] index = new int[newSize * n];
+		final float[] weight = new float[newSize * n];
+		for (int i = 0; i < newSize; i ++) {
+			final double center = (i + 0.5) / scale - 0.5;
+			final int first = (int) Math.floor(center) - (n / 2 - 1);
+			double sum = 0;
+			for (int k = 0; k < n; k ++) {
+				final int p = first + k;
+				final double w = method == Method.BICUBIC ? cubic(center - p) : Math.max(0, 1 - Math.abs(center - p));
+				index[i * n + k] = Math.max(0, Math.min(size - 1, p));
+				weight[i * n + k] = (float) w;
+				sum += w;
+			}
+			for (int k = 0; k < n; k ++)
+				weight[i * n + k] /= sum;
+		}
+		return new Taps(n, index, weight, 0);
+	}
+	
+	/**
+	 * Taps of an exact integer reduction, averaging each block of source pixels
+	 * @param factor: reduction factor
+	 * @param newSize: target size along the axis
+	 * @return the taps
+	 */
+	private static Taps boxTaps(int factor, int newSize) {
+		final int[] index = new int[newSize * factor];
+		final float[] weight = new float[newSize * factor];
+		for (int i = 0; i < index.length; i ++) {
+			index[i] = i;
+			weight[i] = 1f / factor;
+		}
+		return new Taps(factor, index, weight, factor);
+	}
+	
+	/**
+	 * Cubic convolution kernel with a = -0.5
+	 * @param x: distance to the sample
+	 * @return weight of the sample
+	 */
+	private static double cubic(double x) {
+		final double a = -0.5;
+		x = Math.abs(x);
+		if (x <= 1)
+			return ((a + 2) * x - (a + 3)) * x * x + 1;
+		else if (x < 2)
+			return ((a * x - 5 * a) * x + 8 * a) * x - 4 * a;
+		return 0;
+	}
+}
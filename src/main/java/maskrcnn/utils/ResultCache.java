@@ -0,0 +1,349 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+
+/**
+ * Disk cache of the outputs of the model, so images that were already processed
+ * (reruns, duplicated tiles, sweeps over the post-processing parameters) skip the
+ * pre-processing and the model. Entries are keyed by an {@link XxHash64} of the
+ * pixels of the input image and of every parameter of the config file that can
+ * change the outputs of the model; the parameters only used by the
+ * post-processing are left out, so changing them reuses the cached outputs.
+ * 
+ * Each entry stores the detections table, the masks (32-bit images) and the
+ * runtime parameters of the pre-processing, which the post-processing needs.
+ * The total size of the cache is bounded: when it is exceeded the least
+ * recently used entries are deleted. Entries are written to a temporary file
+ * and then moved, so other processes never read a partially written entry.
+ */
+public class ResultCache {
+	
+	private static final int MAGIC = 0x4D524343;
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".outputs";
+	/**
+	 * Parameters of the config file that do not change the outputs of the model
+	 */
+	private static final HashSet<String> POSTPROCESSING_KEYS = new HashSet<String>(Arrays.asList(
+			"ANCHOR_CACHE_DIR", "ANCHOR_CACHE_MODE", "TENSOR_MEMORY", "COLLECT_METRICS", "MEASURE_INSTANCES", 
+			"OUTPUT_MODE", "INSTANCE_CACHE_SIZE", "INSTANCE_OUTPUT", "INSTANCE_OUTPUT_FORMAT", "MASK_STORAGE", 
+			"MASK_CELL_SIZE", "MASK_CACHE_CELLS", "MASK_CACHE_DIR", "RESULT_CACHE_DIR", "RESULT_CACHE_SIZE",
+			"WINDOW_SIZE", "ORIGINAL_IMAGE_SIZE", "PROCESSING_IMAGE_SIZE"));
+	
+	private final File dir;
+	private final long maxBytes;
+	
+	/**
+	 * @param dir: directory of the cache, it is created if it does not exist
+	 * @param maxBytes: maximum total size of the entries
+	 */
+	public ResultCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Create the cache described by the parameters 'RESULT_CACHE_DIR' and
+	 * 'RESULT_CACHE_SIZE' (in MB) of the config file
+	 * @param config: parameters of the config file
+	 * @return the cache, or null if 'RESULT_CACHE_DIR' is not set
+	 * @throws IllegalArgumentException if 'RESULT_CACHE_SIZE' is incorrect
+	 */
+	public static ResultCache fromConfig(HashMap<String, String> config) {
+		final String dir = config.get("RESULT_CACHE_DIR");
+		if (dir == null || dir.equals("") || dir.equals("None"))
+			return null;
+		try {
+			return new ResultCache(new File(dir), (long) (Double.parseDouble(config.get("RESULT_CACHE_SIZE")) * 1024 * 1024));
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("The config file information for the parameter 'RESULT_CACHE_SIZE' is incorrect.\n"
+					+ "It should be the maximum size of the cache in MB, for example: RESULT_CACHE_SIZE = 1024");
+		}
+	}
+	
+	/**
+	 * Compute the key of an image: the hash of its shape, type and pixels and of
+	 * the parameters of the config file that can change the outputs of the model
+	 * @param image: input image
+	 * @param config: parameters of the config file
+	 * @return the key, as 16 hexadecimal characters
+	 */
+	public static String key(ImagePlus image, HashMap<String, String> config) {
+		final XxHash64 hash = new XxHash64();
+		hash.update(image.getWidth()).update(image.getHeight()).update(image.getBitDepth());
+		hash.update(image.getNChannels()).update(image.getNSlices()).update(image.getNFrames());
+		final ImageStack stack = image.getStack();
+		for (int i = 1; i <= stack.getSize(); i ++) {
+			final Object pixels = stack.getPixels(i);
+			if (pixels instanceof byte[])
+				hash.update((byte[]) pixels);
+			else if (pixels instanceof short[])
+				hash.update((short[]) pixels);
+			else if (pixels instanceof int[])
+				hash.update((int[]) pixels);
+			else
+				hash.update((float[]) pixels);
+		}
+		// Sorted so the key does not depend on the order of the map
+		for (Map.Entry<String, String> e : new TreeMap<String, String>(config).entrySet()) {
+			if (POSTPROCESSING_KEYS.contains(e.getKey()))
+				continue;
+			hash.update(e.getKey()).update(String.valueOf(e.getValue()));
+		}
+		return hash.hexDigest();
+	}
+	
+	/**
+	 * Load the outputs of the model stored for a key
+	 * @param key: key of the image, see {@link #key(ImagePlus, HashMap)}
+	 * @param runtimeParameters: map where the runtime parameters of the pre-processing are put
+	 * @return the outputs of the model by their name, or null if they are not cached
+	 * 	or the entry is not valid
+	 */
+	public HashMap<String, Object> load(String key, HashMap<String, String> runtimeParameters) {
+		final File file = new File(dir, key + EXTENSION);
+		if (!file.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			final HashMap<String, String> params = new HashMap<String, String>();
+			final int nParams = in.readInt();
+			for (int i = 0; i < nParams; i ++)
+				params.put(in.readUTF(), in.readUTF());
+			final HashMap<String, Object> outputs = new HashMap<String, Object>();
+			final int nOutputs = in.readInt();
+			for (int i = 0; i < nOutputs; i ++) {
+				final String name = in.readUTF();
+				final byte type = in.readByte();
+				if (type == 'T')
+					outputs.put(name, readTable(in));
+				else if (type == 'I')
+					outputs.put(name, readImage(in));
+				else
+					return null;
+			}
+			runtimeParameters.putAll(params);
+			// The modification time orders the entries for the eviction
+			file.setLastModified(System.currentTimeMillis());
+			return outputs;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Store the outputs of the model for a key, evicting the least recently used
+	 * entries if the cache grows beyond its maximum size
+	 * @param key: key of the image, see {@link #key(ImagePlus, HashMap)}
+	 * @param outputs: outputs of the model. Only ResultsTables and 32-bit images are stored
+	 * @param runtimeParameters: runtime parameters of the pre-processing
+	 * @return true if the outputs were stored, false if some output cannot be stored
+	 * @throws IOException if the entry cannot be written
+	 */
+	public boolean store(String key, HashMap<String, Object> outputs, HashMap<String, String> runtimeParameters) throws IOException {
+		for (Object output : outputs.values()) {
+			if (!(output instanceof ResultsTable) && !(output instanceof ImagePlus && ((ImagePlus) output).getBitDepth() == 32))
+				return false;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create the result cache directory: " + dir);
+		final Path tmp = Files.createTempFile(dir.toPath(), key, ".tmp");
+		try {
+			try (OutputStream os = Files.newOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(runtimeParameters.size());
+				for (Map.Entry<String, String> e : runtimeParameters.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeUTF(e.getValue());
+				}
+				out.writeInt(outputs.size());
+				for (Map.Entry<String, Object> e : outputs.entrySet()) {
+					out.writeUTF(e.getKey());
+					if (e.getValue() instanceof ResultsTable) {
+						out.writeByte('T');
+						writeTable(out, (ResultsTable) e.getValue());
+					} else {
+						out.writeByte('I');
+						writeImage(out, (ImagePlus) e.getValue());
+					}
+				}
+			}
+			final Path target = new File(dir, key + EXTENSION).toPath();
+			try {
+				Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		evict();
+		return true;
+	}
+	
+	/**
+	 * Delete the least recently used entries until the cache fits in its maximum size
+	 */
+	private void evict() {
+		final File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+		if (files == null)
+			return;
+		long total = 0;
+		for (File f : files)
+			total += f.length();
+		if (total <= maxBytes)
+			return;
+		final ArrayList<File> entries = new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		for (File f : entries) {
+			if (total <= maxBytes)
+				break;
+			final long size = f.length();
+			if (f.delete())
+				total -= size;
+		}
+	}
+	
+	/**
+	 * Write a table as its number of columns and rows followed by the heading
+	 * and the values of each column
+	 */
+	private static void writeTable(DataOutputStream out, ResultsTable table) throws IOException {
+		final int nColumns = table.getLastColumn() + 1;
+		final int nRows = table.size();
+		out.writeInt(nColumns);
+		out.writeInt(nRows);
+		for (int c = 0; c < nColumns; c ++) {
+			final String heading = table.getColumnHeading(c);
+			out.writeUTF(heading == null ? "" : heading);
+			for (int r = 0; r < nRows; r ++)
+				out.writeDouble(table.columnExists(c) ? table.getValueAsDouble(c, r) : Double.NaN);
+		}
+	}
+	
+	/**
+	 * Read a table written by {@link #writeTable(DataOutputStream, ResultsTable)}
+	 */
+	private static ResultsTable readTable(DataInputStream in) throws IOException {
+		final int nColumns = in.readInt();
+		final int nRows = in.readInt();
+		final ResultsTable table = new ResultsTable(nRows);
+		for (int c = 0; c < nColumns; c ++) {
+			final String heading = in.readUTF();
+			// Unnamed columns are gaps in the original table, their values are skipped
+			for (int r = 0; r < nRows; r ++) {
+				final double value = in.readDouble();
+				if (!heading.equals(""))
+					table.setValue(heading, r, value);
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * Write a 32-bit image as its title and dimensions followed by the pixels of each plane
+	 */
+	private static void writeImage(DataOutputStream out, ImagePlus image) throws IOException {
+		out.writeUTF(image.getTitle());
+		out.writeInt(image.getWidth());
+		out.writeInt(image.getHeight());
+		out.writeInt(image.getNChannels());
+		out.writeInt(image.getNSlices());
+		out.writeInt(image.getNFrames());
+		final ImageStack stack = image.getStack();
+		final ByteBuffer plane = ByteBuffer.allocate(4 * image.getWidth() * image.getHeight());
+		for (int i = 1; i <= stack.getSize(); i ++) {
+			plane.asFloatBuffer().put((float[]) stack.getPixels(i));
+			out.write(plane.array());
+		}
+	}
+	
+	/**
+	 * Read an image written by {@link #writeImage(DataOutputStream, ImagePlus)}
+	 */
+	private static ImagePlus readImage(DataInputStream in) throws IOException {
+		final String title = in.readUTF();
+		final int w = in.readInt();
+		final int h = in.readInt();
+		final int c = in.readInt();
+		final int z = in.readInt();
+		final int t = in.readInt();
+		final ImagePlus image = IJ.createHyperStack(title, w, h, c, z, t, 32);
+		final ImageStack stack = image.getStack();
+		final ByteBuffer plane = ByteBuffer.allocate(4 * w * h);
+		for (int i = 1; i <= stack.getSize(); i ++) {
+			in.readFully(plane.array());
+			plane.asFloatBuffer().get((float[]) stack.getPixels(i));
+		}
+		return image;
+	}
+	
+	/**
+	 * @return directory of the cache
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+/**
+ * Element types in which the input tensors can be built. Half precision types
+ * have no ImgLib2 equivalent, so their raw 16 bits are stored in
+ * UnsignedShortType images, ready to be copied to the model tensor as they are.
+ */
+public enum TensorPrecision {
+	FLOAT32(4),
+	FLOAT16(2),
+	BFLOAT16(2),
+	UINT8(1);
+	
+	private final int bytes;
+	
+	private TensorPrecision(int bytes) {
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * @return number of bytes per element
+	 */
+	public int getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Parse the value of the parameter 'INPUT_TENSOR_TYPE' of the config file
+	 * @param str: one of 'float32', 'float16', 'bfloat16' or 'uint8', case insensitive
+	 * @return the corresponding precision or null if the string is null, empty or 'None'
+	 * @throws IllegalArgumentException if the string is not a valid precision
+	 */
+	public static TensorPrecision fromString(String str) {
+		if (str == null || str.trim().equals("") || str.trim().equals("None"))
+			return null;
+		String val = str.trim().toLowerCase();
+		if (val.equals("float32") || val.equals("float"))
+			return FLOAT32;
+		else if (val.equals("float16") || val.equals("half"))
+			return FLOAT16;
+		else if (val.equals("bfloat16"))
+			return BFLOAT16;
+		else if (val.equals("uint8"))
+			return UINT8;
+		throw new IllegalArgumentException("Unknown tensor type '" + str + "'. The allowed values are: "
+				+ "'float32', 'float16', 'bfloat16' and 'uint8'.");
+	}
+	
+	/**
+	 * Convert a float into IEEE 754 half precision bits, rounding to nearest even
+	 * @param value: value to convert
+	 * @return the 16 bits of the half precision value
+	 */
+	public static short toFloat16(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exp = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if (exp == 0xff)
+			// Infinity or NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		int halfExp = exp - 127 + 15;
+		if (halfExp >= 0x1f)
+			// Overflow, infinity
+			return (short) (sign | 0x7c00);
+		if (halfExp <= 0) {
+			// Subnormal half or zero
+			if (halfExp < -10)
+				return (short) sign;
+			mantissa |= 0x800000;
+			int shift = 14 - halfExp;
+			int half = mantissa >> shift;
+			int rest = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (rest > halfway || (rest == halfway && (half & 1) != 0))
+				half ++;
+			return (short) (sign | half);
+		}
+		int half = (halfExp << 10) | (mantissa >> 13);
+		int rest = mantissa & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+			// Rounding might carry into the exponent, which is still correct
+			half ++;
+		return (short) (sign | half);
+	}
+	
+	/**
+	 * Convert a float into bfloat16 bits, rounding to nearest even
+	 * @param value: value to convert
+	 * @return the 16 most significant bits of the rounded float
+	 */
+	public static short toBFloat16(float value) {
+		int bits = Float.floatToIntBits(value);
+		if ((bits & 0x7fffffff) > 0x7f800000)
+			// Keep NaN a NaN
+			return (short) ((bits >>> 16) | 0x40);
+		bits += 0x7fff + ((bits >>> 16) & 1);
+		return (short) (bits >>> 16);
+	}
+	
+	/**
+	 * Convert a float into an unsigned byte, rounding and saturating to [0, 255].
+	 * The value should not be centred on the mean, or the negative half is lost
+	 * @param value: value to convert
+	 * @return the byte with the unsigned value
+	 */
+	public static byte toUint8(float value) {
+		int v = Math.round(value);
+		return (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+	}
+	
+	/**
+	 * Decode half precision bits into a float
+	 * @param bits: 16 bits of a half precision value
+	 * @return the float value
+	 */
+	public static float fromFloat16(short bits) {
+		int h = bits & 0xffff;
+		int sign = (h & 0x8000) << 16;
+		int exp = (h >>> 10) & 0x1f;
+		int mantissa = h & 0x3ff;
+		if (exp == 0) {
+			if (mantissa == 0)
+				return Float.intBitsToFloat(sign);
+			// Subnormal, normalise it
+			while ((mantissa & 0x400) == 0) {
+				mantissa <<= 1;
+				exp --;
+			}
+			exp ++;
+			mantissa &= 0x3ff;
+		} else if (exp == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		return Float.intBitsToFloat(sign | ((exp + 127 - 15) << 23) | (mantissa << 13));
+	}
+	
+	/**
+	 * Decode bfloat16 bits into a float
+	 * @param bits: 16 bits of a bfloat16 value
+	 * @return the float value
+	 */
+	public static float fromBFloat16(short bits) {
+		return Float.intBitsToFloat((bits & 0xffff) << 16);
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of the 64-bit xxHash (XXH64), a fast
+ * non-cryptographic hash used to identify images by their pixels. Data is
+ * consumed in the little-endian byte order of the reference implementation,
+ * so the digest of a byte sequence is the same as the one of the xxhsum tool.
+ * Primitive arrays are hashed through their little-endian bytes.
+ */
+public class XxHash64 {
+	
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+	/**
+	 * Size of the buffer used to convert primitive arrays to bytes
+	 */
+	private static final int CHUNK = 8192;
+	
+	private final long seed;
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+	private long totalLength = 0;
+	/**
+	 * Bytes that do not fill a stripe of 32 bytes yet
+	 */
+	private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer chunk = null;
+	
+	/**
+	 * Create a hash with seed 0
+	 */
+	public XxHash64() {
+		this(0);
+	}
+	
+	/**
+	 * @param seed: seed of the hash
+	 */
+	public XxHash64(long seed) {
+		this.seed = seed;
+		v1 = seed + PRIME1 + PRIME2;
+		v2 = seed + PRIME2;
+		v3 = seed;
+		v4 = seed - PRIME1;
+	}
+	
+	/**
+	 * Add bytes to the hash
+	 * @param data: array with the bytes
+	 * @param offset: first byte to add
+	 * @param length: number of bytes to add
+	 * @return this hash
+	 */
+	public XxHash64 update(byte[] data, int offset, int length) {
+		final ByteBuffer buf = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+		update(buf);
+		return this;
+	}
+	
+	/**
+	 * Add the remaining bytes of a buffer to the hash. The buffer is consumed
+	 * @param buf: bytes to add
+	 * @return this hash
+	 */
+	public XxHash64 update(ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		totalLength += buf.remaining();
+		// Complete the stripe left by the previous update
+		if (pending.position() > 0) {
+			while (pending.hasRemaining() && buf.hasRemaining())
+				pending.put(buf.get());
+			if (pending.hasRemaining())
+				return this;
+			pending.flip();
+			stripe(pending, 0);
+			pending.clear();
+		}
+		int pos = buf.position();
+		final int limit = buf.limit();
+		for (; pos + 32 <= limit; pos += 32)
+			stripe(buf, pos);
+		buf.position(pos);
+		while (buf.hasRemaining())
+			pending.put(buf.get());
+		return this;
+	}
+	
+	/**
+	 * Add one value to the hash
+	 * @param value: value to add, as 8 little-endian bytes
+	 * @return this hash
+	 */
+	public XxHash64 update(long value) {
+		final ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putLong(value).flip();
+		return update(buf);
+	}
+	
+	/**
+	 * Add a string to the hash, as its length followed by its UTF-16 characters
+	 * @param str: string to add
+	 * @return this hash
+	 */
+	public XxHash64 update(String str) {
+		update(str.length());
+		return update(str.toCharArray());
+	}
+	
+	/**
+	 * @param data: values to add to the hash
+	 * @return this hash
+	 */
+	public XxHash64 update(byte[] data) {
+		return update(data, 0, data.length);
+	}
+	
+	/**
+	 * @param data: values to add to the hash
+	 * @return this hash
+	 */
+	public XxHash64 update(short[] data) {
+		final ByteBuffer buf = getChunk();
+		for (int i = 0; i < data.length; i += CHUNK / 2) {
+			final int n = Math.min(CHUNK / 2, data.length - i);
+			buf.clear();
+			buf.asShortBuffer().put(data, i, n);
+			buf.limit(2 * n);
+			update(buf);
+		}
+		return this;
+	}
+	
+	/**
+	 * @param data: values to add to the hash
+	 * @return this hash
+	 */
+	public XxHash64 update(char[] data) {
+		final ByteBuffer buf = getChunk();
+		for (int i = 0; i < data.length; i += CHUNK / 2) {
+			final int n = Math.min(CHUNK / 2, data.length - i);
+			buf.clear();
+			buf.asCharBuffer().put(data, i, n);
+			buf.limit(2 * n);
+			update(buf);
+		}
+		return this;
+	}
+	
+	/**
+	 * @param data: values to add to the hash
+	 * @return this hash
+	 */
+	public XxHash64 update(int[] data) {
+		final ByteBuffer buf = getChunk();
+		for (int i = 0; i < data.length; i += CHUNK / 4) {
+			final int n = Math.min(CHUNK / 4, data.length - i);
+			buf.clear();
+			buf.asIntBuffer().put(data, i, n);
+			buf.limit(4 * n);
+			update(buf);
+		}
+		return this;
+	}
+	
+	/**
+	 * @param data: values to add to the hash, by their IEEE 754 bits
+	 * @return this hash
+	 */
+	public XxHash64 update(float[] data) {
+		final ByteBuffer buf = getChunk();
+		for (int i = 0; i < data.length; i += CHUNK / 4) {
+			final int n = Math.min(CHUNK / 4, data.length - i);
+			buf.clear();
+			buf.asFloatBuffer().put(data, i, n);
+			buf.limit(4 * n);
+			update(buf);
+		}
+		return this;
+	}
+	
+	/**
+	 * @return buffer used to convert primitive arrays, created on first use
+	 */
+	private ByteBuffer getChunk() {
+		if (chunk == null)
+			chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+		return chunk;
+	}
+	
+	/**
+	 * Consume a stripe of 32 bytes
+	 * @param buf: buffer with the data
+	 * @param pos: position of the stripe in the buffer
+	 */
+	private void stripe(ByteBuffer buf, int pos) {
+		v1 = round(v1, buf.getLong(pos));
+		v2 = round(v2, buf.getLong(pos + 8));
+		v3 = round(v3, buf.getLong(pos + 16));
+		v4 = round(v4, buf.getLong(pos + 24));
+	}
+	
+	/**
+	 * Compute the hash of everything added so far. The hash can still be updated afterwards
+	 * @return the 64-bit hash
+	 */
+	public long digest() {
+		long h;
+		if (totalLength >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+		h += totalLength;
+		final int n = pending.position();
+		int i = 0;
+		for (; i + 8 <= n; i += 8) {
+			h ^= round(0, pending.getLong(i));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+		if (i + 4 <= n) {
+			h ^= (pending.getInt(i) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < n; i ++) {
+			h ^= (pending.get(i) & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+	
+	/**
+	 * @return the hash as 16 hexadecimal characters
+	 */
+	public String hexDigest() {
+		return String.format("%016x", digest());
+	}
+	
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+	
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * PRIME1 + PRIME4;
+	}
+}
@@ -0,0 +1,1132 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
+import maskrcnn.utils.AnchorCache;
+import maskrcnn.utils.DetectedInstance;
+import maskrcnn.utils.DirectTensor;
+import maskrcnn.utils.MaskRcnnAnchors;
+import maskrcnn.utils.Resampler;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Equivalence tests for the numeric kernels of the pre- and post-processing.
+ * The reference oracles are straightforward ports of the Python Mask R-CNN
+ * functions (resize_image, compose_image_meta, norm_boxes, denorm_boxes), the
+ * ImageJ operations used by the original Java port (convertToGray32, the
+ * ImageJ resize, mean subtraction and mask pasting pixel by pixel) and direct
+ * two-dimensional evaluations of the resampling filters. Every optimised path
+ * is run on the same randomised images and configurations and compared element
+ * by element against its oracle, within the tolerance given, and explained, by
+ * each {@link Case}.
+ *
+ * The number of trials per case and the seed can be changed with the system
+ * properties 'maskrcnn.equivalence.trials' and 'maskrcnn.equivalence.seed'. If
+ * 'maskrcnn.equivalence.report' is set, the largest differences and the time
+ * of the reference and of the optimised path are printed for each case. The
+ * cases going through the whole pre- or post-processing also time the work
+ * around the kernel (outputs, anchors, metas), so their speed-up is a lower bound.
+ */
+@RunWith(Parameterized.class)
+public class KernelEquivalenceTest {
+
+	private static final File CONFIG_TEMPLATE = new File("src/main/java/maskrcnn/config.ijm");
+	private static final int TRIALS = Integer.getInteger("maskrcnn.equivalence.trials", 8);
+	private static final long SEED = Long.getLong("maskrcnn.equivalence.seed", 42);
+	/**
+	 * Result of each case, printed at the end if a report is requested
+	 */
+	private static final LinkedHashMap<String, String> REPORT = new LinkedHashMap<String, String>();
+	private static File DIR;
+
+	/**
+	 * Computation checked by the tests. Everything that should not be timed
+	 * (writing files, parsing the config) is done when it is bound to a trial
+	 */
+	interface Kernel {
+		/**
+		 * @param trial: randomised image and parameters
+		 * @return the timed computation, returning the outputs to compare
+		 * @throws Exception if the computation cannot be prepared
+		 */
+		Callable<Object> bind(Trial trial) throws Exception;
+	}
+
+	/**
+	 * Largest difference accepted between the reference and the optimised path
+	 */
+	static class Tolerance {
+		private final long maxUlps;
+		private final double maxRelative;
+		private final String reason;
+
+		private Tolerance(long maxUlps, double maxRelative, String reason) {
+			this.maxUlps = maxUlps;
+			this.maxRelative = maxRelative;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return tolerance of bitwise equal outputs
+		 */
+		static Tolerance exact() {
+			return new Tolerance(0, -1, "the same operations in the same order");
+		}
+
+		/**
+		 * @param maxUlps: maximum difference of each element in units in the last place
+		 * @param reason: why the outputs are not bitwise equal
+		 */
+		static Tolerance ulps(long maxUlps, String reason) {
+			return new Tolerance(maxUlps, -1, reason);
+		}
+
+		/**
+		 * Tolerance of outputs computed with another order of float operations, where
+		 * the rounding error is relative to the magnitude of the inputs and not to
+		 * the magnitude of each output element, for example near zero after the mean
+		 * is subtracted
+		 * @param maxRelative: maximum difference relative to the largest absolute value of the reference
+		 * @param reason: why the outputs are not bitwise equal
+		 */
+		static Tolerance relative(double maxRelative, String reason) {
+			return new Tolerance(-1, maxRelative, reason);
+		}
+
+		/**
+		 * @return whether the element is within the tolerance
+		 */
+		boolean accepts(float expected, float actual, double maxAbsolute) {
+			if (maxRelative >= 0)
+				return Math.abs((double) expected - actual) <= maxRelative * maxAbsolute;
+			return KernelEquivalenceTest.ulps(expected, actual) <= maxUlps;
+		}
+
+		@Override
+		public String toString() {
+			final String bound = maxRelative >= 0 ? "relative " + maxRelative : maxUlps + " ulps";
+			return bound + " (" + reason + ")";
+		}
+	}
+
+	/**
+	 * Optimised path of a kernel together with its reference and the allowed difference
+	 */
+	static class Case {
+		private final String name;
+		private final Kernel reference;
+		private final Kernel variant;
+		private final Tolerance tolerance;
+
+		/**
+		 * @param name: name reported for the case
+		 * @param reference: oracle, taken as ground truth
+		 * @param variant: implementation checked against the reference
+		 * @param tolerance: largest difference accepted
+		 */
+		Case(String name, Kernel reference, Kernel variant, Tolerance tolerance) {
+			this.name = name;
+			this.reference = reference;
+			this.variant = variant;
+			this.tolerance = tolerance;
+		}
+	}
+
+	/**
+	 * Random image and configuration shared by the reference and the variant
+	 */
+	static class Trial {
+		private final ImagePlus image;
+		private final HashMap<String, String> params = new HashMap<String, String>();
+		/**
+		 * Seed of any other random data the kernels need, so the reference and the
+		 * variant get the same data
+		 */
+		private final long seed;
+		private File tiff;
+		private HashMap<String, String> runtime;
+		private Trial calibrated;
+		private Trial stacked;
+
+		private Trial(Random random) {
+			seed = random.nextLong();
+			final String[] types = {"8-bit", "16-bit", "32-bit", "RGB"};
+			final String type = types[random.nextInt(types.length)];
+			final int width = 40 + random.nextInt(400);
+			final int height = 40 + random.nextInt(400);
+			image = IJ.createImage("trial", type, width, height, 1);
+			final ImageProcessor ip = image.getProcessor();
+			for (int i = 0; i < width * height; i ++) {
+				if (type.equals("RGB"))
+					ip.set(i, random.nextInt(1 << 24));
+				else if (type.equals("32-bit"))
+					ip.setf(i, (float) (random.nextGaussian() * 50 + 100));
+				else
+					ip.setf(i, random.nextInt(type.equals("8-bit") ? 256 : 4096));
+			}
+			final String[] modes = {"square", "pad64", "none"};
+			final String[] methods = {"bilinear", "bicubic", "area"};
+			final int minDim = 64 * (2 + random.nextInt(3));
+			params.put("IMAGE_RESIZE_MODE", modes[random.nextInt(modes.length)]);
+			params.put("IMAGE_MIN_DIM", "" + minDim);
+			params.put("IMAGE_MAX_DIM", "" + (minDim + 64 * random.nextInt(4)));
+			params.put("IMAGE_MIN_SCALE", "0");
+			params.put("RESIZE_METHOD", methods[random.nextInt(methods.length)]);
+			params.put("INPUT_TENSOR_TYPE", "None");
+			params.put("TENSOR_MEMORY", "heap");
+			params.put("PREPROCESSING_MODE", "imagej");
+			params.put("ANCHOR_CACHE_DIR", "None");
+			params.put("OUTPUT_MODE", "masks");
+			params.put("MASK_STORAGE", "heap");
+			params.put("MEASURE_INSTANCES", "false");
+			params.put("INSTANCE_OUTPUT", "None");
+			params.put("INSTANCE_CROP_SIZE", "None");
+		}
+
+		private Trial(Trial trial, ImagePlus image) {
+			seed = trial.seed;
+			params.putAll(trial.params);
+			this.image = image;
+		}
+
+		/**
+		 * @return the same trial with a calibrated image: 16-bit images are signed,
+		 * 	8-bit images have a density calibration and other images are unchanged
+		 */
+		Trial calibrated() {
+			if (calibrated == null) {
+				final ImagePlus copy = image.duplicate();
+				if (copy.getBitDepth() == 16)
+					copy.getCalibration().setSigned16BitCalibration();
+				else if (copy.getBitDepth() == 8)
+					copy.getCalibration().setFunction(Calibration.STRAIGHT_LINE, new double[] {-20, 0.75}, "OD");
+				calibrated = new Trial(this, copy);
+			}
+			return calibrated;
+		}
+
+		/**
+		 * @return the same trial with a stack of 3 slices, copies of the image
+		 */
+		Trial stacked() {
+			if (stacked == null) {
+				final ImageStack stack = new ImageStack(image.getWidth(), image.getHeight());
+				for (int z = 0; z < 3; z ++)
+					stack.addSlice(image.getProcessor().duplicate());
+				stacked = new Trial(this, new ImagePlus("stack", stack));
+			}
+			return stacked;
+		}
+
+		/**
+		 * @return the image saved as an uncompressed TIFF file, written once per trial
+		 */
+		File getTiff() {
+			if (tiff == null) {
+				try {
+					tiff = File.createTempFile("trial", ".tif", DIR);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+				IJ.saveAsTiff(image.duplicate(), tiff.getPath());
+			}
+			return tiff;
+		}
+
+		/**
+		 * @return the runtime parameters that the pre-processing computes for the image
+		 * @throws Exception if the image cannot be pre-processed
+		 */
+		HashMap<String, String> getRuntimeParameters() throws Exception {
+			if (runtime == null) {
+				final Preprocessing pre = createPreprocessing(params);
+				run(pre, image.duplicate());
+				runtime = pre.getRuntimeParameters();
+			}
+			return runtime;
+		}
+
+		/**
+		 * Smooth plane for the comparisons of interpolation filters, the sum of
+		 * a few Gaussian blobs over a ramp, with values between 0 and about 255.
+		 * Its size is a multiple of 4 so the exact 2x and 4x reductions can be tested
+		 * @return plane of size [width - width % 4, height - height % 4], row by row
+		 */
+		float[] getSmoothPlane() {
+			final Random random = new Random(seed);
+			final int w = getPlaneWidth();
+			final int h = getPlaneHeight();
+			final double[][] blobs = new double[4][];
+			for (int i = 0; i < blobs.length; i ++)
+				blobs[i] = new double[] {random.nextDouble() * w, random.nextDouble() * h,
+						5 + random.nextDouble() * w / 4, 50 + random.nextDouble() * 100};
+			final float[] plane = new float[w * h];
+			for (int y = 0; y < h; y ++) {
+				for (int x = 0; x < w; x ++) {
+					double v = 40.0 * x / w;
+					for (double[] b : blobs)
+						v += b[3] * Math.exp(-((x - b[0]) * (x - b[0]) + (y - b[1]) * (y - b[1])) / (2 * b[2] * b[2]));
+					plane[y * w + x] = (float) v;
+				}
+			}
+			return plane;
+		}
+
+		int getPlaneWidth() {
+			return image.getWidth() - image.getWidth() % 4;
+		}
+
+		int getPlaneHeight() {
+			return image.getHeight() - image.getHeight() % 4;
+		}
+
+		/**
+		 * @return target size of the resize comparisons, [width, height]: an exact 2x
+		 * 	or 4x reduction, any other reduction or an enlargement
+		 */
+		int[] getResizeTarget() {
+			final Random random = new Random(seed + 1);
+			final int w = getPlaneWidth();
+			final int h = getPlaneHeight();
+			switch (random.nextInt(4)) {
+			case 0:
+				return new int[] {w / 2, h / 2};
+			case 1:
+				return new int[] {w / 4, h / 4};
+			case 2:
+				return new int[] {w / 4 + 1 + random.nextInt(w / 2), h / 4 + 1 + random.nextInt(h / 2)};
+			default:
+				return new int[] {w + 1 + random.nextInt(2 * w), h + 1 + random.nextInt(2 * h)};
+			}
+		}
+
+		@Override
+		public String toString() {
+			return image.getBitDepth() + "-bit " + image.getWidth() + "x" + image.getHeight() + ", "
+					+ params.get("IMAGE_RESIZE_MODE") + " " + params.get("IMAGE_MIN_DIM") + "-"
+					+ params.get("IMAGE_MAX_DIM") + ", " + params.get("RESIZE_METHOD");
+		}
+	}
+
+	/**
+	 * Geometry of the molded image as computed by resize_image of the Python
+	 * implementation. Python rounds ties to even, the Java pre-processing rounds
+	 * them up: the random sizes of the trials never give a tie
+	 */
+	static class ReferenceGeometry {
+		double scale = 1;
+		int scaledHeight;
+		int scaledWidth;
+		int top;
+		int left;
+		int height;
+		int width;
+
+		ReferenceGeometry(int h, int w, int minDim, double minScale, int maxDim, String mode) {
+			scaledHeight = height = h;
+			scaledWidth = width = w;
+			if (mode.equals("none"))
+				return;
+			if (minDim > 0)
+				scale = Math.max(1, minDim / (double) Math.min(h, w));
+			if (minScale > 0 && scale < minScale)
+				scale = minScale;
+			if (maxDim > 0 && mode.equals("square")) {
+				final int imageMax = Math.max(h, w);
+				if (Math.round(imageMax * scale) > maxDim)
+					scale = maxDim / (double) imageMax;
+			}
+			if (scale != 1) {
+				scaledHeight = (int) Math.round(h * scale);
+				scaledWidth = (int) Math.round(w * scale);
+			}
+			if (mode.equals("square")) {
+				top = (maxDim - scaledHeight) / 2;
+				left = (maxDim - scaledWidth) / 2;
+				height = width = maxDim;
+			} else {
+				height = scaledHeight % 64 > 0 ? scaledHeight - scaledHeight % 64 + 64 : scaledHeight;
+				width = scaledWidth % 64 > 0 ? scaledWidth - scaledWidth % 64 + 64 : scaledWidth;
+				top = (height - scaledHeight) / 2;
+				left = (width - scaledWidth) / 2;
+			}
+		}
+
+		static ReferenceGeometry of(Trial trial) {
+			return new ReferenceGeometry(trial.image.getHeight(), trial.image.getWidth(),
+					Integer.parseInt(trial.params.get("IMAGE_MIN_DIM")), Double.parseDouble(trial.params.get("IMAGE_MIN_SCALE")),
+					Integer.parseInt(trial.params.get("IMAGE_MAX_DIM")), trial.params.get("IMAGE_RESIZE_MODE"));
+		}
+	}
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> cases() {
+		final ArrayList<Case> cases = new ArrayList<Case>();
+		final Tolerance resampling = Tolerance.relative(8 * Math.ulp(1f),
+				"float separable passes against a direct evaluation in double");
+		// Conversion and mean subtraction of unresized images: look-up tables for
+		// 8 and 16-bit images and unpacking of the RGB channels
+		cases.add(new Case("convert: convertToGray32 and mean vs look-up tables",
+				t -> referenceMold(t, "none", "imagej"), t -> molded(t, false, "IMAGE_RESIZE_MODE", "none"), Tolerance.exact()));
+		cases.add(new Case("convert: convertToGray32 and mean vs look-up tables, calibrated",
+				t -> referenceMold(t.calibrated(), "none", "imagej"), t -> molded(t.calibrated(), false, "IMAGE_RESIZE_MODE", "none"), Tolerance.exact()));
+		cases.add(new Case("convert: convertToGray32 and mean vs tensor look-up tables, calibrated",
+				t -> referenceMold(t.calibrated(), "none", "imagej"),
+				t -> molded(t.calibrated(), false, "IMAGE_RESIZE_MODE", "none", "INPUT_TENSOR_TYPE", "float32"), Tolerance.exact()));
+		cases.add(new Case("mold: ImageJ vs imagej mode, ImageJ resize", t -> referenceMold(t, null, "imagej"),
+				t -> molded(t, false, "RESIZE_METHOD", "imagej"), Tolerance.exact()));
+		cases.add(new Case("mold: ImageJ vs imagej mode, resampler", t -> referenceMold(t, null, null),
+				t -> molded(t, false), resampling));
+		cases.add(new Case("mold: ImageJ vs heap float32 tensor", t -> referenceMold(t, null, "imagej"),
+				t -> molded(t, false, "RESIZE_METHOD", "imagej", "INPUT_TENSOR_TYPE", "float32"), Tolerance.exact()));
+		cases.add(new Case("mold: ImageJ vs direct tensor", t -> referenceMold(t, null, "imagej"),
+				t -> molded(t, false, "RESIZE_METHOD", "imagej", "TENSOR_MEMORY", "direct"), Tolerance.exact()));
+		cases.add(new Case("mold: ImageJ vs mapped tiff", t -> referenceMold(t, null, null), t -> molded(t, true), resampling));
+		cases.add(new Case("mold: ImageJ vs tiff file, ImageJ resize", t -> referenceMold(t, null, "imagej"),
+				t -> molded(t, true, "RESIZE_METHOD", "imagej"), Tolerance.exact()));
+		cases.add(new Case("convert: convertToGray32 and mean vs tiff file, calibrated", t -> referenceMold(t.calibrated(), "none", "imagej"),
+				t -> molded(t.calibrated(), true, "IMAGE_RESIZE_MODE", "none"), Tolerance.exact()));
+		// Stacks are not handled by the reference, the file has to give the same image as the ImagePlus
+		cases.add(new Case("mold: image stack vs tiff file stack", t -> molded(t.stacked(), false), t -> molded(t.stacked(), true), Tolerance.exact()));
+		cases.add(new Case("mold: input pixels vs input after molding", t -> inputPixels(t, false), t -> inputPixels(t, true), Tolerance.exact()));
+		// The views interpolate the pixels before subtracting the mean, the reference after
+		cases.add(new Case("mold: ImageJ vs lazy views", t -> referenceMold(t, null, "bilinear"),
+				t -> molded(t, false, "RESIZE_METHOD", "bilinear", "PREPROCESSING_MODE", "views"),
+				Tolerance.relative(8 * Math.ulp(1f), "interpolation before the mean subtraction, in another order")));
+		cases.add(new Case("mold: ImageJ vs lazy views, calibrated", t -> referenceMold(t.calibrated(), null, "bilinear"),
+				t -> molded(t.calibrated(), false, "RESIZE_METHOD", "bilinear", "PREPROCESSING_MODE", "views"),
+				Tolerance.relative(8 * Math.ulp(1f), "interpolation before the mean subtraction, in another order")));
+		cases.add(new Case("resize: direct bilinear vs resampler", t -> resizeDirect(t, "bilinear"), t -> resample(t, Resampler.Method.BILINEAR), resampling));
+		cases.add(new Case("resize: direct bicubic vs resampler", t -> resizeDirect(t, "bicubic"), t -> resample(t, Resampler.Method.BICUBIC), resampling));
+		cases.add(new Case("resize: direct area vs resampler", t -> resizeDirect(t, "area"), t -> resample(t, Resampler.Method.AREA), resampling));
+		// ImageJ places the samples a quarter of the scale away from the pixel centres
+		// and averages the source pixels when reducing, which is close to the bicubic
+		// filter of the resampler only on smooth images
+		cases.add(new Case("resize: ImageJ vs resampler bicubic", t -> resizeDirect(t, "imagej"), t -> resample(t, Resampler.Method.BICUBIC),
+				Tolerance.relative(0.02, "different sample positions and antialiasing, on smooth images")));
+		cases.add(new Case("anchors: generated vs cache copy", KernelEquivalenceTest::generateAnchors, t -> loadAnchors(t, false), Tolerance.exact()));
+		cases.add(new Case("anchors: generated vs cache map", KernelEquivalenceTest::generateAnchors, t -> loadAnchors(t, true), Tolerance.exact()));
+		cases.add(new Case("anchors: generated vs pre-processing", KernelEquivalenceTest::generateAnchors, t -> preprocessed(t, "input_anchors"), Tolerance.exact()));
+		cases.add(new Case("metas: compose_image_meta vs pre-processing", KernelEquivalenceTest::composeImageMeta,
+				t -> preprocessed(t, "input_image_meta"), Tolerance.exact()));
+		cases.add(new Case("boxes: norm_boxes vs normBoxes", t -> normBoxes(t, true), t -> normBoxes(t, false),
+				Tolerance.ulps(1, "float arithmetic against float64, rounded once")));
+		cases.add(new Case("boxes: denorm_boxes vs denormBoxes", t -> denormBoxes(t, true), t -> denormBoxes(t, false), Tolerance.exact()));
+		cases.add(new Case("unmold: pasted masks vs mask stack", KernelEquivalenceTest::referenceUnmold, t -> unmold(t, "masks", "heap"), Tolerance.exact()));
+		cases.add(new Case("unmold: pasted masks vs lazy instances", KernelEquivalenceTest::referenceUnmold, t -> unmold(t, "instances", "heap"), Tolerance.exact()));
+		cases.add(new Case("unmold: pasted masks vs disk cells", KernelEquivalenceTest::referenceUnmold, t -> unmold(t, "masks", "cells"), Tolerance.exact()));
+		final ArrayList<Object[]> parameters = new ArrayList<Object[]>();
+		for (Case c : cases)
+			parameters.add(new Object[] {c.name, c});
+		return parameters;
+	}
+
+	private final Case CASE;
+
+	public KernelEquivalenceTest(String name, Case c) {
+		CASE = c;
+	}
+
+	@BeforeClass
+	public static void createDirectory() throws IOException {
+		ij.macro.Interpreter.batchMode = true;
+		DIR = Files.createTempDirectory("maskrcnn-equivalence").toFile();
+	}
+
+	@AfterClass
+	public static void deleteDirectory() {
+		deleteRecursively(DIR);
+		if (System.getProperty("maskrcnn.equivalence.report") == null)
+			return;
+		System.out.println(String.format("%-52s %10s %12s %10s %10s %8s",
+				"case", "max ulps", "max rel", "ref ms", "var ms", "speed-up"));
+		for (Entry<String, String> e : REPORT.entrySet())
+			System.out.println(String.format("%-52s %s", e.getKey(), e.getValue()));
+	}
+
+	@Test
+	public void testEquivalence() throws Exception {
+		final Random random = new Random(SEED);
+		long maxUlps = 0;
+		double maxRelative = 0;
+		long refNanos = 0;
+		long varNanos = 0;
+		// The first trial only warms up the JIT and is not timed
+		for (int i = 0; i <= TRIALS; i ++) {
+			final Trial trial = new Trial(random);
+			// Alternate the order, the shape caches of the pre-processing favour the second run
+			final boolean referenceFirst = i % 2 == 0;
+			final long[] nanos = new long[2];
+			final Object ref = referenceFirst ? time(CASE.reference, trial, nanos, 0) : null;
+			final Object var = time(CASE.variant, trial, nanos, 1);
+			final float[] expected = flatten(referenceFirst ? ref : time(CASE.reference, trial, nanos, 0));
+			final float[] actual = flatten(var);
+			if (i > 0) {
+				refNanos += nanos[0];
+				varNanos += nanos[1];
+			}
+			assertEquals("Number of elements (" + trial + ")", expected.length, actual.length);
+			double maxAbsolute = 0;
+			for (float v : expected)
+				maxAbsolute = Math.max(maxAbsolute, Math.abs(v));
+			for (int k = 0; k < expected.length; k ++) {
+				maxUlps = Math.max(maxUlps, ulps(expected[k], actual[k]));
+				if (maxAbsolute > 0)
+					maxRelative = Math.max(maxRelative, Math.abs((double) expected[k] - actual[k]) / maxAbsolute);
+				if (!CASE.tolerance.accepts(expected[k], actual[k], maxAbsolute))
+					fail("Element " + k + ": expected " + expected[k] + " but got " + actual[k] + ", tolerance "
+							+ CASE.tolerance + " (" + trial + ")");
+			}
+		}
+		synchronized (REPORT) {
+			REPORT.put(CASE.name, String.format("%10d %12.3g %10.1f %10.1f %7.2fx", maxUlps, maxRelative,
+					refNanos / 1e6, varNanos / 1e6, varNanos == 0 ? 0 : refNanos / (double) varNanos));
+		}
+	}
+
+	private static Object time(Kernel kernel, Trial trial, long[] nanos, int index) throws Exception {
+		final Callable<Object> call = kernel.bind(trial);
+		final long start = System.nanoTime();
+		final Object out = call.call();
+		nanos[index] = System.nanoTime() - start;
+		return out;
+	}
+
+	/**
+	 * Molding as done by the original Java port: the image is converted with
+	 * convertToGray32 (RGB channels are extracted by ImageJ), resized, padded with
+	 * zeros and then the mean of each channel is subtracted pixel by pixel.
+	 * Single-channel images are replicated to the channels of the model
+	 * @param mode: resize mode, null for the one of the trial
+	 * @param method: 'imagej' for the bicubic ImageJ resize, a filter of
+	 * 	{@link #resizeDirect(float[], int, int, int, int, String)}, or null for
+	 * 	the one of the trial
+	 * @return the molded image in the order of the tensor, [height, width, channels]
+	 */
+	private static Callable<Object> referenceMold(Trial trial, String mode, String method) throws Exception {
+		final HashMap<String, String> params = new HashMap<String, String>(trial.params);
+		if (mode != null)
+			params.put("IMAGE_RESIZE_MODE", mode);
+		final HashMap<String, String> config = readConfig(params);
+		final float[] mean = PostProcessing.str2array(config.get("MEAN_PIXEL"));
+		final int nChannels = Integer.parseInt(config.get("IMAGE_CHANNEL_COUNT"));
+		final ReferenceGeometry geometry = new ReferenceGeometry(trial.image.getHeight(), trial.image.getWidth(),
+				Integer.parseInt(params.get("IMAGE_MIN_DIM")), Double.parseDouble(params.get("IMAGE_MIN_SCALE")),
+				Integer.parseInt(params.get("IMAGE_MAX_DIM")), params.get("IMAGE_RESIZE_MODE"));
+		final String filter = method == null ? params.get("RESIZE_METHOD") : method;
+		final ImagePlus image = trial.image.duplicate();
+		return () -> {
+			final ArrayList<FloatProcessor> planes = new ArrayList<FloatProcessor>();
+			if (image.getBitDepth() == 24) {
+				for (int c = 0; c < 3; c ++)
+					planes.add(((ColorProcessor) image.getProcessor()).toFloat(c, null));
+			} else {
+				if (image.getBitDepth() != 32)
+					new ImageConverter(image).convertToGray32();
+				planes.add((FloatProcessor) image.getProcessor());
+			}
+			final float[] molded = new float[geometry.height * geometry.width * nChannels];
+			for (int c = 0; c < nChannels; c ++) {
+				final FloatProcessor plane = planes.get(planes.size() == 1 ? 0 : c);
+				float[] pixels = (float[]) plane.getPixels();
+				if (geometry.scale != 1) {
+					if (filter.equals("imagej")) {
+						plane.setInterpolationMethod(ImageProcessor.BICUBIC);
+						pixels = (float[]) plane.resize(geometry.scaledWidth, geometry.scaledHeight, true).getPixels();
+					} else {
+						pixels = resizeDirect(pixels, plane.getWidth(), plane.getHeight(),
+								geometry.scaledWidth, geometry.scaledHeight, filter);
+					}
+				}
+				for (int y = 0; y < geometry.height; y ++) {
+					for (int x = 0; x < geometry.width; x ++) {
+						final int sy = y - geometry.top;
+						final int sx = x - geometry.left;
+						final boolean inside = sy >= 0 && sy < geometry.scaledHeight && sx >= 0 && sx < geometry.scaledWidth;
+						final float value = inside ? pixels[sy * geometry.scaledWidth + sx] : 0;
+						molded[(y * geometry.width + x) * nChannels + c] = value - mean[c];
+					}
+				}
+			}
+			return molded;
+		};
+	}
+
+	/**
+	 * Molded image given by the pre-processing
+	 * @param fromFile: whether the image is given as a TIFF file instead of an ImagePlus
+	 * @param overrides: parameters changed for this run, as key, value, key, value...
+	 * @return the molded image in the order of the tensor, [height, width, channels]
+	 */
+	private static Callable<Object> molded(Trial trial, boolean fromFile, String... overrides) throws Exception {
+		final Callable<Object> call = preprocessed(trial, "input_image", fromFile, overrides);
+		return () -> toTensorOrder(call.call());
+	}
+
+	/**
+	 * Pixels of a float image with the channels of the model, built from the trial
+	 * image, before or after going through the pre-processing. The resize mode of
+	 * the trial is kept, so images that are neither resized nor padded, which are
+	 * not copied by the molding, are also checked
+	 * @param process: whether to pre-process the image before reading its pixels
+	 * @return the pixels of the image given to the pre-processing
+	 */
+	private static Callable<Object> inputPixels(Trial trial, boolean process) throws Exception {
+		final int nChannels = Integer.parseInt(readConfig(trial.params).get("IMAGE_CHANNEL_COUNT"));
+		final int width = trial.image.getWidth();
+		final int height = trial.image.getHeight();
+		final ImagePlus image = IJ.createImage("input", "32-bit", width, height, nChannels, 1, 1);
+		final ImageProcessor source = trial.image.getProcessor();
+		for (int c = 0; c < nChannels; c ++) {
+			final ImageProcessor ip = image.getStack().getProcessor(c + 1);
+			for (int i = 0; i < width * height; i ++)
+				ip.setf(i, source.getf(i) + 10 * c);
+		}
+		if (!process)
+			return () -> flatten(image).clone();
+		final Preprocessing pre = createPreprocessing(trial.params);
+		return () -> {
+			run(pre, image);
+			return flatten(image);
+		};
+	}
+
+	private static Callable<Object> preprocessed(Trial trial, String output) throws Exception {
+		return preprocessed(trial, output, false);
+	}
+
+	/**
+	 * One of the outputs of the whole pre-processing of the trial image
+	 */
+	private static Callable<Object> preprocessed(Trial trial, String output, boolean fromFile, String... overrides) throws Exception {
+		final HashMap<String, String> params = new HashMap<String, String>(trial.params);
+		for (int i = 0; i < overrides.length; i += 2)
+			params.put(overrides[i], overrides[i + 1]);
+		final Preprocessing pre = createPreprocessing(params);
+		final Object input = fromFile ? trial.getTiff() : trial.image.duplicate();
+		return () -> run(pre, input).get(output);
+	}
+
+	/**
+	 * Resize the smooth plane of the trial with a direct evaluation of the filter,
+	 * or with the ImageJ resize
+	 */
+	private static Callable<Object> resizeDirect(Trial trial, String method) {
+		final float[] plane = trial.getSmoothPlane();
+		final int[] target = trial.getResizeTarget();
+		final int w = trial.getPlaneWidth();
+		final int h = trial.getPlaneHeight();
+		if (method.equals("imagej")) {
+			return () -> {
+				final FloatProcessor ip = new FloatProcessor(w, h, plane);
+				ip.setInterpolationMethod(ImageProcessor.BICUBIC);
+				return ip.resize(target[0], target[1], true).getPixels();
+			};
+		}
+		return () -> resizeDirect(plane, w, h, target[0], target[1], method);
+	}
+
+	/**
+	 * Resize the smooth plane of the trial with the separable resampler
+	 */
+	private static Callable<Object> resample(Trial trial, Resampler.Method method) {
+		final float[] plane = trial.getSmoothPlane();
+		final int[] target = trial.getResizeTarget();
+		return () -> Resampler.resize(plane, trial.getPlaneWidth(), trial.getPlaneHeight(), target[0], target[1], method);
+	}
+
+	/**
+	 * Resize a plane evaluating the filter at every target pixel in double precision,
+	 * sampling the source at the pixel centres as skimage.transform.resize
+	 * @param method: 'bilinear', 'bicubic' (cubic convolution with a = -0.5) or 'area'
+	 * 	(average of the source pixels covered when reducing, replication when enlarging)
+	 */
+	static float[] resizeDirect(float[] pixels, int width, int height, int newWidth, int newHeight, String method) {
+		final double[][] wx = filterWeights(width, newWidth, method);
+		final double[][] wy = filterWeights(height, newHeight, method);
+		final float[] out = new float[newWidth * newHeight];
+		for (int y = 0; y < newHeight; y ++) {
+			for (int x = 0; x < newWidth; x ++) {
+				double sum = 0;
+				for (int j = 0; j < height; j ++) {
+					if (wy[y][j] == 0)
+						continue;
+					for (int i = 0; i < width; i ++) {
+						if (wx[x][i] != 0)
+							sum += wy[y][j] * wx[x][i] * pixels[j * width + i];
+					}
+				}
+				out[y * newWidth + x] = (float) sum;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return weight of every source pixel for each target pixel along one axis,
+	 * 	samples outside of the image take the value of the border
+	 */
+	private static double[][] filterWeights(int size, int newSize, String method) {
+		final double[][] weights = new double[newSize][size];
+		final double scale = newSize / (double) size;
+		for (int i = 0; i < newSize; i ++) {
+			if (method.equals("area") && newSize >= size) {
+				weights[i][(int) Math.min(size - 1, Math.floor(i * size / (double) newSize))] = 1;
+			} else if (method.equals("area")) {
+				final double start = i / scale;
+				final double end = Math.min(size, (i + 1) / scale);
+				for (int p = (int) Math.floor(start); p < end; p ++)
+					weights[i][p] += (Math.min(end, p + 1) - Math.max(start, p)) / (end - start);
+			} else {
+				final double center = (i + 0.5) / scale - 0.5;
+				final boolean cubic = method.equals("bicubic");
+				for (int p = (int) Math.floor(center) - (cubic ? 1 : 0); p <= Math.floor(center) + (cubic ? 2 : 1); p ++) {
+					final double d = Math.abs(center - p);
+					final double w;
+					if (!cubic)
+						w = Math.max(0, 1 - d);
+					else if (d <= 1)
+						w = 1.5 * d * d * d - 2.5 * d * d + 1;
+					else
+						w = d < 2 ? -0.5 * d * d * d + 2.5 * d * d - 4 * d + 2 : 0;
+					weights[i][Math.max(0, Math.min(size - 1, p))] += w;
+				}
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * Anchors for the shape of the molded image, generated as in the Python code
+	 */
+	private static Callable<Object> generateAnchors(Trial trial) throws Exception {
+		final ReferenceGeometry geometry = ReferenceGeometry.of(trial);
+		final float[] shape = {geometry.height, geometry.width, 3};
+		new MaskRcnnAnchors(readConfig(trial.params));
+		return () -> MaskRcnnAnchors.getAnchors(shape);
+	}
+
+	/**
+	 * Anchors read from the {@link AnchorCache}, stored before the timed region
+	 */
+	private static Callable<Object> loadAnchors(Trial trial, boolean mapped) throws Exception {
+		final ReferenceGeometry geometry = ReferenceGeometry.of(trial);
+		final float[] shape = {geometry.height, geometry.width, 3};
+		new MaskRcnnAnchors(readConfig(trial.params));
+		final String key = MaskRcnnAnchors.getCacheKey(shape);
+		final File dir = new File(DIR, "anchors");
+		if (AnchorCache.load(dir, key, false) == null)
+			AnchorCache.store(dir, key, MaskRcnnAnchors.getAnchors(shape)[0]);
+		return () -> AnchorCache.load(dir, key, mapped);
+	}
+
+	/**
+	 * Image metas as built by compose_image_meta of the Python implementation:
+	 * image id, original shape, molded shape, window, scale and active class ids
+	 */
+	private static Callable<Object> composeImageMeta(Trial trial) throws Exception {
+		final HashMap<String, String> config = readConfig(trial.params);
+		final int nChannels = Integer.parseInt(config.get("IMAGE_CHANNEL_COUNT"));
+		final int nClasses = Integer.parseInt(config.get("NUM_CLASSES"));
+		final ReferenceGeometry g = ReferenceGeometry.of(trial);
+		return () -> {
+			final float[] meta = new float[1 + 3 + 3 + 4 + 1 + nClasses];
+			final float[] values = {0, trial.image.getHeight(), trial.image.getWidth(), nChannels, g.height, g.width, nChannels,
+					g.top, g.left, g.top + g.scaledHeight, g.left + g.scaledWidth, (float) g.scale};
+			System.arraycopy(values, 0, meta, 0, values.length);
+			return meta;
+		};
+	}
+
+	/**
+	 * Normalise the window of the trial, as norm_boxes of the Python implementation
+	 * in float64 or with {@link PostProcessing#normBoxes(float[], float[])}
+	 */
+	private static Callable<Object> normBoxes(Trial trial, boolean reference) {
+		final ReferenceGeometry g = ReferenceGeometry.of(trial);
+		final float[] window = {g.top, g.left, g.top + g.scaledHeight, g.left + g.scaledWidth};
+		final float[] shape = {g.height, g.width};
+		if (!reference)
+			return () -> PostProcessing.normBoxes(window, shape);
+		return () -> {
+			final double[] scale = {shape[0] - 1, shape[1] - 1, shape[0] - 1, shape[1] - 1};
+			final double[] shift = {0, 0, 1, 1};
+			final float[] normalised = new float[4];
+			for (int i = 0; i < 4; i ++)
+				normalised[i] = (float) ((window[i] - shift[i]) / scale[i]);
+			return normalised;
+		};
+	}
+
+	/**
+	 * Convert random normalised boxes to the pixels of the trial image, as
+	 * denorm_boxes of the Python implementation (numpy rounds ties to even, which
+	 * random boxes never give) or with {@link PostProcessing#denormBoxes(double[][], float[])}
+	 */
+	private static Callable<Object> denormBoxes(Trial trial, boolean reference) {
+		final Random random = new Random(trial.seed);
+		final double[][] boxes = new double[1 + random.nextInt(50)][4];
+		for (double[] box : boxes) {
+			box[0] = random.nextDouble() * 0.8;
+			box[1] = random.nextDouble() * 0.8;
+			box[2] = box[0] + random.nextDouble() * 0.2;
+			box[3] = box[1] + random.nextDouble() * 0.2;
+		}
+		final float[] shape = {trial.image.getHeight(), trial.image.getWidth()};
+		if (!reference)
+			return () -> toFloats(PostProcessing.denormBoxes(boxes, shape));
+		return () -> {
+			final double[] scale = {shape[0] - 1, shape[1] - 1, shape[0] - 1, shape[1] - 1};
+			final double[] shift = {0, 0, 1, 1};
+			final int[][] pixels = new int[boxes.length][4];
+			for (int i = 0; i < boxes.length; i ++)
+				for (int j = 0; j < 4; j ++)
+					pixels[i][j] = (int) Math.rint(boxes[i][j] * scale[j] + shift[j]);
+			return toFloats(pixels);
+		};
+	}
+
+	private static float[] toFloats(int[][] values) {
+		final float[] out = new float[values.length * values[0].length];
+		for (int i = 0; i < out.length; i ++)
+			out[i] = values[i / values[0].length][i % values[0].length];
+		return out;
+	}
+
+	/**
+	 * Unmolding of random detections as done by the original Java port: the mask
+	 * of each detection is resized to its box with the bicubic ImageJ resize and
+	 * pasted pixel by pixel where it is at least 0.5
+	 * @return the full size mask of each instance, as [instance, y, x]
+	 */
+	private static Callable<Object> referenceUnmold(Trial trial) throws Exception {
+		final HashMap<String, String> runtime = trial.getRuntimeParameters();
+		final HashMap<String, String> config = readConfig(trial.params);
+		final HashMap<String, Object> inputs = createDetections(trial, config, runtime);
+		return () -> {
+			final ResultsTable detections = (ResultsTable) inputs.get(config.get("MRCNN_DETECTION"));
+			final ImagePlus mask = (ImagePlus) inputs.get(config.get("MRCNN_MASK"));
+			final int n = detections.size();
+			final float[] originalShape = PostProcessing.str2array(runtime.get("ORIGINAL_IMAGE_SIZE"));
+			final float[] window = PostProcessing.normBoxes(PostProcessing.str2array(runtime.get("WINDOW_SIZE")),
+					PostProcessing.str2array(runtime.get("PROCESSING_IMAGE_SIZE")));
+			final float[] shift = {window[0], window[1], window[0], window[1]};
+			final float wh = window[2] - window[0];
+			final float ww = window[3] - window[1];
+			final float[] scale = {wh, ww, wh, ww};
+			final double[][] boxes = new double[n][4];
+			for (int i = 0; i < n; i ++)
+				for (int j = 0; j < 4; j ++)
+					boxes[i][j] = (Double.parseDouble(detections.getStringValue(j, i)) - shift[j]) / scale[j];
+			final int[][] pixelBoxes = PostProcessing.denormBoxes(boxes, originalShape);
+			final int width = (int) Math.floor(originalShape[1]);
+			final int height = (int) Math.floor(originalShape[0]);
+			final float[] masks = new float[n * width * height];
+			for (int i = 0; i < n; i ++) {
+				final int classId = Integer.parseInt(detections.getStringValue(4, i));
+				final ImageProcessor ip = mask.getStack().getProcessor(mask.getStackIndex(classId + 1, i + 1, 1)).duplicate();
+				ip.setInterpolationMethod(ImageProcessor.BICUBIC);
+				final int[] box = pixelBoxes[i];
+				final ImageProcessor resized = ip.resize(box[3] - box[1], box[2] - box[0]);
+				for (int y = box[0]; y < box[2]; y ++) {
+					for (int x = box[1]; x < box[3]; x ++) {
+						if (x >= 0 && x < width && y >= 0 && y < height && resized.getPixelValue(x - box[1], y - box[0]) >= 0.5)
+							masks[(i * height + y) * width + x] = 1;
+					}
+				}
+			}
+			return masks;
+		};
+	}
+
+	/**
+	 * Post-processing of random detections inside the window of the trial image
+	 * @return the full size mask of each instance, as the stack 'finalMask',
+	 * 	the masks of the lazy instances, or the disk cached cells as [instance, y, x]
+	 */
+	private static Callable<Object> unmold(Trial trial, String outputMode, String storage) throws Exception {
+		final HashMap<String, String> params = new HashMap<String, String>(trial.params);
+		params.put("OUTPUT_MODE", outputMode);
+		params.put("MASK_STORAGE", storage);
+		final HashMap<String, String> runtime = trial.getRuntimeParameters();
+		final HashMap<String, Object> inputs = createDetections(trial, readConfig(trial.params), runtime);
+		final PostProcessing post = new PostProcessing();
+		post.setConfigFiles(writeConfig(params));
+		if (!post.error().equals(""))
+			throw new ProcessingException(post.error());
+		post.setRuntimeParameters(runtime);
+		return () -> {
+			final HashMap<String, Object> out = post.deepimagejPostprocessing(inputs);
+			if (out == null)
+				throw new ProcessingException(post.error());
+			if (out.get("instances") != null) {
+				final DetectedInstance[] instances = (DetectedInstance[]) out.get("instances");
+				final ImageProcessor[] masks = new ImageProcessor[instances.length];
+				for (DetectedInstance instance : instances) {
+					// 255 for the pixels of the instance, 1 in the mask stack
+					masks[instance.getIndex()] = instance.createMaskProcessor();
+					masks[instance.getIndex()].and(1);
+				}
+				return masks;
+			}
+			if (out.get("finalMask") instanceof RandomAccessibleInterval)
+				return Views.permute((RandomAccessibleInterval<?>) out.get("finalMask"), 0, 2);
+			return out.get("finalMask");
+		};
+	}
+
+	/**
+	 * Create the outputs of the model for random detections. The same trial
+	 * always gives the same detections
+	 */
+	private static HashMap<String, Object> createDetections(Trial trial, HashMap<String, String> config,
+			HashMap<String, String> runtime) {
+		final Random random = new Random(trial.seed);
+		final float[] window = PostProcessing.str2array(runtime.get("WINDOW_SIZE"));
+		final float[] shape = PostProcessing.str2array(runtime.get("PROCESSING_IMAGE_SIZE"));
+		final int nClasses = Integer.parseInt(config.get("NUM_CLASSES"));
+		final int n = 1 + random.nextInt(12);
+		final int maskSize = 28;
+		final ResultsTable detections = new ResultsTable();
+		final ImageStack masks = ImageStack.create(maskSize, maskSize, nClasses * n, 32);
+		for (int i = 0; i < n; i ++) {
+			// Normalised boxes inside the window of the image
+			final double wy1 = window[0] / shape[0], wx1 = window[1] / shape[1];
+			final double wh = (window[2] - window[0]) / shape[0], ww = (window[3] - window[1]) / shape[1];
+			final double y1 = wy1 + random.nextDouble() * 0.7 * wh;
+			final double x1 = wx1 + random.nextDouble() * 0.7 * ww;
+			final int classId = 1 + random.nextInt(nClasses - 1);
+			detections.incrementCounter();
+			detections.addValue(0, y1);
+			detections.addValue(1, x1);
+			detections.addValue(2, y1 + (0.05 + 0.25 * random.nextDouble()) * wh);
+			detections.addValue(3, x1 + (0.05 + 0.25 * random.nextDouble()) * ww);
+			detections.addValue(4, classId);
+			detections.addValue(5, random.nextDouble());
+			final ImageProcessor ip = masks.getProcessor(i * nClasses + classId + 1);
+			final double cx = maskSize * (0.3 + 0.4 * random.nextDouble());
+			final double cy = maskSize * (0.3 + 0.4 * random.nextDouble());
+			final double sigma2 = 20 + 80 * random.nextDouble();
+			for (int y = 0; y < maskSize; y ++)
+				for (int x = 0; x < maskSize; x ++)
+					ip.setf(x, y, (float) Math.exp(-((x - cx) * (x - cx) + (y - cy) * (y - cy)) / sigma2));
+		}
+		final ImagePlus mask = IJ.createHyperStack("mask", maskSize, maskSize, nClasses, n, 1, 32);
+		mask.setStack(masks, nClasses, n, 1);
+		final HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put(config.get("MRCNN_MASK"), mask);
+		inputs.put(config.get("MRCNN_DETECTION"), detections);
+		return inputs;
+	}
+
+	private static Preprocessing createPreprocessing(HashMap<String, String> params) throws Exception {
+		final Preprocessing pre = new Preprocessing();
+		pre.setConfigRewrite(false);
+		pre.setConfigFiles(writeConfig(params));
+		if (!pre.error().equals(""))
+			throw new ProcessingException(pre.error());
+		return pre;
+	}
+
+	private static HashMap<String, Object> run(Preprocessing pre, Object input) throws ProcessingException {
+		final HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put(pre.getInputImageName(), input);
+		final HashMap<String, Object> out = pre.deepimagejPreprocessing(inputs);
+		if (out == null)
+			throw new ProcessingException(pre.error());
+		return out;
+	}
+
+	/**
+	 * Write a copy of the config file with some parameters changed
+	 * @return the list of config files, with the copy called 'config.ijm'
+	 */
+	private static ArrayList<String> writeConfig(HashMap<String, String> params) throws IOException {
+		String config = new String(Files.readAllBytes(CONFIG_TEMPLATE.toPath()), StandardCharsets.UTF_8);
+		for (Entry<String, String> e : params.entrySet())
+			config = config.replaceAll("PARAMETER: " + e.getKey() + " = .*",
+					Matcher.quoteReplacement("PARAMETER: " + e.getKey() + " = " + e.getValue()));
+		final File file = new File(DIR, "config.ijm");
+		Files.write(file.toPath(), config.getBytes(StandardCharsets.UTF_8));
+		return new ArrayList<String>(Arrays.asList(file.getPath()));
+	}
+
+	/**
+	 * @return the parameters of a config file, as parsed by the pre-processing
+	 */
+	private static HashMap<String, String> readConfig(HashMap<String, String> params) throws Exception {
+		return createPreprocessing(params).getConfig();
+	}
+
+	/**
+	 * @param o: molded image, as an ImagePlus with one plane per channel or as a tensor
+	 * @return the values in the order of the tensor, [height, width, channels]
+	 */
+	private static float[] toTensorOrder(Object o) {
+		if (!(o instanceof ImagePlus))
+			return flatten(o);
+		final ImageStack stack = ((ImagePlus) o).getStack();
+		final int n = stack.getSize();
+		final int size = stack.getWidth() * stack.getHeight();
+		final float[] values = new float[size * n];
+		for (int c = 0; c < n; c ++) {
+			final float[] plane = (float[]) stack.getProcessor(c + 1).convertToFloatProcessor().getPixels();
+			for (int i = 0; i < size; i ++)
+				values[i * n + c] = plane[i];
+		}
+		return values;
+	}
+
+	/**
+	 * Flatten the outputs of a kernel, so the same data has the same layout whatever
+	 * the container. Tensors are flattened in row-major order of their dimensions,
+	 * as the direct tensors, and images slice by slice and row by row
+	 * @param o: ImagePlus, ImgLib2 image, direct tensor, image processors, Java
+	 * 	arrays of floats or arrays of any of them
+	 * @return the values
+	 */
+	@SuppressWarnings("unchecked")
+	static float[] flatten(Object o) {
+		if (o instanceof float[])
+			return (float[]) o;
+		if (o instanceof ImageProcessor)
+			return (float[]) ((ImageProcessor) o).convertToFloatProcessor().getPixels();
+		if (o instanceof ImagePlus) {
+			final ImageStack stack = ((ImagePlus) o).getStack();
+			final Object[] planes = new Object[stack.getSize()];
+			for (int i = 0; i < planes.length; i ++)
+				planes[i] = stack.getProcessor(i + 1);
+			return flatten(planes);
+		}
+		if (o instanceof DirectTensor) {
+			final DirectTensor tensor = (DirectTensor) o;
+			final ByteBuffer buffer = tensor.getBuffer();
+			final float[] values = new float[(int) tensor.getNumElements()];
+			buffer.asFloatBuffer().get(values);
+			return values;
+		}
+		if (o instanceof RandomAccessibleInterval) {
+			RandomAccessibleInterval<? extends RealType<?>> rai = (RandomAccessibleInterval<? extends RealType<?>>) o;
+			final int nd = rai.numDimensions();
+			// ImgLib2 iterates the first dimension fastest, reverse them to get row-major order
+			for (int d = 0; d < nd / 2; d ++)
+				rai = Views.permute(rai, d, nd - 1 - d);
+			final float[] values = new float[(int) Views.iterable(rai).size()];
+			int i = 0;
+			for (RealType<?> t : Views.flatIterable(rai))
+				values[i ++] = t.getRealFloat();
+			return values;
+		}
+		if (o instanceof Object[]) {
+			final List<float[]> parts = new ArrayList<float[]>();
+			int size = 0;
+			for (Object part : (Object[]) o) {
+				parts.add(flatten(part));
+				size += parts.get(parts.size() - 1).length;
+			}
+			final float[] values = new float[size];
+			int offset = 0;
+			for (float[] part : parts) {
+				System.arraycopy(part, 0, values, offset, part.length);
+				offset += part.length;
+			}
+			return values;
+		}
+		throw new IllegalArgumentException("Cannot compare outputs of type " + (o == null ? "null" : o.getClass().getName()));
+	}
+
+	/**
+	 * @return distance between two floats in units in the last place, 0 if both are NaN
+	 */
+	static long ulps(float a, float b) {
+		if (Float.isNaN(a) || Float.isNaN(b))
+			return Float.isNaN(a) && Float.isNaN(b) ? 0 : Long.MAX_VALUE;
+		int ia = Float.floatToIntBits(a);
+		int ib = Float.floatToIntBits(b);
+		// Map the sign-magnitude representation to a monotonic integer line
+		if (ia < 0)
+			ia = Integer.MIN_VALUE - ia;
+		if (ib < 0)
+			ib = Integer.MIN_VALUE - ib;
+		return Math.abs((long) ia - ib);
+	}
+
+	private static void deleteRecursively(File file) {
+		final File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteRecursively(child);
+		file.delete();
+	}
+}
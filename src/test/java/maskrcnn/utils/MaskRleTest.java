@@ -0,0 +1,126 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ *
+ * Conditions of use: You are free to use this software for research or educational purposes. 
+ * In addition, we expect you to include adequate citations and acknowledgments whenever you 
+ * present or publish results that are based on it.
+ * 
+ * Reference: DeepImageJ: A user-friendly plugin to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, L. Donati, M. Unser, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2019.
+ *
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ *
+ * Corresponding authors: mamunozb@ing.uc3m.es, daniel.sage@epfl.ch
+ *
+ */
+
+/*
+ * Copyright 2019. Universidad Carlos III, Madrid, Spain and EPFL, Lausanne, Switzerland.
+ * 
+ * This file is part of DeepImageJ.
+ * 
+ * DeepImageJ is free software: you can redistribute it and/or modify it under the terms of 
+ * the GNU General Public License as published by the Free Software Foundation, either 
+ * version 3 of the License, or (at your option) any later version.
+ * 
+ * DeepImageJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; 
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. 
+ * See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with DeepImageJ. 
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+package maskrcnn.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MaskRleTest {
+	
+	/**
+	 * Decode run lengths into a mask of the whole image in column-major order
+	 */
+	private static byte[] decode(long[] counts, int width, int height) {
+		final byte[] image = new byte[width * height];
+		int pos = 0;
+		for (int i = 0; i < counts.length; i ++) {
+			for (long k = 0; k < counts[i]; k ++)
+				image[pos ++] = (byte) (i % 2);
+		}
+		assertEquals("Runs must cover the whole image", (long) width * height, pos);
+		return image;
+	}
+	
+	/**
+	 * Paste the mask of a box into a mask of the whole image in column-major order
+	 */
+	private static byte[] paste(byte[] mask, int[] box, int width, int height) {
+		final byte[] image = new byte[width * height];
+		final int bw = box[3] - box[1];
+		for (int y = Math.max(0, box[0]); y < Math.min(height, box[2]); y ++) {
+			for (int x = Math.max(0, box[1]); x < Math.min(width, box[3]); x ++)
+				image[x * height + y] = (byte) (mask[(y - box[0]) * bw + x - box[1]] != 0 ? 1 : 0);
+		}
+		return image;
+	}
+	
+	private static void assertRoundTrip(byte[] mask, int[] box, int width, int height) {
+		final long[] counts = MaskRle.encode(mask, box, width, height);
+		assertArrayEquals(paste(mask, box, width, height), decode(counts, width, height));
+	}
+	
+	private static byte[] filled(int[] box) {
+		final byte[] mask = new byte[(box[2] - box[0]) * (box[3] - box[1])];
+		java.util.Arrays.fill(mask, (byte) 1);
+		return mask;
+	}
+	
+	@Test
+	public void testBoxInside() {
+		final int[] box = {2, 3, 6, 7};
+		assertArrayEquals(new long[] {3 * 10 + 2, 4, 6, 4, 6, 4, 6, 4, 10 * 10 - 7 * 10 + 4}, 
+				MaskRle.encode(filled(box), box, 10, 10));
+	}
+	
+	@Test
+	public void testBoxTouchingBottomEdge() {
+		// The last pixel of the box is foreground and the box ends before the last column
+		final int[] box = {5, 2, 10, 6};
+		assertArrayEquals(new long[] {2 * 10 + 5, 5, 5, 5, 5, 5, 5, 5, 10 * 10 - 6 * 10}, 
+				MaskRle.encode(filled(box), box, 10, 10));
+		assertRoundTrip(filled(box), box, 10, 10);
+	}
+	
+	@Test
+	public void testBoxTouchingCorners() {
+		final int width = 9;
+		final int height = 7;
+		final int[][] boxes = {{0, 0, 7, 9}, {3, 5, 7, 9}, {0, 0, 4, 3}, {4, 0, 7, 3}, {0, 6, 3, 9}, {-2, -3, 9, 4}};
+		for (int[] box : boxes)
+			assertRoundTrip(filled(box), box, width, height);
+	}
+	
+	@Test
+	public void testRandomMasks() {
+		final Random random = new Random(42);
+		final int width = 13;
+		final int height = 11;
+		for (int i = 0; i < 500; i ++) {
+			final int y1 = random.nextInt(height + 4) - 2;
+			final int x1 = random.nextInt(width + 4) - 2;
+			final int[] box = {y1, x1, y1 + 1 + random.nextInt(height), x1 + 1 + random.nextInt(width)};
+			final byte[] mask = new byte[(box[2] - box[0]) * (box[3] - box[1])];
+			for (int k = 0; k < mask.length; k ++)
+				mask[k] = (byte) (random.nextInt(3) == 0 ? 0 : 1);
+			assertRoundTrip(mask, box, width, height);
+		}
+	}
+}